@@ -0,0 +1,119 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A command-line benchmark that compares the {@link HeadReader} to the
+ * former byte-at-a-time line reader, parsing a typical tunnelled
+ * response head.
+ * <p>
+ * The source is a {@link ByteArrayInputStream}, which synchronizes every
+ * read just like our message pipe streams.
+ * <p>
+ * Usage is:<pre>
+ *   java org.cougaar.lib.web.micro.base.HeadReaderBenchmark [ITERATIONS]
+ * </pre>
+ */
+public final class HeadReaderBenchmark {
+
+  private static final byte[] HEAD =
+    ("HTTP/1.0 200 OK\r\n"+
+     "Date: Mon, 01 Jan 2007 00:00:00 GMT\r\n"+
+     "Server: Cougaar\r\n"+
+     "Content-Type: text/html; charset=ISO-8859-1\r\n"+
+     "Content-Length: 4096\r\n"+
+     "Cache-Control: no-cache\r\n"+
+     "Expires: Thu, 01 Jan 1970 00:00:00 GMT\r\n"+
+     "Set-Cookie: JSESSIONID=0123456789abcdef; Path=/\r\n"+
+     "\r\n").getBytes();
+
+  private HeadReaderBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+
+    // warm up
+    for (int j = 0; j < 2; j++) {
+      run(j == 0, iterations / 10);
+    }
+
+    System.out.println("reader         usec/op");
+    for (int j = 0; j < 2; j++) {
+      boolean bulk = (j == 1);
+      long nanos = run(bulk, iterations);
+      System.out.println(
+          (bulk ? "bulk          " : "byte-at-a-time")+
+          " "+(Math.round(nanos / 10.0 / iterations) / 100.0));
+    }
+  }
+
+  // return the total nanos to parse the head n times
+  private static long run(boolean bulk, int n) throws IOException {
+    int headers = 0;
+    long t = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      InputStream in = new ByteArrayInputStream(HEAD);
+      if (bulk) {
+        HeadReader reader = 
+          new HeadReader(
+              in,
+              RequestCallbackImpl.DEFAULT_MAX_LINE_LENGTH,
+              RequestCallbackImpl.DEFAULT_MAX_HEAD_SIZE);
+        reader.readLine(502);
+        List l = reader.readHeaders(RequestCallbackImpl.DEFAULT_MAX_HEADERS);
+        headers += l.size();
+      } else {
+        readLine(in);
+        while (readLine(in).length() > 0) {
+          headers++;
+        }
+      }
+    }
+    t = System.nanoTime() - t;
+    if (headers != 7 * n) {
+      throw new RuntimeException("Parsed "+headers+" headers");
+    }
+    return t;
+  }
+
+  // the former ServletTunnel line reader
+  private static String readLine(InputStream in) throws IOException {
+    StringBuffer buf = new StringBuffer();
+    while (true) {
+      int b = in.read();
+      if (b < 0) break;
+      if (b == '\r') b = in.read();
+      if (b == '\n') break;
+      buf.append((char) b);
+    }
+    return buf.toString().trim();
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the {@link HeadReader} limits and timeouts.
+ */
+public class HeadReaderTest extends TestCase {
+
+  public void testReadHead() throws Exception {
+    HeadReader r =
+      newReader("GET / HTTP/1.1\r\nHost: x\r\nA:  b \n\r\nbody", 100, 1000);
+    r.startHead(0);
+    assertEquals("GET / HTTP/1.1", r.readLine(414));
+    assertEquals(
+        Arrays.asList(new Object[] {"Host: x", "A:  b"}),
+        r.readHeaders(10));
+    byte[] b = new byte[10];
+    assertEquals(4, r.read(b, 0, b.length));
+    assertEquals("body", new String(b, 0, 4));
+  }
+
+  public void testLineTooLong() throws Exception {
+    HeadReader r = newReader("GET /"+repeat('x', 100)+"\r\n\r\n", 64, 1000);
+    r.startHead(0);
+    assertStatus(414, r, false, 10);
+
+    r =
+      newReader("GET / HTTP/1.0\r\nA: "+repeat('x', 100)+"\r\n\r\n", 64, 1000);
+    r.startHead(0);
+    r.readLine(414);
+    assertStatus(431, r, true, 10);
+  }
+
+  public void testTooManyHeaders() throws Exception {
+    StringBuffer buf = new StringBuffer("GET / HTTP/1.0\r\n");
+    for (int i = 0; i < 5; i++) {
+      buf.append("H").append(i).append(": v\r\n");
+    }
+    buf.append("\r\n");
+    HeadReader r = newReader(buf.toString(), 64, 1000);
+    r.startHead(0);
+    r.readLine(414);
+    assertStatus(431, r, true, 4);
+
+    // exactly at the limit is fine
+    r = newReader(buf.toString(), 64, 1000);
+    r.startHead(0);
+    r.readLine(414);
+    assertEquals(5, r.readHeaders(5).size());
+  }
+
+  public void testHeadTooLarge() throws Exception {
+    StringBuffer buf = new StringBuffer("GET / HTTP/1.0\r\n");
+    for (int i = 0; i < 20; i++) {
+      buf.append("Header-").append(i).append(": 0123456789\r\n");
+    }
+    buf.append("\r\n");
+    HeadReader r = newReader(buf.toString(), 64, 200);
+    r.startHead(0);
+    r.readLine(414);
+    assertStatus(431, r, true, 100);
+  }
+
+  public void testReadTimeout() throws Exception {
+    // nothing is written, so the pipe's read timeout fires
+    LocalPipe pipe = new LocalPipe();
+    pipe.setReadTimeout(20);
+    HeadReader r = new HeadReader(pipe.getInputStream(), 64, 1000);
+    r.startHead(0);
+    assertStatus(408, r, false, 10);
+
+    // a tunnel reports a 504
+    r = new HeadReader(pipe.getInputStream(), 64, 1000, 504);
+    r.startHead(0);
+    assertStatus(504, r, false, 10);
+  }
+
+  public void testHeadDeadline() throws Exception {
+    // the client sends its request line and stalls.  The connection's
+    // regular read timeout is long, so only the head deadline saves us.
+    LocalPipe pipe = new LocalPipe();
+    TimeoutConnection con = new TimeoutConnection(pipe);
+    con.setReadTimeout(10000);
+    write(pipe, "GET / HTTP/1.0\r\n");
+    HeadReader r = new HeadReader(pipe.getInputStream(), 64, 1000);
+    r.setConnection(con, 10000);
+    long t = System.currentTimeMillis();
+    r.startHead(100);
+    assertEquals("GET / HTTP/1.0", r.readLine(414));
+    assertStatus(408, r, true, 10);
+    long elapsed = System.currentTimeMillis() - t;
+    assertTrue("took "+elapsed+" millis", elapsed < 5000);
+    // every read was limited by the time left before the deadline
+    for (int i = 1; i < con.timeouts.size(); i++) {
+      long millis = ((Long) con.timeouts.get(i)).longValue();
+      assertTrue("timeout "+millis, millis > 0 && millis <= 100);
+    }
+  }
+
+  public void testReadTimeoutRestored() throws Exception {
+    LocalPipe pipe = new LocalPipe();
+    TimeoutConnection con = new TimeoutConnection(pipe);
+    con.setReadTimeout(10000);
+    write(pipe, "GET / HTTP/1.0\r\nA: b\r\n\r\n");
+    HeadReader r = new HeadReader(pipe.getInputStream(), 64, 1000);
+    r.setConnection(con, 10000);
+    r.startHead(60000);
+    r.readLine(414);
+    assertEquals(1, r.readHeaders(10).size());
+    // the deadline is further away than our regular timeout, so we
+    // never shrank it
+    assertEquals(1, con.timeouts.size());
+
+    r = new HeadReader(pipe.getInputStream(), 64, 1000);
+    write(pipe, "GET / HTTP/1.0\r\nA: b\r\n\r\n");
+    r.setConnection(con, 10000);
+    r.startHead(5000);
+    r.readLine(414);
+    r.readHeaders(10);
+    Long last = (Long) con.timeouts.get(con.timeouts.size() - 1);
+    assertEquals(10000, last.longValue());
+    assertTrue(con.timeouts.size() > 2);
+  }
+
+  private static void assertStatus(
+      int status, HeadReader r, boolean headers, int maxHeaders)
+      throws IOException {
+    try {
+      if (headers) {
+        r.readHeaders(maxHeaders);
+      } else {
+        r.readLine(414);
+      }
+      fail("expecting a "+status);
+    } catch (RequestException e) {
+      assertEquals(e.getMessage(), status, e.getStatus());
+    }
+  }
+
+  private static HeadReader newReader(
+      String s, int maxLineLength, int maxHeadSize) {
+    InputStream in = new ByteArrayInputStream(s.getBytes());
+    return new HeadReader(in, maxLineLength, maxHeadSize);
+  }
+
+  private static void write(LocalPipe pipe, String s) throws IOException {
+    OutputStream out = pipe.getOutputStream();
+    out.write(s.getBytes());
+    out.flush();
+  }
+
+  private static String repeat(char c, int n) {
+    char[] ca = new char[n];
+    Arrays.fill(ca, c);
+    return new String(ca);
+  }
+
+  /** Records the read timeouts that we set on a pipe */
+  private static final class TimeoutConnection implements Connection {
+    private final LocalPipe pipe;
+    final List timeouts = new ArrayList();
+
+    TimeoutConnection(LocalPipe pipe) {
+      this.pipe = pipe;
+    }
+    public Map getMetaData() {
+      return null;
+    }
+    public AnnotatedInputStream getInputStream() {
+      return pipe.getInputStream();
+    }
+    public AnnotatedOutputStream getOutputStream() {
+      return pipe.getOutputStream();
+    }
+    public void setReadTimeout(long millis) {
+      timeouts.add(new Long(millis));
+      pipe.setReadTimeout(millis);
+    }
+    public void close() throws IOException {
+      pipe.getOutputStream().close();
+    }
+  }
+}
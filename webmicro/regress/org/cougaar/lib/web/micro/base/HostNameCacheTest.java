@@ -0,0 +1,97 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+/**
+ * Test that a {@link HostNameCache} never blocks its caller by default,
+ * and resolves names in its executor.
+ */
+public class HostNameCacheTest extends TestCase {
+
+  private final List tasks = new ArrayList();
+
+  private final Executor executor = new Executor() {
+    public void execute(Runnable r) {
+      tasks.add(r);
+    }
+  };
+
+  public void testMissReturnsAddress() {
+    HostNameCache c = new HostNameCache(false, 10, 60000, 0, executor);
+    // our executor hasn't run the lookup, so we get the address
+    assertEquals("127.0.0.1", c.getHostName("127.0.0.1"));
+    assertEquals("127.0.0.2", c.getHostName("127.0.0.2"));
+    assertEquals("127.0.0.1", c.getHostName("127.0.0.1"));
+    // one task resolves all the pending lookups
+    assertEquals(1, tasks.size());
+
+    ((Runnable) tasks.remove(0)).run();
+    String name = c.getHostName("127.0.0.1");
+    assertNotNull(name);
+    // a hit doesn't start another lookup
+    assertEquals(name, c.getHostName("127.0.0.1"));
+    assertEquals(0, tasks.size());
+
+    // a new miss starts a new task
+    c.getHostName("127.0.0.3");
+    assertEquals(1, tasks.size());
+  }
+
+  public void testIpOnly() {
+    HostNameCache c = new HostNameCache(true, 10, 60000, 0, executor);
+    assertEquals("127.0.0.1", c.getHostName("127.0.0.1"));
+    assertEquals(0, tasks.size());
+  }
+
+  public void testFailedExecutor() {
+    Executor failing = new Executor() {
+      public void execute(Runnable r) {
+        throw new IllegalStateException("stopped");
+      }
+    };
+    HostNameCache c = new HostNameCache(false, 10, 60000, 0, failing);
+    assertEquals("127.0.0.1", c.getHostName("127.0.0.1"));
+    // the failed lookup isn't stuck as pending
+    assertEquals("127.0.0.1", c.getHostName("127.0.0.1"));
+  }
+
+  public void testDefaultIsShared() {
+    assertSame(
+        HostNameCache.getDefault(),
+        HostNameCache.getInstance(Collections.EMPTY_MAP, executor));
+    assertNotSame(
+        HostNameCache.getDefault(),
+        HostNameCache.getInstance(
+          Collections.singletonMap("ipOnly", "true"), executor));
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+/**
+ * Test that a {@link ResponseCache} keys responses by the accepted
+ * content-codings, and bounds how long a request waits for a concurrent
+ * fetch.
+ */
+public class ResponseCacheTest extends TestCase {
+
+  private int fetches;
+
+  /** A fetcher that returns the request's "Accept-Encoding" as the body */
+  private ResponseCache.Fetcher newFetcher(final String vary) {
+    return new ResponseCache.Fetcher() {
+      public long fetch(HttpServletRequest req, HttpServletResponse res)
+          throws IOException {
+        fetches++;
+        String accept = req.getHeader("Accept-Encoding");
+        res.setHeader("Cache-Control", "max-age=60");
+        res.setHeader("Vary", vary);
+        res.getOutputStream().write(
+            (accept == null ? "identity" : accept).getBytes());
+        return 1;
+      }
+    };
+  }
+
+  public void testVaryAcceptEncoding() throws Exception {
+    ResponseCache cache = new ResponseCache();
+    ResponseCache.Fetcher f = newFetcher("Accept-Encoding");
+
+    assertEquals("gzip", get(cache, f, "gzip"));
+    assertEquals("gzip", get(cache, f, "gzip"));
+    assertEquals(1, fetches);
+    assertEquals(1, cache.getHitCount());
+
+    // a different coding is a different entry
+    assertEquals("identity", get(cache, f, null));
+    assertEquals(2, fetches);
+    assertEquals("identity", get(cache, f, null));
+    assertEquals(2, fetches);
+
+    // same accepted codings, different spelling
+    assertEquals("gzip", get(cache, f, "x-gzip, deflate;q=0"));
+    assertEquals(2, fetches);
+    assertEquals(2, cache.size());
+  }
+
+  public void testVaryOtherNotCached() throws Exception {
+    ResponseCache cache = new ResponseCache();
+    ResponseCache.Fetcher f = newFetcher("Accept-Encoding, Cookie");
+    get(cache, f, "gzip");
+    get(cache, f, "gzip");
+    assertEquals(2, fetches);
+    assertEquals(0, cache.size());
+  }
+
+  public void testTruncatedNotCached() throws Exception {
+    ResponseCache cache = new ResponseCache();
+    ResponseCache.Fetcher f = new ResponseCache.Fetcher() {
+      public long fetch(HttpServletRequest req, HttpServletResponse res)
+          throws IOException {
+        fetches++;
+        res.setHeader("Cache-Control", "max-age=60");
+        res.setContentLength(100);
+        // the stream ended early, which the tunnel doesn't report
+        res.getOutputStream().write(new byte[50]);
+        return 1;
+      }
+    };
+    assertEquals(50, get(cache, f, null).length());
+    get(cache, f, null);
+    assertEquals(2, fetches);
+    assertEquals(0, cache.size());
+  }
+
+  public void testFailedFetchNotCached() throws Exception {
+    ResponseCache cache = new ResponseCache();
+    final ResponseCache.Fetcher ok = newFetcher("Accept-Encoding");
+    ResponseCache.Fetcher f = new ResponseCache.Fetcher() {
+      public long fetch(HttpServletRequest req, HttpServletResponse res)
+          throws ServletException, IOException {
+        ok.fetch(req, res);
+        return -1;
+      }
+    };
+    get(cache, f, null);
+    get(cache, f, null);
+    assertEquals(2, fetches);
+    assertEquals(0, cache.size());
+  }
+
+  public void testAcceptedCodings() {
+    assertEquals("", ResponseCache.getAcceptedCodings(newRequest(null)));
+    assertEquals(
+        "deflate,gzip",
+        ResponseCache.getAcceptedCodings(
+          newRequest("gzip;q=1.0, DEFLATE, br;q=0")));
+  }
+
+  public void testWaitTimeout() throws Exception {
+    final ResponseCache cache = new ResponseCache(1 << 20, 1 << 16, 100);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ResponseCache.Fetcher slow = new ResponseCache.Fetcher() {
+      public long fetch(HttpServletRequest req, HttpServletResponse res)
+          throws IOException {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ie) {
+          throw new IOException("interrupted");
+        }
+        res.getOutputStream().write("slow".getBytes());
+        return 1;
+      }
+    };
+    Thread leader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          get(cache, slow, null);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    leader.start();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    try {
+      // we give up waiting for the stuck leader and fetch our own
+      long t = System.currentTimeMillis();
+      assertEquals("identity", get(cache, newFetcher("Accept"), null));
+      assertTrue(System.currentTimeMillis() - t < 5000);
+      assertEquals(1, fetches);
+    } finally {
+      release.countDown();
+      leader.join(10000);
+    }
+  }
+
+  private static String get(
+      ResponseCache cache,
+      ResponseCache.Fetcher f,
+      String accept) throws Exception {
+    Response r = new Response();
+    HttpServletResponse res = (HttpServletResponse) Proxy.newProxyInstance(
+        HttpServletResponse.class.getClassLoader(),
+        new Class[] {HttpServletResponse.class},
+        r);
+    cache.service("agent /x?", newRequest(accept), res, f);
+    return r.body.toString();
+  }
+
+  private static HttpServletRequest newRequest(String accept) {
+    final Map headers = new HashMap();
+    if (accept != null) {
+      headers.put("accept-encoding", accept);
+    }
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        HttpServletRequest.class.getClassLoader(),
+        new Class[] {HttpServletRequest.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getMethod")) {
+              return "GET";
+            }
+            if (m.getName().equals("getHeader")) {
+              return headers.get(((String) args[0]).toLowerCase());
+            }
+            return defaultValue(m);
+          }
+        });
+  }
+
+  private static Object defaultValue(Method m) {
+    Class cl = m.getReturnType();
+    if (cl == Boolean.TYPE) {
+      return Boolean.FALSE;
+    } else if (cl == Integer.TYPE) {
+      return new Integer(0);
+    } else if (cl == Long.TYPE) {
+      return new Long(0);
+    }
+    return null;
+  }
+
+  /** A response that captures the body */
+  private static final class Response implements InvocationHandler {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final ServletOutputStream out = new ServletOutputStream() {
+      public void write(int b) {
+        body.write(b);
+      }
+    };
+    public Object invoke(Object proxy, Method m, Object[] args) {
+      if (m.getName().equals("getOutputStream")) {
+        return out;
+      }
+      if (m.getName().equals("getCharacterEncoding")) {
+        return "ISO-8859-1";
+      }
+      return defaultValue(m);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test that a {@link ServletEngineImpl} rejects bad request heads, through
+ * our {@link LocalServerFactory}.
+ */
+public class ServletEngineImplTest extends TestCase {
+
+  private static int counter;
+
+  private String name;
+  private ServletEngineImpl engine;
+
+  protected void setUp() throws Exception {
+    synchronized (ServletEngineImplTest.class) {
+      name = "ServletEngineImplTest-"+(++counter);
+    }
+    Map options = new HashMap();
+    options.put("local.name", name);
+    options.put("http.maxHeaders", "4");
+    options.put("http.headTimeout", "100");
+    options.put("http.readTimeout", "10000");
+    engine = new ServletEngineImpl(new LocalServerFactory());
+    engine.configure(0, -1, options);
+    engine.start();
+  }
+
+  protected void tearDown() {
+    engine.stop();
+  }
+
+  public void testTooManyHeaders() throws Exception {
+    StringBuffer buf = new StringBuffer("GET / HTTP/1.0\r\n");
+    for (int i = 0; i < 5; i++) {
+      buf.append("H").append(i).append(": v\r\n");
+    }
+    buf.append("\r\n");
+    assertEquals(
+        "HTTP/1.0 431 Request Header Fields Too Large",
+        send(buf.toString()));
+    assertEquals(1, engine.getRejectedCount(431));
+    assertEquals(1, engine.getRejectedCount());
+  }
+
+  public void testHeadTimeout() throws Exception {
+    // the head deadline is much shorter than our read timeout
+    long t = System.currentTimeMillis();
+    assertEquals("HTTP/1.0 408 Request Timeout", send("GET / HTTP/1.0\r\n"));
+    assertTrue(System.currentTimeMillis() - t < 5000);
+    assertEquals(1, engine.getRejectedCount(408));
+    assertEquals(0, engine.getRejectedCount(431));
+    assertEquals(
+        new Long(1), engine.getRejectedCounts().get(new Integer(408)));
+  }
+
+  // send a partial or complete head and return the status line
+  private String send(String head) throws IOException {
+    Connection con = (new LocalClientFactory()).connect(name, null);
+    try {
+      con.setReadTimeout(10000);
+      OutputStream out = con.getOutputStream();
+      out.write(head.getBytes("ISO-8859-1"));
+      out.flush();
+      InputStream in = con.getInputStream();
+      StringBuffer buf = new StringBuffer();
+      while (true) {
+        int ch = in.read();
+        if (ch < 0 || ch == '\r' || ch == '\n') break;
+        buf.append((char) ch);
+      }
+      return buf.toString();
+    } finally {
+      con.close();
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the {@link InputPipe} reordering, duplicate and gap handling.
+ */
+public class InputPipeTest extends TestCase {
+
+  private static final Map META = Collections.singletonMap("k", "v");
+
+  public void testInOrder() throws Exception {
+    InputPipe ip = new InputPipe();
+    ip.deliver(0, META, data("ab"));
+    ip.deliver(1, null, data("cd", Tokens.CLOSE));
+    assertEquals(META, ip.getMetaData());
+    assertEquals("abcd", readAll(ip.getInputStream()));
+  }
+
+  public void testOutOfOrder() throws Exception {
+    InputPipe ip = new InputPipe();
+    ip.deliver(2, null, data("ef"));
+    ip.deliver(3, null, data("gh", Tokens.CLOSE));
+    ip.deliver(1, null, data("cd"));
+    // nothing is readable until the first segment arrives
+    ip.setReadTimeout(20);
+    try {
+      ip.getInputStream().read();
+      fail("expecting a read timeout");
+    } catch (SocketTimeoutException e) {
+      // expected, and the pipe is still open
+    }
+    ip.setReadTimeout(0);
+    ip.deliver(0, META, data("ab"));
+    assertEquals(META, ip.getMetaData());
+    assertEquals("abcdefgh", readAll(ip.getInputStream()));
+  }
+
+  public void testDuplicates() throws Exception {
+    InputPipe ip = new InputPipe();
+    ip.deliver(0, META, data("ab"));
+    // a duplicate of a delivered segment
+    ip.deliver(0, null, data("XX"));
+    // a duplicate of an early segment
+    ip.deliver(2, null, data("ef", Tokens.CLOSE));
+    ip.deliver(2, null, data("YY", Tokens.CLOSE));
+    ip.deliver(1, null, data("cd"));
+    ip.deliver(1, null, data("ZZ"));
+    // a straggler after the close
+    ip.deliver(3, null, data("WW"));
+    assertEquals(META, ip.getMetaData());
+    assertEquals("abcdef", readAll(ip.getInputStream()));
+  }
+
+  public void testGapTimeout() throws Exception {
+    InputPipe ip = new InputPipe(null, 0, 8, 50);
+    ip.deliver(0, META, data("ab"));
+    // segment 1 is lost
+    ip.deliver(2, null, data("ef", Tokens.CLOSE));
+    InputStream in = ip.getInputStream();
+    assertEquals('a', in.read());
+    assertEquals('b', in.read());
+    long t = System.currentTimeMillis();
+    try {
+      in.read();
+      fail("expecting a gap timeout");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().indexOf("segment 1") >= 0);
+    }
+    assertTrue(System.currentTimeMillis() - t >= 40);
+    // the late segment doesn't revive the pipe
+    ip.deliver(1, null, data("cd"));
+    try {
+      in.read();
+      fail("expecting the pipe to stay failed");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testReorderWindow() throws Exception {
+    InputPipe ip = new InputPipe(null, 0, 2, 0);
+    ip.deliver(0, META, data("ab"));
+    ip.deliver(3, null, data("gh"));
+    // beyond our window of 2 early segments
+    ip.deliver(4, null, data("ij"));
+    InputStream in = ip.getInputStream();
+    try {
+      readAll(in);
+      fail("expecting a reorder failure");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().indexOf("reorder") >= 0);
+    }
+  }
+
+  public void testLateGranter() throws Exception {
+    final List grants = new ArrayList();
+    InputPipe ip = new InputPipe(null, 8, 8, 0);
+    ip.deliver(0, META, data("abcd"));
+    ip.deliver(1, null, data("efgh"));
+    InputStream in = ip.getInputStream();
+    assertEquals('a', in.read());
+    // e.g. once the remote peer advertised its window
+    ip.setGranter(new Granter() {
+      public void grant(int credit) {
+        grants.add(new Integer(credit));
+      }
+    });
+    byte[] b = new byte[3];
+    assertEquals(3, in.read(b));
+    // the grant includes the byte we read before the granter was set
+    assertEquals(Arrays.asList(new Object[] {new Integer(4)}), grants);
+  }
+
+  private static List data(String s) {
+    return data(s, null);
+  }
+
+  private static List data(String s, Object token) {
+    List l = new ArrayList();
+    l.add(s.getBytes());
+    if (token != null) {
+      l.add(token);
+    }
+    return l;
+  }
+
+  private static String readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] b = new byte[16];
+    while (true) {
+      int n = in.read(b);
+      if (n < 0) break;
+      bos.write(b, 0, n);
+    }
+    return new String(bos.toByteArray());
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.cougaar.core.agent.service.MessageSwitchService;
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.mts.MessageHandler;
+
+/**
+ * An in-process stand-in for the Cougaar message transport, used by our
+ * {@link TunnelBenchmark} to connect a {@link MessagingClientFactory} to a
+ * {@link MessagingServerFactory} without a society.
+ * <p>
+ * Each {@link #getMessageSwitchService} node serializes its sent messages,
+ * like the real MTS, and queues them on a per-link FIFO with a delivery
+ * thread.  Each link simulates a one-way latency and a bandwidth limit,
+ * and drops messages at random with the loss probability.  Messages to
+ * unknown nodes are dropped.
+ */
+final class LocalMessageSwitch {
+
+  private final long latencyNanos;
+  private final double loss;
+  private final long bandwidth;
+  private final Random random;
+
+  // map from MessageAddress to List of MessageHandlers
+  private final Map handlers = new HashMap();
+  // map from "source target" String to Link
+  private final Map links = new HashMap();
+
+  private long sent;
+  private long bytes;
+  private long dropped;
+  private long errors;
+  private RuntimeException lastError;
+
+  /**
+   * @param latency one-way delivery latency in milliseconds
+   * @param loss probability of dropping each message, from 0.0 to 1.0
+   * @param bandwidth per-link bytes per second, or zero for no limit
+   * @param seed seed for the loss randomizer
+   */
+  LocalMessageSwitch(double latency, double loss, long bandwidth, long seed) {
+    this.latencyNanos = (long) (Math.max(0.0, latency) * 1000000);
+    this.loss = loss;
+    this.bandwidth = bandwidth;
+    this.random = new Random(seed);
+  }
+
+  /** @return a message switch for the named node */
+  MessageSwitchService getMessageSwitchService(String name) {
+    final MessageAddress addr = MessageAddress.getMessageAddress(name);
+    synchronized (handlers) {
+      if (!handlers.containsKey(addr)) {
+        handlers.put(addr, new ArrayList());
+      }
+    }
+    return new MessageSwitchService() {
+      public void addMessageHandler(MessageHandler mh) {
+        synchronized (handlers) {
+          ((List) handlers.get(addr)).add(mh);
+        }
+      }
+      public void sendMessage(Message m) {
+        send(m);
+      }
+      public MessageAddress getMessageAddress() {
+        return addr;
+      }
+    };
+  }
+
+  /** @return the number of messages sent by all nodes */
+  synchronized long getSentCount() {
+    return sent;
+  }
+
+  /** @return the number of serialized bytes sent by all nodes */
+  synchronized long getSentBytes() {
+    return bytes;
+  }
+
+  /** @return the number of messages dropped by loss or bad targets */
+  synchronized long getDroppedCount() {
+    return dropped;
+  }
+
+  /** @return the number of messages that a handler failed to process */
+  synchronized long getErrorCount() {
+    return errors;
+  }
+
+  /** @return the most recent handler failure, or null if none */
+  synchronized RuntimeException getLastError() {
+    return lastError;
+  }
+
+  /** Stop the delivery threads, dropping any queued messages */
+  void stop() {
+    synchronized (links) {
+      for (Iterator iter = links.values().iterator(); iter.hasNext(); ) {
+        ((Link) iter.next()).stop();
+      }
+      links.clear();
+    }
+  }
+
+  private void send(Message m) {
+    byte[] b;
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(bos);
+      oos.writeObject(m);
+      oos.close();
+      b = bos.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to serialize "+m, e);
+    }
+
+    boolean drop;
+    synchronized (this) {
+      sent++;
+      bytes += b.length;
+      drop = (loss > 0.0 && random.nextDouble() < loss);
+      if (drop) {
+        dropped++;
+      }
+    }
+
+    MessageAddress source = m.getOriginator();
+    MessageAddress target = m.getTarget();
+    String key = source+" "+target;
+    Link link;
+    synchronized (links) {
+      link = (Link) links.get(key);
+      if (link == null) {
+        link = new Link(key, target);
+        links.put(key, link);
+      }
+    }
+    // a dropped message still uses the link's bandwidth
+    link.add(b, drop);
+  }
+
+  private void deliver(MessageAddress target, byte[] b) {
+    Message m;
+    try {
+      ObjectInputStream ois =
+        new ObjectInputStream(new ByteArrayInputStream(b));
+      m = (Message) ois.readObject();
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to deserialize message", e);
+    }
+
+    Object[] a;
+    synchronized (handlers) {
+      List l = (List) handlers.get(target);
+      a = (l == null ? null : l.toArray());
+    }
+    if (a != null) {
+      for (int i = 0; i < a.length; i++) {
+        if (((MessageHandler) a[i]).handleMessage(m)) {
+          return;
+        }
+      }
+    }
+    synchronized (this) {
+      dropped++;
+    }
+  }
+
+  /** A one-way link with its own delivery thread */
+  private final class Link implements Runnable {
+
+    private final MessageAddress target;
+    private final Thread thread;
+
+    // FIFO of Object[] {Long deliverNanos, byte[] or null if dropped}
+    private final LinkedList queue = new LinkedList();
+    // when the link finishes sending the last queued message
+    private long busyUntil;
+    private boolean stopped;
+
+    Link(String name, MessageAddress target) {
+      this.target = target;
+      this.thread = new Thread(this, "mts link "+name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void add(byte[] b, boolean drop) {
+      long now = System.nanoTime();
+      synchronized (queue) {
+        long t = Math.max(now, busyUntil);
+        if (bandwidth > 0) {
+          t += (b.length * 1000000000L) / bandwidth;
+        }
+        busyUntil = t;
+        queue.add(new Object[] {new Long(t + latencyNanos), (drop ? null : b)});
+        queue.notify();
+      }
+    }
+
+    void stop() {
+      synchronized (queue) {
+        stopped = true;
+        queue.clear();
+        queue.notify();
+      }
+    }
+
+    public void run() {
+      while (true) {
+        byte[] b;
+        synchronized (queue) {
+          while (true) {
+            if (stopped) return;
+            if (!queue.isEmpty()) {
+              Object[] head = (Object[]) queue.getFirst();
+              long nanos =
+                ((Long) head[0]).longValue() - System.nanoTime();
+              if (nanos <= 0) {
+                queue.removeFirst();
+                b = (byte[]) head[1];
+                break;
+              }
+              try {
+                queue.wait(nanos / 1000000, (int) (nanos % 1000000));
+              } catch (InterruptedException ie) {
+                return;
+              }
+            } else {
+              try {
+                queue.wait();
+              } catch (InterruptedException ie) {
+                return;
+              }
+            }
+          }
+        }
+        if (b != null) {
+          try {
+            deliver(target, b);
+          } catch (RuntimeException e) {
+            // keep delivering, our caller can check "getLastError()"
+            synchronized (LocalMessageSwitch.this) {
+              errors++;
+              lastError = e;
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the {@link MpscQueue} order and its empty-to-non-empty signal.
+ */
+public class MpscQueueTest extends TestCase {
+
+  public void testFifo() {
+    MpscQueue q = new MpscQueue();
+    assertNull(q.poll());
+    assertEquals(0, q.size());
+
+    assertTrue(q.add("a"));
+    assertFalse(q.add("b"));
+    assertFalse(q.add("c"));
+    assertEquals(3, q.size());
+
+    assertEquals("a", q.poll());
+    assertEquals("b", q.poll());
+    assertEquals(1, q.size());
+    // not empty yet, so no wake
+    assertFalse(q.add("d"));
+    assertEquals("c", q.poll());
+    assertEquals("d", q.poll());
+    assertNull(q.poll());
+    assertEquals(0, q.size());
+
+    // empty again, so the next add wakes the consumer
+    assertTrue(q.add("e"));
+    assertEquals("e", q.poll());
+  }
+
+  public void testManyProducers() throws Exception {
+    final int producers = 8;
+    final int perProducer = 10000;
+    final MpscQueue q = new MpscQueue();
+    final AtomicInteger wakes = new AtomicInteger();
+    final CountDownLatch go = new CountDownLatch(1);
+    Thread[] threads = new Thread[producers];
+    for (int i = 0; i < producers; i++) {
+      final int id = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            go.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int k = 0; k < perProducer; k++) {
+            if (q.add(new int[] {id, k})) {
+              wakes.incrementAndGet();
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    go.countDown();
+    for (int i = 0; i < producers; i++) {
+      threads[i].join();
+    }
+
+    // the consumer didn't run, so only the very first add saw an empty
+    // queue
+    assertEquals(1, wakes.get());
+    assertEquals(producers * perProducer, q.size());
+
+    // each producer's items are in its order
+    int[] next = new int[producers];
+    for (int n = 0; n < producers * perProducer; n++) {
+      int[] a = (int[]) q.poll();
+      assertNotNull(a);
+      assertEquals(next[a[0]], a[1]);
+      next[a[0]]++;
+    }
+    assertNull(q.poll());
+    for (int i = 0; i < producers; i++) {
+      assertEquals(perProducer, next[i]);
+    }
+  }
+}
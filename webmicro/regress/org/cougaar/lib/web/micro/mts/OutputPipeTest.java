@@ -0,0 +1,221 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the {@link OutputPipe} flow control and segment reuse.
+ * <p>
+ * We use a nagle of -1 and inline threads, so every write is delivered
+ * in the writer's thread before the write returns or blocks.
+ */
+public class OutputPipeTest extends TestCase {
+
+  private Stubs.Threads threads;
+  private Recorder recorder;
+
+  protected void setUp() {
+    threads = new Stubs.Threads(true);
+    recorder = new Recorder();
+  }
+
+  public void testWaitsForCreditThenGrant() throws Exception {
+    OutputPipe op = newPipe("10", "10000");
+    Writer w = new Writer(op.getOutputStream(), 25);
+    w.start();
+
+    // the writer sends our window, then blocks
+    awaitBlocked(w, 10);
+
+    op.grant(10);
+    awaitBlocked(w, 20);
+
+    op.grant(10);
+    w.join(10000);
+    assertFalse(w.isAlive());
+    assertNull(w.error);
+    assertEquals(25, recorder.getBytes());
+  }
+
+  public void testCreditTimeout() throws Exception {
+    OutputPipe op = newPipe("4", "50");
+    Writer w = new Writer(op.getOutputStream(), 8);
+    w.start();
+    w.join(10000);
+    assertFalse(w.isAlive());
+    assertTrue(w.error instanceof IllegalStateException);
+    assertEquals(4, recorder.getBytes());
+  }
+
+  public void testUnlimitedGrant() throws Exception {
+    OutputPipe op = newPipe("10", "10000");
+    Writer w = new Writer(op.getOutputStream(), 100000);
+    w.start();
+    awaitBlocked(w, 10);
+    op.grant(Granter.UNLIMITED);
+    w.join(10000);
+    assertNull(w.error);
+    assertEquals(100000, recorder.getBytes());
+  }
+
+  public void testNoFlowControlWithoutPeerWindow() throws Exception {
+    // e.g. a peer that predates flow control, which never grants
+    OutputPipe op = newPipe("0", "50");
+    Writer w = new Writer(op.getOutputStream(), 1000000);
+    w.run();
+    assertNull(w.error);
+    assertEquals(1000000, recorder.getBytes());
+  }
+
+  public void testPeerWindowCountsEarlierWrites() throws Exception {
+    OutputPipe op = newPipe("0", "10000");
+    op.getOutputStream().write(new byte[30]);
+    assertEquals(30, recorder.getBytes());
+
+    // the peer's window is 40, so we have 10 bytes left
+    op.setPeerWindow(40);
+    Writer w = new Writer(op.getOutputStream(), 20);
+    w.start();
+    awaitBlocked(w, 40);
+
+    // a duplicate advertisement doesn't add credit
+    op.setPeerWindow(40);
+    Thread.sleep(20);
+    assertEquals(40, recorder.getBytes());
+
+    op.grant(10);
+    w.join(10000);
+    assertNull(w.error);
+    assertEquals(50, recorder.getBytes());
+  }
+
+  public void testFullSegmentsAreReturned() throws Exception {
+    checkSegmentsReturned(false);
+  }
+
+  public void testCompressedSegmentsAreReturned() throws Exception {
+    checkSegmentsReturned(true);
+  }
+
+  private void checkSegmentsReturned(boolean compress) throws Exception {
+    // a segment size that no other test uses, so we own its pool
+    int size = (compress ? 331 : 337);
+    Map options = new HashMap();
+    options.put("maxSegmentSize", Integer.toString(size));
+    options.put("compress", Boolean.toString(compress));
+    options.put("compressThreshold", "1");
+    OutputPipe op = newPipe("0", "10000", options);
+    op.getOutputStream().write(new byte[3 * size]);
+    op.getOutputStream().close();
+    assertEquals(compress ? 0 : 3 * size, recorder.getBytes());
+
+    // the messages hold copies, so the segment is back in the pool
+    SegmentPool pool = SegmentPool.getInstance(size);
+    assertEquals(1, pool.getIdleCount());
+    byte[] b = pool.take();
+    assertFalse(recorder.contains(b));
+  }
+
+  private OutputPipe newPipe(String window, String creditTimeout) {
+    return newPipe(window, creditTimeout, new HashMap());
+  }
+
+  private OutputPipe newPipe(
+      String window, String creditTimeout, Map options) {
+    options.put("nagle", "-1");
+    options.put("window", window);
+    options.put("creditTimeout", creditTimeout);
+    return new OutputPipe(
+        "test", Stubs.getLoggingService(), threads.getThreadService(),
+        recorder, null, options);
+  }
+
+  // wait for the writer to send the expected bytes and block for credit
+  private void awaitBlocked(Thread t, int bytes) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (recorder.getBytes() != bytes ||
+        t.getState() != Thread.State.TIMED_WAITING) {
+      assertTrue("writer never blocked", t.isAlive());
+      assertTrue("timeout", System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  private static final class Writer extends Thread {
+    private final OutputStream out;
+    private final int len;
+    volatile Throwable error;
+
+    Writer(OutputStream out, int len) {
+      this.out = out;
+      this.len = len;
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        out.write(new byte[len]);
+      } catch (Throwable e) {
+        error = e;
+      }
+    }
+  }
+
+  private static final class Recorder implements Deliverer {
+    private final List data = new ArrayList();
+
+    public synchronized void deliver(int counter, Map meta, List l) {
+      data.addAll(l);
+    }
+
+    synchronized boolean contains(Object o) {
+      for (int i = 0; i < data.size(); i++) {
+        if (data.get(i) == o) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    synchronized int getBytes() {
+      int n = 0;
+      for (int i = 0; i < data.size(); i++) {
+        Object o = data.get(i);
+        if (o instanceof byte[]) {
+          n += ((byte[]) o).length;
+        }
+      }
+      return n;
+    }
+  }
+}
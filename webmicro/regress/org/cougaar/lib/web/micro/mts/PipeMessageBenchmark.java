@@ -0,0 +1,158 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.micro.mts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.util.UID;
+
+/**
+ * A command-line benchmark that compares the standard and compact
+ * {@link PipeMessage} serialization, in bytes on the wire and in
+ * serialize plus deserialize time.
+ * <p>
+ * Usage is:<pre>
+ *   java org.cougaar.lib.web.micro.mts.PipeMessageBenchmark [ITERATIONS]
+ * </pre>
+ */
+public final class PipeMessageBenchmark {
+
+  private PipeMessageBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+
+    MessageAddress source = MessageAddress.getMessageAddress("NodeA");
+    MessageAddress target = MessageAddress.getMessageAddress("NodeB");
+    UID sessionId = new UID("NodeA", 1234567);
+
+    Map metaData = new HashMap();
+    metaData.put("serverURL", "http://localhost:8800/$NodeB");
+    metaData.put("contextPath", "");
+    metaData.put("clientAddr", "127.0.0.1");
+    List request = new ArrayList();
+    request.add(
+        ("GET /$NodeB/tasks?format=html HTTP/1.0\r\n"+
+         "Host: localhost:8800\r\n"+
+         "User-Agent: Mozilla/5.0\r\n"+
+         "Accept: text/html\r\n"+
+         "\r\n").getBytes());
+    request.add(Tokens.FLUSH);
+    request.add(Tokens.CLOSE);
+
+    List response = new ArrayList();
+    for (int i = 0; i < 4; i++) {
+      response.add(new byte[4096]);
+      response.add(Tokens.FLUSH);
+    }
+
+    PipeMessage[] messages = {
+      new PipeMessage(
+          source, target, "server", sessionId, 0,
+          Collections.unmodifiableMap(metaData),
+          Collections.unmodifiableList(request)),
+      new PipeMessage(
+          target, source, "client", sessionId, 3,
+          null,
+          Collections.unmodifiableList(response)),
+      new PipeMessage(
+          target, source, "client", sessionId, 32768),
+    };
+    String[] names = {"request", "response", "grant"};
+
+    // warm up
+    for (int j = 0; j < 2; j++) {
+      PipeMessage.setCompact(j == 0);
+      for (int i = 0; i < messages.length; i++) {
+        run(messages[i], iterations / 10);
+      }
+    }
+
+    System.out.println(
+        "message    encoding      bytes   usec/op");
+    for (int i = 0; i < messages.length; i++) {
+      for (int j = 0; j < 2; j++) {
+        boolean compact = (j == 1);
+        PipeMessage.setCompact(compact);
+        int bytes = serialize(messages[i]).length;
+        long nanos = run(messages[i], iterations);
+        System.out.println(
+            pad(names[i], 11)+
+            pad(compact ? "compact" : "standard", 10)+
+            lpad(Integer.toString(bytes), 9)+
+            lpad(Double.toString(
+                Math.round(nanos / 10.0 / iterations) / 100.0), 10));
+      }
+    }
+    PipeMessage.setCompact(true);
+  }
+
+  // return the total nanos to serialize and deserialize n times
+  private static long run(PipeMessage pm, int n) throws Exception {
+    long t = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      byte[] b = serialize(pm);
+      ObjectInputStream ois = 
+        new ObjectInputStream(new ByteArrayInputStream(b));
+      PipeMessage pm2 = (PipeMessage) ois.readObject();
+      if (pm2.getData().size() != pm.getData().size()) {
+        throw new RuntimeException("Mismatch: "+pm+" != "+pm2);
+      }
+    }
+    return System.nanoTime() - t;
+  }
+
+  private static byte[] serialize(PipeMessage pm) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bos);
+    oos.writeObject(pm);
+    oos.close();
+    return bos.toByteArray();
+  }
+
+  private static String pad(String s, int n) {
+    StringBuffer buf = new StringBuffer(s);
+    while (buf.length() < n) buf.append(' ');
+    return buf.toString();
+  }
+
+  private static String lpad(String s, int n) {
+    StringBuffer buf = new StringBuffer();
+    while (buf.length() + s.length() < n) buf.append(' ');
+    return buf.append(s).toString();
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.util.UID;
+
+/**
+ * Test the {@link SessionTable} per-peer limit, its memory of
+ * recently closed sessions, and the segments it holds for sessions that
+ * haven't opened yet.
+ */
+public class SessionTableTest extends TestCase {
+
+  private static final MessageAddress PEER =
+    MessageAddress.getMessageAddress("peer");
+
+  public void testMaxPerPeer() {
+    SessionTable t = newTable("2", "0");
+    assertTrue(t.add(new UID("a", 1), PEER, new InputPipe()));
+    assertTrue(t.add(new UID("a", 2), PEER, new InputPipe()));
+    assertFalse(t.add(new UID("a", 3), PEER, new InputPipe()));
+    t.remove(new UID("a", 1));
+    assertTrue(t.add(new UID("a", 3), PEER, new InputPipe()));
+    assertEquals(2, t.size());
+  }
+
+  public void testRecentlyClosed() throws Exception {
+    // an idle timeout of 40 millis gives a reaper interval of 20 millis
+    SessionTable t = newTable("0", "40");
+    UID id = new UID("a", 1);
+    assertTrue(t.add(id, PEER, new InputPipe()));
+    assertFalse(t.isRecentlyClosed(id));
+
+    t.remove(id);
+    assertNull(t.getInputPipe(id));
+    assertTrue(t.isRecentlyClosed(id));
+    assertFalse(t.isRecentlyClosed(new UID("a", 2)));
+
+    // e.g. a rejected session that was never added
+    UID rejected = new UID("a", 3);
+    t.markClosed(rejected);
+    assertTrue(t.isRecentlyClosed(rejected));
+    assertEquals(2, t.getRecentlyClosedCount());
+
+    // we forget them after the reaper interval
+    Thread.sleep(50);
+    assertFalse(t.isRecentlyClosed(id));
+    assertFalse(t.isRecentlyClosed(rejected));
+    assertEquals(0, t.getRecentlyClosedCount());
+  }
+
+  public void testEarlySegments() throws Exception {
+    SessionTable t = newTable("0", "0");
+    UID id = new UID("a", 1);
+
+    // segment 1 arrives before segment 0, e.g. over a multipath transport
+    assertTrue(t.holdEarly(id, message(id, 1, "cd", Tokens.CLOSE)));
+    assertEquals(1, t.getEarlyCount());
+
+    // segment 0 opens the session, then the server delivers the held ones
+    InputPipe ip = new InputPipe(null, 0, 4, 10000);
+    assertTrue(t.add(id, PEER, ip));
+    PipeMessage first = message(id, 0, "ab", null);
+    ip.deliver(0, first.getMetaData(), first.getData());
+    List l = t.takeEarly(id);
+    assertEquals(1, l.size());
+    for (int i = 0; i < l.size(); i++) {
+      PipeMessage pm = (PipeMessage) l.get(i);
+      ip.deliver(pm.getCounter(), pm.getMetaData(), pm.getData());
+    }
+    assertNull(t.takeEarly(id));
+    assertEquals(0, t.getEarlyCount());
+    assertEquals("abcd", readAll(ip.getInputStream()));
+  }
+
+  public void testEarlySegmentLimits() throws Exception {
+    Map options = new HashMap();
+    options.put("reorderWindow", "2");
+    options.put("gapTimeout", "40");
+    SessionTable t = new SessionTable(Stubs.getLoggingService(), options);
+    UID id = new UID("a", 1);
+
+    // beyond the reorder window
+    assertFalse(t.holdEarly(id, message(id, 3, "x", null)));
+    assertTrue(t.holdEarly(id, message(id, 1, "x", null)));
+    assertTrue(t.holdEarly(id, message(id, 2, "x", null)));
+    // too many held segments
+    assertFalse(t.holdEarly(id, message(id, 2, "x", null)));
+    assertEquals(2, t.getEarlyCount());
+
+    // closing the session drops them
+    UID closed = new UID("a", 2);
+    assertTrue(t.holdEarly(closed, message(closed, 1, "x", null)));
+    t.markClosed(closed);
+    assertEquals(2, t.getEarlyCount());
+
+    // they expire after the gap timeout
+    Thread.sleep(50);
+    assertEquals(0, t.getEarlyCount());
+    assertNull(t.takeEarly(id));
+  }
+
+  private static PipeMessage message(
+      UID id, int counter, String s, Object token) {
+    List l = new ArrayList();
+    l.add(s.getBytes());
+    if (token != null) {
+      l.add(token);
+    }
+    return new PipeMessage(
+        PEER, PEER, "test", id, counter,
+        (counter == 0 ? Collections.singletonMap("k", "v") : null),
+        l);
+  }
+
+  private static String readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] b = new byte[16];
+    while (true) {
+      int n = in.read(b);
+      if (n < 0) break;
+      bos.write(b, 0, n);
+    }
+    return new String(bos.toByteArray());
+  }
+
+  private static SessionTable newTable(String maxPerPeer, String idle) {
+    Map options = new HashMap();
+    options.put("maxSessionsPerPeer", maxPerPeer);
+    options.put("idleTimeout", idle);
+    options.put("sessionTimeout", "0");
+    return new SessionTable(Stubs.getLoggingService(), options);
+  }
+}
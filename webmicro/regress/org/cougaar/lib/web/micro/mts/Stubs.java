@@ -0,0 +1,229 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+
+/**
+ * Stub logging and thread services for our unit tests.
+ * <p>
+ * These are dynamic proxies, like the {@link TunnelBenchmark} services,
+ * but the threads are deterministic: a started {@link Schedulable} either
+ * runs inline in the caller's thread or waits until the test calls
+ * {@link Threads#runPending}.
+ */
+final class Stubs {
+
+  private Stubs() {}
+
+  /** @return a logger that discards everything */
+  static LoggingService getLoggingService() {
+    return (LoggingService) stub(LoggingService.class,
+        new InvocationHandler() {
+          public Object invoke(Object p, Method m, Object[] args) {
+            return defaultValue(m);
+          }
+        });
+  }
+
+  /**
+   * A stub thread service that records every "getThread" and "start".
+   */
+  static final class Threads {
+
+    private final boolean inline;
+    private final List threads = new ArrayList();
+    private final List pending = new ArrayList();
+    private final ThreadService threadService;
+
+    /**
+     * @param inline if true then "start" runs the Runnable in the caller's
+     *   thread, otherwise it's queued until {@link #runPending}
+     */
+    Threads(boolean inline) {
+      this.inline = inline;
+      this.threadService = (ThreadService) stub(ThreadService.class,
+          new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+              if (m.getName().equals("getThread")) {
+                return newThread((Runnable) args[1]);
+              }
+              return defaultValue(m);
+            }
+          });
+    }
+
+    ThreadService getThreadService() {
+      return threadService;
+    }
+
+    /** @return the number of "getThread" calls */
+    synchronized int getThreadCount() {
+      return threads.size();
+    }
+
+    /** @return the number of "start" calls on all our threads */
+    synchronized int getStartCount() {
+      int n = 0;
+      for (int i = 0; i < threads.size(); i++) {
+        n += ((StubThread) threads.get(i)).starts;
+      }
+      return n;
+    }
+
+    /** @return the number of started threads that haven't run yet */
+    synchronized int getPendingCount() {
+      return pending.size();
+    }
+
+    /**
+     * Run the first started thread.
+     *
+     * @return false if there were no started threads
+     */
+    boolean runNext() {
+      StubThread t;
+      synchronized (this) {
+        if (pending.isEmpty()) return false;
+        t = (StubThread) pending.remove(0);
+      }
+      t.run();
+      return true;
+    }
+
+    /**
+     * Run the started threads, including any that they start.
+     *
+     * @return the number of runs
+     */
+    int runPending() {
+      int n = 0;
+      while (runNext()) {
+        n++;
+      }
+      return n;
+    }
+
+    private Schedulable newThread(Runnable r) {
+      final StubThread t = new StubThread(r);
+      synchronized (this) {
+        threads.add(t);
+      }
+      return (Schedulable) stub(Schedulable.class, new InvocationHandler() {
+        public Object invoke(Object p, Method m, Object[] args) {
+          if (m.getName().equals("start")) {
+            start(t);
+          }
+          return defaultValue(m);
+        }
+      });
+    }
+
+    private void start(StubThread t) {
+      synchronized (this) {
+        t.starts++;
+        if (!inline) {
+          // like a Schedulable, a second start before the run is a no-op
+          if (!pending.contains(t)) {
+            pending.add(t);
+          }
+          return;
+        }
+      }
+      t.run();
+    }
+
+    private static final class StubThread {
+      private final Runnable runnable;
+      private boolean running;
+      private boolean restart;
+      int starts;
+
+      StubThread(Runnable runnable) {
+        this.runnable = runnable;
+      }
+
+      // like a Schedulable, a start while running reruns when we're done
+      void run() {
+        synchronized (this) {
+          if (running) {
+            restart = true;
+            return;
+          }
+          running = true;
+        }
+        while (true) {
+          runnable.run();
+          synchronized (this) {
+            if (!restart) {
+              running = false;
+              return;
+            }
+            restart = false;
+          }
+        }
+      }
+    }
+  }
+
+  private static Object stub(Class cl, final InvocationHandler h) {
+    InvocationHandler ih = new InvocationHandler() {
+      public Object invoke(
+          Object p, Method m, Object[] args) throws Throwable {
+        if (m.getDeclaringClass() == Object.class) {
+          String name = m.getName();
+          if (name.equals("equals")) {
+            return Boolean.valueOf(p == args[0]);
+          } else if (name.equals("hashCode")) {
+            return new Integer(System.identityHashCode(p));
+          }
+          return "stub";
+        }
+        return h.invoke(p, m, args);
+      }
+    };
+    return Proxy.newProxyInstance(
+        Stubs.class.getClassLoader(), new Class[] {cl}, ih);
+  }
+
+  private static Object defaultValue(Method m) {
+    Class cl = m.getReturnType();
+    return
+      (cl == Boolean.TYPE ? (Object) Boolean.FALSE :
+       cl == Integer.TYPE ? (Object) new Integer(0) :
+       cl == Long.TYPE ? (Object) new Long(0) :
+       cl == Double.TYPE ? (Object) new Double(0) :
+       null);
+  }
+}
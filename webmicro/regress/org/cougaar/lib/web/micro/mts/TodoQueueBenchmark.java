@@ -0,0 +1,203 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A command-line benchmark that compares the original lock-based
+ * {@link TodoQueue} design with the lock-free {@link MpscQueue} design,
+ * with multiple producer threads and one consumer thread.
+ * <p>
+ * The consumer is a plain thread instead of a ThreadService Schedulable,
+ * so we count the "start" calls that would wake the Schedulable.  The
+ * locked design starts the thread on every add, while the lock-free
+ * design only starts it when the queue transitions from empty.
+ * <p>
+ * Each configuration is run several times after a warm-up, and we
+ * report the median time, since a single run is easily skewed by the
+ * JIT or the garbage collector.  For stable numbers, run one
+ * configuration per JVM, e.g. with "-XX:+UseSerialGC".
+ * <p>
+ * Usage is:<pre>
+ *   java org.cougaar.lib.web.micro.mts.TodoQueueBenchmark [ITEMS [PRODUCERS [TRIALS]]]
+ * </pre>
+ */
+public final class TodoQueueBenchmark {
+
+  private TodoQueueBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int items = (args.length > 0 ? Integer.parseInt(args[0]) : 2000000);
+    int producers = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+    int trials = (args.length > 2 ? Integer.parseInt(args[2]) : 5);
+
+    // warm up
+    for (int j = 0; j < 3; j++) {
+      run(new Locked(), items / 10, producers);
+      run(new LockFree(), items / 10, producers);
+    }
+
+    System.out.println(
+        "queue       producers   nsec/item     starts");
+    for (int p = 1; p <= producers; p <<= 1) {
+      for (int j = 0; j < 2; j++) {
+        long[] a = new long[trials];
+        Impl impl = null;
+        for (int k = 0; k < trials; k++) {
+          impl = (j == 0 ? (Impl) new Locked() : new LockFree());
+          a[k] = run(impl, items, p);
+        }
+        Arrays.sort(a);
+        long nanos = a[trials / 2];
+        System.out.println(
+            pad(j == 0 ? "locked" : "lock-free", 12)+
+            lpad(Integer.toString(p), 9)+
+            lpad(Double.toString(
+                Math.round(nanos * 100.0 / items) / 100.0), 12)+
+            lpad(Long.toString(impl.starts), 11));
+      }
+    }
+  }
+
+  // return the total nanos to add and consume the items
+  private static long run(
+      final Impl impl, int items, int producers) throws Exception {
+    final int perProducer = items / producers;
+    final int total = perProducer * producers;
+    final Object item = new Object();
+    Thread consumer = new Thread() {
+      public void run() {
+        int n = 0;
+        while (n < total) {
+          int count = impl.drain();
+          if (count == 0) {
+            Thread.yield();
+          }
+          n += count;
+        }
+      }
+    };
+    Thread[] threads = new Thread[producers];
+    for (int i = 0; i < producers; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int k = 0; k < perProducer; k++) {
+            impl.add(item);
+          }
+        }
+      };
+    }
+    long t = System.nanoTime();
+    consumer.start();
+    for (int i = 0; i < producers; i++) {
+      threads[i].start();
+    }
+    for (int i = 0; i < producers; i++) {
+      threads[i].join();
+    }
+    consumer.join();
+    return System.nanoTime() - t;
+  }
+
+  private abstract static class Impl {
+    private final Object startLock = new Object();
+    long starts;
+    abstract void add(Object o);
+    /** @return the number of consumed items */
+    abstract int drain();
+    // model the Schedulable "start", which takes a lock
+    final void start() {
+      synchronized (startLock) {
+        starts++;
+      }
+    }
+  }
+
+  /** The original TodoQueue design */
+  private static final class Locked extends Impl {
+    private final List todo = new ArrayList();
+    private final List tmp = new ArrayList();
+    void add(Object o) {
+      synchronized (todo) {
+        todo.add(o);
+      }
+      start();
+    }
+    int drain() {
+      synchronized (todo) {
+        if (todo.isEmpty()) return 0;
+        tmp.addAll(todo);
+        todo.clear();
+      }
+      int n = tmp.size();
+      for (int i = 0; i < n; i++) {
+        consume(tmp.get(i));
+      }
+      tmp.clear();
+      return n;
+    }
+  }
+
+  /** The current TodoQueue design */
+  private static final class LockFree extends Impl {
+    private final MpscQueue todo = new MpscQueue();
+    void add(Object o) {
+      if (todo.add(o)) {
+        start();
+      }
+    }
+    int drain() {
+      int n = 0;
+      for (; n < TodoQueue.DEFAULT_BATCH_SIZE; n++) {
+        Object o = todo.poll();
+        if (o == null) break;
+        consume(o);
+      }
+      return n;
+    }
+  }
+
+  private static void consume(Object o) {
+    if (o == null) {
+      throw new NullPointerException();
+    }
+  }
+
+  private static String pad(String s, int n) {
+    StringBuffer buf = new StringBuffer(s);
+    while (buf.length() < n) buf.append(' ');
+    return buf.toString();
+  }
+
+  private static String lpad(String s, int n) {
+    StringBuffer buf = new StringBuffer();
+    while (buf.length() + s.length() < n) buf.append(' ');
+    return buf.append(s).toString();
+  }
+}
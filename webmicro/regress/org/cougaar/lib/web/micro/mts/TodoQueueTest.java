@@ -0,0 +1,125 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.cougaar.core.service.ThreadService;
+
+/**
+ * Test that a {@link TodoQueue} only starts its thread when the queue
+ * becomes non-empty, and drains in bounded batches.
+ * <p>
+ * Our stub threads don't run until we call "runNext", so the tests are
+ * deterministic.
+ */
+public class TodoQueueTest extends TestCase {
+
+  private Stubs.Threads threads;
+  private List done;
+
+  protected void setUp() {
+    threads = new Stubs.Threads(false);
+    done = new ArrayList();
+  }
+
+  public void testWakeOnlyWhenEmpty() {
+    TodoQueue q = newQueue(TodoQueue.DEFAULT_BATCH_SIZE);
+    for (int i = 0; i < 10; i++) {
+      q.add(new Integer(i));
+    }
+    assertEquals(1, threads.getThreadCount());
+    assertEquals(1, threads.getStartCount());
+    assertEquals(10, q.size());
+
+    assertEquals(1, threads.runPending());
+    assertEquals(10, done.size());
+    assertEquals(0, q.size());
+    // drained, so no requeue
+    assertEquals(1, threads.getStartCount());
+
+    q.add(new Integer(10));
+    assertEquals(2, threads.getStartCount());
+    assertEquals(1, threads.runPending());
+    assertEquals(11, done.size());
+    for (int i = 0; i < done.size(); i++) {
+      assertEquals(new Integer(i), done.get(i));
+    }
+  }
+
+  public void testBatchDrain() {
+    TodoQueue q = newQueue(64);
+    for (int i = 0; i < 150; i++) {
+      q.add(new Integer(i));
+    }
+    assertEquals(1, threads.getStartCount());
+
+    // each run does one batch, then requeues itself if there's more
+    assertTrue(threads.runNext());
+    assertEquals(64, done.size());
+    assertEquals(1, threads.getPendingCount());
+
+    assertTrue(threads.runNext());
+    assertEquals(128, done.size());
+    assertEquals(1, threads.getPendingCount());
+
+    // items added while we're busy don't start another run
+    q.add(new Integer(150));
+    assertEquals(1, threads.getPendingCount());
+
+    assertTrue(threads.runNext());
+    assertEquals(151, done.size());
+    assertEquals(0, threads.getPendingCount());
+    assertFalse(threads.runNext());
+    assertEquals(3, threads.getStartCount());
+  }
+
+  public void testFailureDoesNotStopBatch() {
+    TodoQueue q = newQueue(TodoQueue.DEFAULT_BATCH_SIZE);
+    q.add(new Integer(0));
+    q.add("fail");
+    q.add(new Integer(2));
+    threads.runPending();
+    assertEquals(2, done.size());
+    assertEquals(new Integer(2), done.get(1));
+  }
+
+  private TodoQueue newQueue(int batchSize) {
+    return new TodoQueue(
+        Stubs.getLoggingService(), threads.getThreadService(),
+        "test", ThreadService.BEST_EFFORT_LANE, batchSize) {
+      protected void doNow(Object o) {
+        if ("fail".equals(o)) {
+          throw new RuntimeException("test failure");
+        }
+        done.add(o);
+      }
+    };
+  }
+}
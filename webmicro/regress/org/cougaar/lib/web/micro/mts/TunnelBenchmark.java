@@ -0,0 +1,826 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.service.UIDService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.core.util.UID;
+import org.cougaar.lib.web.micro.base.AnnotatedInputStream;
+import org.cougaar.lib.web.micro.base.AnnotatedOutputStream;
+import org.cougaar.lib.web.micro.base.Connection;
+import org.cougaar.lib.web.micro.base.LocalClientFactory;
+import org.cougaar.lib.web.micro.base.LocalServerFactory;
+import org.cougaar.lib.web.micro.base.ServletEngineImpl;
+import org.cougaar.lib.web.micro.base.ServletTunnel;
+
+/**
+ * A command-line benchmark that measures tunnelled request latency and
+ * throughput without a Cougaar society.
+ * <p>
+ * A {@link MessagingClientFactory} and {@link MessagingServerFactory} are
+ * wired together through a {@link LocalMessageSwitch}, with stub thread,
+ * UID and logging services.  The client threads send HTTP requests
+ * through a {@link LocalClientFactory} to a front servlet engine, which
+ * calls {@link ServletTunnel#tunnel} like our {@link MessagingServletTunnel}
+ * does, and the tunnelled engine runs a synthetic workload servlet.
+ * <p>
+ * The workloads are small GETs, first from one thread and then from
+ * several, large streamed GETs, and a batch of concurrently open
+ * sessions, which are held while we measure the heap to estimate the
+ * per-session memory.
+ * <p>
+ * Usage is:<pre>
+ *   java org.cougaar.lib.web.micro.mts.TunnelBenchmark [OPTION]...
+ * </pre>
+ * where the options are:<pre>
+ *   -requests N     small requests per run, defaults to 2000
+ *   -threads N      concurrent client threads, defaults to 8
+ *   -size N         bytes per large response, defaults to 1048576
+ *   -sessions N     sessions to hold open, defaults to 50
+ *   -latency MS     one-way message latency, defaults to 0
+ *   -loss P         message loss probability, defaults to 0.0
+ *   -bandwidth N    per-link bytes per second, or 0 for no limit
+ *   -verbose        print the tunnel's warn, info and debug logging
+ *   NAME=VALUE      a tunnel option, e.g. "compress=false"
+ * </pre>
+ * The tunnel options are passed to both factories, e.g. the "nagle"
+ * delay, and the "firstByteTimeout" and "readTimeout" apply to the
+ * front engine's {@link ServletTunnel#tunnel} call.  These timeouts
+ * default to 10 seconds, so lost messages show up as errors instead of
+ * stalls.
+ */
+public final class TunnelBenchmark {
+
+  private static final String FRONT_NAME = "tunnel benchmark";
+  private static final String CLIENT_NODE = "BenchmarkClient";
+  private static final String ENGINE_NODE = "BenchmarkEngine";
+
+  private static final long DEFAULT_TIMEOUT = 10000;
+
+  private static final int SMALL_SIZE = 256;
+
+  private static final Map FRONT_META_DATA;
+  static {
+    Map m = new HashMap();
+    m.put("serverURL", "http://localhost:8800");
+    m.put("contextPath", "");
+    m.put("clientAddr", "127.0.0.1");
+    FRONT_META_DATA = m;
+  }
+
+  private final LocalClientFactory front = new LocalClientFactory();
+
+  private TunnelBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int requests = 2000;
+    int threads = 8;
+    int size = 1048576;
+    int sessions = 50;
+    double latency = 0.0;
+    double loss = 0.0;
+    long bandwidth = 0;
+    boolean verbose = false;
+    Map options = new HashMap();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String s = args[i];
+        if (s.equals("-verbose")) {
+          verbose = true;
+        } else if (s.startsWith("-") && i + 1 < args.length) {
+          String v = args[++i];
+          if (s.equals("-requests")) {
+            requests = Integer.parseInt(v);
+          } else if (s.equals("-threads")) {
+            threads = Integer.parseInt(v);
+          } else if (s.equals("-size")) {
+            size = Integer.parseInt(v);
+          } else if (s.equals("-sessions")) {
+            sessions = Integer.parseInt(v);
+          } else if (s.equals("-latency")) {
+            latency = Double.parseDouble(v);
+          } else if (s.equals("-loss")) {
+            loss = Double.parseDouble(v);
+          } else if (s.equals("-bandwidth")) {
+            bandwidth = Long.parseLong(v);
+          } else {
+            throw new IllegalArgumentException("Unknown option: "+s);
+          }
+        } else if (s.indexOf('=') > 0) {
+          int sep = s.indexOf('=');
+          String name = s.substring(0, sep);
+          if (!Arrays.asList(Options.NAMES).contains(name)) {
+            throw new IllegalArgumentException(
+                "Unknown tunnel option: "+name);
+          }
+          options.put(name, s.substring(sep+1));
+        } else {
+          throw new IllegalArgumentException("Invalid argument: "+s);
+        }
+      }
+    } catch (RuntimeException e) {
+      System.err.println(e.getMessage());
+      System.err.println(
+          "Usage: [-requests N] [-threads N] [-size N] [-sessions N]"+
+          " [-latency MS] [-loss P] [-bandwidth N] [-verbose]"+
+          " [NAME=VALUE]...");
+      return;
+    }
+
+    // make room for our held sessions, unless the caller overrides it
+    if (!options.containsKey("maxSessionsPerPeer")) {
+      options.put(
+          "maxSessionsPerPeer",
+          Integer.toString(
+            Math.max(
+              SessionTable.DEFAULT_MAX_SESSIONS_PER_PEER,
+              sessions + threads)));
+    }
+    if (!options.containsKey("maxServletThreads")) {
+      options.put(
+          "maxServletThreads",
+          Integer.toString(
+            Math.max(WorkerPool.DEFAULT_MAX_THREADS, sessions + threads)));
+    }
+
+    System.out.println(
+        "latency="+latency+"ms loss="+loss+" bandwidth="+
+        (bandwidth > 0 ? (bandwidth+"B/s") : "unlimited")+
+        " options="+options);
+
+    LocalMessageSwitch mts =
+      new LocalMessageSwitch(latency, loss, bandwidth, 0);
+    Services services = new Services(verbose);
+
+    MessagingServerFactory serverFactory =
+      new MessagingServerFactory(
+          services.getLoggingService(),
+          services.getThreadService(),
+          mts.getMessageSwitchService(ENGINE_NODE),
+          options);
+    serverFactory.start();
+    ServletEngineImpl engine = new ServletEngineImpl(serverFactory);
+    engine.configure(0, -1, null);
+    engine.start();
+    Workload workload = new Workload(size);
+    engine.setGateway(workload);
+
+    MessagingClientFactory clientFactory =
+      new MessagingClientFactory(
+          services.getLoggingService(),
+          services.getUIDService(),
+          services.getThreadService(),
+          mts.getMessageSwitchService(CLIENT_NODE),
+          options);
+    clientFactory.start();
+    Map frontOptions = new HashMap();
+    frontOptions.put("local.name", FRONT_NAME);
+    ServletEngineImpl frontEngine =
+      new ServletEngineImpl(new LocalServerFactory());
+    frontEngine.configure(0, -1, frontOptions);
+    frontEngine.start();
+    frontEngine.setGateway(
+        new Gateway(
+          clientFactory,
+          MessageAddress.getMessageAddress(ENGINE_NODE),
+          Options.getLong(options, "firstByteTimeout", DEFAULT_TIMEOUT),
+          Options.getLong(options, "readTimeout", DEFAULT_TIMEOUT)));
+
+    TunnelBenchmark b = new TunnelBenchmark();
+
+    // warm up
+    b.run(threads, Math.max(threads, requests / 10), "/small");
+
+    System.out.println(
+        "workload  threads  requests  errors   p50 ms   p99 ms"+
+        "     req/s      MB/s");
+    int large = Math.max(threads, requests / 100);
+    print("small", 1, b.run(1, requests, "/small"));
+    print("small", threads, b.run(threads, requests, "/small"));
+    print("large", 1, b.run(1, large, "/large"));
+    print("large", threads, b.run(threads, large, "/large"));
+
+    long perSession = b.hold(workload, sessions);
+    System.out.println(
+        "sessions  "+sessions+" held open, "+
+        (perSession < 0 ? "failed" : (perSession+" heap bytes/session")));
+
+    System.out.println(
+        "mts       "+mts.getSentCount()+" messages, "+
+        mts.getSentBytes()+" bytes, "+
+        mts.getDroppedCount()+" dropped, "+
+        mts.getErrorCount()+" handler errors");
+    if (mts.getLastError() != null) {
+      System.err.println("last handler error: "+mts.getLastError());
+    }
+
+    frontEngine.stop();
+    engine.stop();
+    clientFactory.stop();
+    serverFactory.stop();
+    mts.stop();
+    services.stop();
+  }
+
+  /** Run requests for the path from the given number of threads */
+  private Result run(
+      int threads, final int requests, final String path) throws Exception {
+    final Result r = new Result(requests);
+    final AtomicInteger next = new AtomicInteger();
+    Thread[] a = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      a[i] = new Thread("benchmark client "+i) {
+        public void run() {
+          while (true) {
+            int i = next.getAndIncrement();
+            if (i >= requests) break;
+            long t = System.nanoTime();
+            try {
+              long n = request(path, null);
+              r.latencies[i] = System.nanoTime() - t;
+              r.bytes.addAndGet(n);
+            } catch (IOException e) {
+              r.latencies[i] = -1;
+              r.errors.incrementAndGet();
+            }
+          }
+        }
+      };
+    }
+    long t = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      a[i].start();
+    }
+    for (int i = 0; i < threads; i++) {
+      a[i].join();
+    }
+    r.nanos = System.nanoTime() - t;
+    return r;
+  }
+
+  /**
+   * Hold the given number of sessions open at once, measure the heap,
+   * then release them.
+   *
+   * @return the heap bytes per open session, or -1 if any session failed
+   */
+  private long hold(Workload workload, int sessions) throws Exception {
+    if (sessions <= 0) return 0;
+    long before = usedHeap();
+
+    final CountDownLatch opened = new CountDownLatch(sessions);
+    final AtomicInteger errors = new AtomicInteger();
+    Thread[] a = new Thread[sessions];
+    for (int i = 0; i < sessions; i++) {
+      a[i] = new Thread("benchmark session "+i) {
+        public void run() {
+          try {
+            request("/hold", opened);
+          } catch (Exception e) {
+            System.err.println("session failed: "+e);
+            errors.incrementAndGet();
+            opened.countDown();
+          }
+        }
+      };
+      a[i].start();
+    }
+    opened.await();
+
+    long after = usedHeap();
+    workload.release();
+    for (int i = 0; i < sessions; i++) {
+      a[i].join();
+    }
+    return (errors.get() > 0 ? -1 : ((after - before) / sessions));
+  }
+
+  /**
+   * Send a GET through our front engine and read the response.
+   *
+   * @param opened optional latch to count down when the first body byte
+   *   arrives
+   * @return the number of body bytes
+   * @throws IOException if the request failed or the status isn't 200
+   */
+  private long request(String path, CountDownLatch opened) throws IOException {
+    Connection con = front.connect(FRONT_NAME, FRONT_META_DATA);
+    try {
+      AnnotatedOutputStream out = con.getOutputStream();
+      out.write(
+          ("GET "+path+" HTTP/1.0\r\nHost: localhost:8800\r\n\r\n").getBytes());
+      out.flush();
+      out.done();
+
+      AnnotatedInputStream in = con.getInputStream();
+      byte[] buf = new byte[8192];
+      StringBuffer head = new StringBuffer();
+      int state = 0;
+      long body = 0;
+      while (true) {
+        int n = in.read(buf, 0, buf.length);
+        if (n < 0) break;
+        int i = 0;
+        // save the head, which ends with "\r\n\r\n"
+        for (; i < n && state < 4; i++) {
+          char c = (char) (buf[i] & 0xff);
+          head.append(c);
+          state =
+            (c == '\r' ? (state == 2 ? 3 : 1) :
+             c == '\n' ? (state == 3 ? 4 : state == 1 ? 2 : 0) :
+             0);
+        }
+        body += (n - i);
+        if (opened != null && body > 0) {
+          opened.countDown();
+          opened = null;
+        }
+      }
+      int status = parseStatus(head.toString());
+      if (status != 200) {
+        throw new IOException("Status "+status+" for "+path);
+      }
+      long length = parseContentLength(head.toString());
+      if (length >= 0 && length != body) {
+        throw new IOException(
+            "Truncated "+path+" response, "+body+" of "+length+" bytes");
+      }
+      return body;
+    } finally {
+      con.close();
+    }
+  }
+
+  private static int parseStatus(String head) {
+    // e.g. "HTTP/1.0 200 OK"
+    int sep = head.indexOf(' ');
+    int end = (sep < 0 ? -1 : head.indexOf(' ', sep + 1));
+    try {
+      return Integer.parseInt(head.substring(sep + 1, end));
+    } catch (RuntimeException e) {
+      return 0;
+    }
+  }
+
+  private static long parseContentLength(String head) {
+    String s = head.toLowerCase();
+    int i = s.indexOf("\r\ncontent-length:");
+    if (i < 0) return -1;
+    i += "\r\ncontent-length:".length();
+    int end = s.indexOf('\r', i);
+    try {
+      return Long.parseLong(s.substring(i, end).trim());
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  private static void print(String name, int threads, Result r) {
+    long[] a = r.getSortedLatencies();
+    double secs = r.nanos / 1000000000.0;
+    System.out.println(
+        pad(name, 10)+
+        lpad(Integer.toString(threads), 7)+
+        lpad(Integer.toString(r.latencies.length), 10)+
+        lpad(Integer.toString(r.errors.get()), 8)+
+        lpad(millis(percentile(a, 0.50)), 9)+
+        lpad(millis(percentile(a, 0.99)), 9)+
+        lpad(Long.toString(Math.round(a.length / secs)), 10)+
+        lpad(Double.toString(
+            Math.round(r.bytes.get() / secs / 10485.76) / 100.0), 10));
+  }
+
+  private static long percentile(long[] a, double p) {
+    if (a.length == 0) return -1;
+    int i = (int) Math.ceil(p * a.length) - 1;
+    return a[Math.max(0, Math.min(a.length - 1, i))];
+  }
+
+  private static String millis(long nanos) {
+    return (nanos < 0 ? "-" :
+        Double.toString(Math.round(nanos / 10000.0) / 100.0));
+  }
+
+  private static String pad(String s, int n) {
+    StringBuffer buf = new StringBuffer(s);
+    while (buf.length() < n) buf.append(' ');
+    return buf.toString();
+  }
+
+  private static String lpad(String s, int n) {
+    StringBuffer buf = new StringBuffer();
+    while (buf.length() + s.length() < n) buf.append(' ');
+    return buf.append(s).toString();
+  }
+
+  /** Per-run statistics */
+  private static final class Result {
+    // latency nanos per request, or -1 if it failed
+    final long[] latencies;
+    final AtomicInteger errors = new AtomicInteger();
+    final AtomicLong bytes = new AtomicLong();
+    long nanos;
+
+    Result(int requests) {
+      latencies = new long[requests];
+    }
+
+    long[] getSortedLatencies() {
+      long[] a = new long[latencies.length - errors.get()];
+      int j = 0;
+      for (int i = 0; i < latencies.length && j < a.length; i++) {
+        if (latencies[i] >= 0) a[j++] = latencies[i];
+      }
+      Arrays.sort(a);
+      return a;
+    }
+  }
+
+  /** The front engine's gateway, which tunnels every request */
+  private static final class Gateway extends HttpServlet {
+
+    private final MessagingClientFactory clients;
+    private final MessageAddress target;
+    private final long firstByteTimeout;
+    private final long readTimeout;
+
+    Gateway(
+        MessagingClientFactory clients, MessageAddress target,
+        long firstByteTimeout, long readTimeout) {
+      this.clients = clients;
+      this.target = target;
+      this.firstByteTimeout = firstByteTimeout;
+      this.readTimeout = readTimeout;
+    }
+
+    public void service(
+        HttpServletRequest req, HttpServletResponse res
+        ) throws ServletException, IOException {
+      Connection con;
+      try {
+        con = clients.connect(target, ServletTunnel.extractMetaData(req));
+      } catch (SessionLimitException sle) {
+        res.sendError(
+            HttpServletResponse.SC_SERVICE_UNAVAILABLE, sle.getMessage());
+        return;
+      }
+      try {
+        ServletTunnel.tunnel(req, res, con, firstByteTimeout, readTimeout);
+      } catch (IOException ioe) {
+        // a timeout or lost session, which truncates the response
+        if (!res.isCommitted()) {
+          res.sendError(
+              HttpServletResponse.SC_BAD_GATEWAY, ioe.getMessage());
+        }
+      } finally {
+        con.close();
+      }
+    }
+  }
+
+  /** The tunnelled engine's synthetic workload servlet */
+  private static final class Workload extends HttpServlet {
+
+    private final int size;
+    private final byte[] chunk = new byte[8192];
+
+    private CountDownLatch released = new CountDownLatch(1);
+
+    Workload(int size) {
+      this.size = size;
+      // printable but not too compressible, like a typical page
+      Random r = new Random(0);
+      String s = "<tr><td>abcdefghijklmnopqrstuvwxyz0123456789</td></tr>\n";
+      for (int i = 0; i < chunk.length; i++) {
+        chunk[i] = (byte) s.charAt(r.nextInt(s.length()));
+      }
+    }
+
+    void release() {
+      CountDownLatch l;
+      synchronized (this) {
+        l = released;
+        released = new CountDownLatch(1);
+      }
+      l.countDown();
+    }
+
+    public void service(
+        HttpServletRequest req, HttpServletResponse res
+        ) throws ServletException, IOException {
+      String path = req.getPathInfo();
+      if (path == null) path = req.getRequestURI();
+      if (path.startsWith("/")) path = path.substring(1);
+
+      res.setContentType("text/html");
+      if (path.equals("small")) {
+        res.setContentLength(SMALL_SIZE);
+        OutputStream out = res.getOutputStream();
+        out.write(chunk, 0, SMALL_SIZE);
+        out.close();
+      } else if (path.equals("large")) {
+        res.setContentLength(size);
+        OutputStream out = res.getOutputStream();
+        for (int n = size; n > 0; ) {
+          int len = Math.min(n, chunk.length);
+          out.write(chunk, 0, len);
+          n -= len;
+        }
+        out.close();
+      } else if (path.equals("hold")) {
+        CountDownLatch l;
+        synchronized (this) {
+          l = released;
+        }
+        OutputStream out = res.getOutputStream();
+        out.write(chunk, 0, 1);
+        out.flush();
+        try {
+          l.await();
+        } catch (InterruptedException ie) {
+          throw new ServletException("Interrupted hold");
+        }
+        out.close();
+      } else {
+        res.sendError(HttpServletResponse.SC_NOT_FOUND, path);
+      }
+    }
+  }
+
+  /**
+   * Stub thread, UID and logging services.
+   * <p>
+   * These are dynamic proxies, so they only implement the methods that
+   * our tunnel factories call and the harness compiles against any
+   * Cougaar core release.
+   */
+  private static final class Services {
+
+    private final boolean verbose;
+    private final AtomicLong uidCounter = new AtomicLong();
+    private final ExecutorService pool;
+    private final ScheduledExecutorService timer;
+    private final LoggingService log;
+    private final UIDService uids;
+    private final ThreadService threadService;
+
+    Services(boolean verbose) {
+      this.verbose = verbose;
+      ThreadFactory daemons = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "benchmark pool "+count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      };
+      this.pool = Executors.newCachedThreadPool(daemons);
+      this.timer = Executors.newSingleThreadScheduledExecutor(daemons);
+      this.log = (LoggingService) stub(LoggingService.class,
+          new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+              return log(m, args);
+            }
+          });
+      this.uids = (UIDService) stub(UIDService.class,
+          new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+              if (m.getName().equals("nextUID")) {
+                return new UID(CLIENT_NODE, uidCounter.incrementAndGet());
+              }
+              return defaultValue(m);
+            }
+          });
+      this.threadService = (ThreadService) stub(ThreadService.class,
+          new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) {
+              if (m.getName().equals("getThread")) {
+                return getThread(args);
+              }
+              return defaultValue(m);
+            }
+          });
+    }
+
+    LoggingService getLoggingService() { return log; }
+    UIDService getUIDService() { return uids; }
+    ThreadService getThreadService() { return threadService; }
+
+    void stop() {
+      timer.shutdownNow();
+      pool.shutdownNow();
+    }
+
+    private Object log(Method m, Object[] args) {
+      String name = m.getName();
+      // the tunnel warns about benign races, e.g. late closes
+      boolean quiet =
+        (name.startsWith("isDebug") || name.startsWith("isInfo") ||
+         name.startsWith("isWarn") ||
+         name.equals("debug") || name.equals("info") || name.equals("warn"));
+      if (name.startsWith("is")) {
+        return (m.getReturnType() == Boolean.TYPE ?
+            Boolean.valueOf(verbose || !quiet) : defaultValue(m));
+      }
+      if ((verbose || !quiet) && args != null && args.length > 0 &&
+          args[0] instanceof String) {
+        System.err.println(name.toUpperCase()+" "+args[0]);
+        if (args.length > 1 && args[1] instanceof Throwable) {
+          ((Throwable) args[1]).printStackTrace();
+        }
+      }
+      return defaultValue(m);
+    }
+
+    // getThread(consumer, runnable [, name [, lane]])
+    private Object getThread(Object[] args) {
+      final Object consumer = args[0];
+      final Runnable runnable = (Runnable) args[1];
+      final int lane =
+        (args.length > 3 ? ((Integer) args[3]).intValue() :
+         ThreadService.BEST_EFFORT_LANE);
+      final StubThread t = new StubThread(runnable);
+      return stub(Schedulable.class, new InvocationHandler() {
+        public Object invoke(Object p, Method m, Object[] a) {
+          String name = m.getName();
+          if (name.equals("start")) {
+            t.start();
+          } else if (name.equals("schedule") ||
+              name.equals("scheduleAtFixedRate")) {
+            long delay = ((Long) a[0]).longValue();
+            long interval = (a.length > 1 ? ((Long) a[1]).longValue() : 0);
+            t.schedule(delay, interval);
+          } else if (name.equals("cancelTimer")) {
+            t.cancelTimer();
+          } else if (name.equals("cancel")) {
+            t.cancelTimer();
+            return Boolean.TRUE;
+          } else if (name.equals("getConsumer")) {
+            return consumer;
+          } else if (name.equals("getLane")) {
+            return new Integer(lane);
+          } else if (name.equals("toString")) {
+            return "benchmark thread for "+consumer;
+          }
+          return defaultValue(m);
+        }
+      });
+    }
+
+    /**
+     * A Schedulable that runs in our pool, where a "start" while running
+     * restarts the runnable when it completes.
+     */
+    private final class StubThread implements Runnable {
+      private final Runnable runnable;
+      private boolean running;
+      private boolean restart;
+      private ScheduledFuture future;
+
+      StubThread(Runnable runnable) {
+        this.runnable = runnable;
+      }
+
+      void start() {
+        synchronized (this) {
+          if (running) {
+            restart = true;
+            return;
+          }
+          running = true;
+        }
+        pool.execute(this);
+      }
+
+      public void run() {
+        while (true) {
+          try {
+            runnable.run();
+          } catch (Throwable e) {
+            e.printStackTrace();
+          }
+          synchronized (this) {
+            if (!restart) {
+              running = false;
+              return;
+            }
+            restart = false;
+          }
+        }
+      }
+
+      synchronized void schedule(long delay, long interval) {
+        if (future != null) {
+          future.cancel(false);
+        }
+        Runnable r = new Runnable() {
+          public void run() {
+            start();
+          }
+        };
+        TimeUnit ms = TimeUnit.MILLISECONDS;
+        future =
+          (interval > 0 ?
+           timer.scheduleAtFixedRate(r, delay, interval, ms) :
+           timer.schedule(r, delay, ms));
+      }
+
+      synchronized void cancelTimer() {
+        if (future != null) {
+          future.cancel(false);
+          future = null;
+        }
+      }
+    }
+
+    private static Object stub(Class cl, final InvocationHandler h) {
+      InvocationHandler ih = new InvocationHandler() {
+        public Object invoke(
+            Object p, Method m, Object[] args) throws Throwable {
+          // identity for the Object methods, e.g. in hashtables
+          if (m.getDeclaringClass() == Object.class) {
+            String name = m.getName();
+            if (name.equals("equals")) {
+              return Boolean.valueOf(p == args[0]);
+            } else if (name.equals("hashCode")) {
+              return new Integer(System.identityHashCode(p));
+            }
+            Object ret = h.invoke(p, m, args);
+            return (ret == null ? "stub" : ret);
+          }
+          return h.invoke(p, m, args);
+        }
+      };
+      return Proxy.newProxyInstance(
+          TunnelBenchmark.class.getClassLoader(), new Class[] {cl}, ih);
+    }
+
+    private static Object defaultValue(Method m) {
+      Class cl = m.getReturnType();
+      return
+        (cl == Boolean.TYPE ? (Object) Boolean.FALSE :
+         cl == Integer.TYPE ? (Object) new Integer(0) :
+         cl == Long.TYPE ? (Object) new Long(0) :
+         cl == Double.TYPE ? (Object) new Double(0) :
+         null);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A shared pool of fixed-size <code>byte[]</code> relay buffers.
+ * <p>
+ * A tunnel copies request and response bodies through one of these
+ * buffers, so its memory use is constant regardless of the content
+ * length.  The caller must return the buffer when it's done, typically
+ * in a <code>finally</code> block.
+ */
+final class BufferPool {
+
+  /** The size of each buffer */
+  static final int BUFFER_SIZE = 8192;
+
+  // max number of idle buffers we'll keep
+  private static final int MAX_POOL_SIZE = 32;
+
+  private static final List idle = new ArrayList();
+
+  private BufferPool() {}
+
+  /** @return an idle or new buffer */
+  static byte[] take() {
+    synchronized (idle) {
+      if (!idle.isEmpty()) {
+        return (byte[]) idle.remove(idle.size() - 1);
+      }
+    }
+    return new byte[BUFFER_SIZE];
+  }
+
+  /** Return a buffer that's no longer referenced */
+  static void give(byte[] b) {
+    if (b == null || b.length != BUFFER_SIZE) return;
+    synchronized (idle) {
+      if (idle.size() < MAX_POOL_SIZE) {
+        idle.add(b);
+      }
+    }
+  }
+}
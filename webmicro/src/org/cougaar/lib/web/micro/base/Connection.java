@@ -43,6 +43,16 @@ public interface Connection {
   /** @return output stream */
   AnnotatedOutputStream getOutputStream() throws IOException;
 
+  /**
+   * Limit the time that an input stream read will block.
+   * <p>
+   * A read that times out throws an {@link java.io.InterruptedIOException},
+   * like a socket's SO_TIMEOUT.  The connection remains usable.
+   *
+   * @param millis maximum milliseconds per read, or zero to block forever
+   */
+  void setReadTimeout(long millis) throws IOException;
+
   /** Close the connection */
   void close() throws IOException;
 
@@ -0,0 +1,279 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A buffered reader for an HTTP/1.x request or response head, i.e. the
+ * request or status line plus the header lines.
+ * <p>
+ * The head is read in bulk into a fixed-size buffer and scanned for line
+ * ends, instead of one <code>read()</code> per byte.  This matters for
+ * our message-based pipes, where every read takes the pipe's lock.  Any
+ * bytes read past the end of the head are kept for the caller's
+ * {@link #drain}, since they're the start of the body.
+ * <p>
+ * Limits are enforced on the line length, number of headers, total head
+ * size, and the time taken to read the head.  If a limit is exceeded we
+ * throw a {@link RequestException} with a suitable status.
+ * <p>
+ * A blocked read can't be interrupted, so if a {@link Connection} is set
+ * we shrink its read timeout to the time left before the head deadline
+ * before each read, and restore it once the head is read.
+ */
+final class HeadReader {
+
+  private final InputStream is;
+  private final int maxLineLength;
+  private final int maxHeadSize;
+  private final int timeoutStatus;
+
+  // bytes read from the stream but not yet consumed
+  private final byte[] buf;
+  private int pos;
+  private int limit;
+
+  private int headSize;
+  private long headTimeout;
+  private long deadline;
+
+  // optional connection for our per-read timeouts, and its regular and
+  // current read timeouts
+  private Connection con;
+  private long readTimeout;
+  private long currentTimeout;
+
+  /**
+   * @param maxLineLength maximum first line or header line length
+   * @param maxHeadSize maximum length of the first line plus headers
+   */
+  HeadReader(InputStream is, int maxLineLength, int maxHeadSize) {
+    this(is, maxLineLength, maxHeadSize, 408);
+  }
+
+  /**
+   * @param timeoutStatus the status to report if a read times out or the
+   *   head timer expires, e.g. 408 for a server or 504 for a tunnel
+   */
+  HeadReader(
+      InputStream is, int maxLineLength, int maxHeadSize, int timeoutStatus) {
+    this.is = is;
+    this.maxLineLength = maxLineLength;
+    this.maxHeadSize = maxHeadSize;
+    this.timeoutStatus = timeoutStatus;
+    // room for the line plus its CRLF
+    this.buf = new byte[maxLineLength + 2];
+  }
+
+  /**
+   * Set the connection whose read timeout we shrink to the time left
+   * before the head deadline.
+   *
+   * @param readTimeout the connection's regular read timeout, which we
+   *   restore once the head is read, or zero for no limit
+   */
+  void setConnection(Connection con, long readTimeout) {
+    this.con = con;
+    this.readTimeout = readTimeout;
+    this.currentTimeout = readTimeout;
+  }
+
+  /**
+   * Start the head timer.
+   *
+   * @param headTimeout maximum time in milliseconds to read the first
+   *   line and headers, or zero for no limit
+   */
+  void startHead(long headTimeout) {
+    this.headTimeout = headTimeout;
+    deadline = 
+      (headTimeout > 0 ? System.currentTimeMillis() + headTimeout : 0);
+  }
+
+  /**
+   * Read the header lines up to the blank line that ends the head, and
+   * stop the head timer.
+   *
+   * @return a List of trimmed "name: value" Strings
+   */
+  List readHeaders(int maxHeaders) throws IOException {
+    List ret = new ArrayList();
+    while (true) {
+      String s = readLine(431);
+      if (s.length() == 0) break;
+      if (ret.size() >= maxHeaders) {
+        throw new RequestException(
+            431, "More than "+maxHeaders+" headers");
+      }
+      ret.add(s);
+    }
+    deadline = 0;
+    setReadTimeout(readTimeout);
+    return ret;
+  }
+
+  /**
+   * Read a line, without its CRLF or LF.
+   *
+   * @param status the status to report if the line is too long
+   * @return the trimmed line, or "" at the end of the stream
+   */
+  String readLine(int status) throws IOException {
+    int scanned = pos;
+    while (true) {
+      // look for the "\n"
+      int i = indexOfLF(buf, scanned, limit);
+      if (i >= 0) {
+        int end = i;
+        if (end > pos && buf[end - 1] == '\r') {
+          end--;
+        }
+        String s = toString(pos, end);
+        pos = i + 1;
+        return s.trim();
+      }
+      scanned = limit;
+
+      if (limit - pos >= maxLineLength) {
+        throw new RequestException(
+            status, "Line exceeds "+maxLineLength+" bytes");
+      }
+
+      // read more
+      if (pos > 0) {
+        // compact
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        scanned -= pos;
+        limit -= pos;
+        pos = 0;
+      }
+      if (deadline > 0) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw headTimeout();
+        }
+        setReadTimeout(
+            readTimeout > 0 ? Math.min(readTimeout, remaining) : remaining);
+      }
+      int count;
+      try {
+        count = is.read(buf, limit, buf.length - limit);
+      } catch (InterruptedIOException iioe) {
+        throw timeout("head", iioe);
+      }
+      if (count < 0) {
+        // end of stream, return what we have
+        String s = toString(pos, limit);
+        pos = limit;
+        return s.trim();
+      }
+      limit += count;
+      headSize += count;
+      if (headSize > maxHeadSize) {
+        throw new RequestException(
+            431, "Head exceeds "+maxHeadSize+" bytes");
+      }
+      if (deadline > 0 && System.currentTimeMillis() > deadline) {
+        throw headTimeout();
+      }
+    }
+  }
+
+  /**
+   * Copy bytes that were read past the end of the head.
+   *
+   * @return the number of bytes copied, which is zero once the buffer
+   *   is empty
+   */
+  int drain(byte[] b, int off, int len) {
+    int n = Math.min(len, limit - pos);
+    if (n > 0) {
+      System.arraycopy(buf, pos, b, off, n);
+      pos += n;
+    }
+    return n;
+  }
+
+  /**
+   * Read body bytes, first from our buffer and then from the stream.
+   * <p>
+   * A read timeout is reported as a 408.
+   */
+  int read(byte[] b, int off, int len) throws IOException {
+    int n = drain(b, off, len);
+    if (n > 0 || len == 0) {
+      return n;
+    }
+    try {
+      return is.read(b, off, len);
+    } catch (InterruptedIOException iioe) {
+      throw timeout("body", iioe);
+    }
+  }
+
+  // a tight loop, which the JIT can unroll
+  private static int indexOfLF(byte[] b, int begin, int end) {
+    for (int i = begin; i < end; i++) {
+      if (b[i] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private String toString(int begin, int end) {
+    // HTTP heads are ISO-8859-1
+    char[] ca = new char[end - begin];
+    for (int i = begin; i < end; i++) {
+      ca[i - begin] = (char) (buf[i] & 0xff);
+    }
+    return new String(ca);
+  }
+
+  // change our connection's read timeout, if we have one
+  private void setReadTimeout(long millis) throws IOException {
+    if (con == null || millis == currentTimeout) return;
+    con.setReadTimeout(millis);
+    currentTimeout = millis;
+  }
+
+  private RequestException headTimeout() {
+    return new RequestException(
+        timeoutStatus, "Head not read within "+headTimeout+" millis");
+  }
+
+  private RequestException timeout(String s, InterruptedIOException e) {
+    RequestException re =
+      new RequestException(timeoutStatus, "Timeout reading "+s);
+    re.initCause(e);
+    return re;
+  }
+}
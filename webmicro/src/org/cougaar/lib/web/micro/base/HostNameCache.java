@@ -0,0 +1,280 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.micro.base;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A bounded cache of reverse-DNS host name lookups.
+ * <p>
+ * A reverse lookup can block for seconds on networks without a responsive
+ * DNS server, so we only do this when a servlet asks for
+ * {@link javax.servlet.http.HttpServletRequest#getRemoteHost}, and we do it
+ * in a background task.  By default a caller that misses the cache gets the
+ * IP address right away, as the servlet spec allows, and the name is
+ * cached for the next caller.  The optional "wait" lets a caller block
+ * for a bounded time instead.
+ * <p>
+ * The background task runs on the caller-supplied {@link Executor}, e.g. a
+ * ThreadService wrapper, or else on a short-lived daemon thread.  It exits
+ * once the pending lookups are done.
+ */
+public class HostNameCache {
+
+  // spawns a daemon thread per resolver task, if we don't have an executor
+  private static final Executor DAEMON_EXECUTOR = new Executor() {
+    public void execute(Runnable r) {
+      Thread thread = new Thread(r, "host name resolver");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  };
+
+  private static HostNameCache defaultInstance;
+
+  private final boolean ipOnly;
+  private final int maxSize;
+  private final long ttl;
+  private final long timeout;
+
+  private final Object lock = new Object();
+
+  // LRU map from address String to Entry
+  private final Map cache;
+
+  // pending lookups, for our resolver task
+  private final LinkedList todo = new LinkedList();
+  // true if our resolver task has been started and hasn't finished
+  private boolean running;
+  // runs our resolver task, or null to use a daemon thread
+  private Executor executor;
+
+  /**
+   * Equivalent to the constructor with a null executor.
+   */
+  public HostNameCache(
+      boolean ipOnly, int maxSize, long ttl, long timeout) {
+    this(ipOnly, maxSize, ttl, timeout, null);
+  }
+
+  /**
+   * @param ipOnly if true then never do a reverse lookup
+   * @param maxSize maximum number of cached entries
+   * @param ttl time in milliseconds to keep an entry
+   * @param timeout maximum time in milliseconds that a caller will block
+   *   waiting for a lookup, or zero to return the address immediately
+   * @param executor optional executor for our resolver task, otherwise
+   *   we'll spawn a daemon thread
+   */
+  public HostNameCache(
+      boolean ipOnly, final int maxSize, long ttl, long timeout,
+      Executor executor) {
+    this.ipOnly = ipOnly;
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+    this.timeout = timeout;
+    this.executor = executor;
+    this.cache = new LinkedHashMap(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /** @return a shared instance with the default settings */
+  public static synchronized HostNameCache getDefault() {
+    if (defaultInstance == null) {
+      defaultInstance = new HostNameCache(false, 1024, 10*60*1000, 0);
+    }
+    return defaultInstance;
+  }
+
+  /**
+   * Equivalent to <code>getInstance(options, null)</code>.
+   */
+  public static HostNameCache getInstance(Map options) {
+    return getInstance(options, null);
+  }
+
+  /**
+   * Create an instance from engine options, or use the shared default.
+   * <pre>
+   *   ipOnly          never resolve host names, defaults to false
+   *   hostCache.size  maximum cached names, defaults to 1024
+   *   hostCache.ttl   cache time in millis, defaults to 600000
+   *   hostCache.wait  max lookup wait in millis, defaults to 0
+   * </pre>
+   *
+   * @param executor optional executor for the resolver task.  If we
+   *   return the shared default and it doesn't have an executor yet,
+   *   then it will use this one.
+   */
+  public static HostNameCache getInstance(Map options, Executor executor) {
+    if (options == null ||
+        (!options.containsKey("ipOnly") &&
+         !options.containsKey("hostCache.size") &&
+         !options.containsKey("hostCache.ttl") &&
+         !options.containsKey("hostCache.wait"))) {
+      HostNameCache ret = getDefault();
+      if (executor != null) {
+        synchronized (ret.lock) {
+          if (ret.executor == null) {
+            ret.executor = executor;
+          }
+        }
+      }
+      return ret;
+    }
+    return new HostNameCache(
+        "true".equals(options.get("ipOnly")),
+        getInt(options, "hostCache.size", 1024),
+        getInt(options, "hostCache.ttl", 10*60*1000),
+        getInt(options, "hostCache.wait", 0),
+        executor);
+  }
+  private static int getInt(Map m, String key, int deflt) {
+    String s = (String) m.get(key);
+    return (s == null ? deflt : Integer.parseInt(s));
+  }
+
+  /**
+   * @param addr an IP address, e.g. "1.2.3.4"
+   * @return the host name, or the address if the name is not known within
+   *   our timeout
+   */
+  public String getHostName(String addr) {
+    if (addr == null || ipOnly || maxSize <= 0) {
+      return addr;
+    }
+    Entry e;
+    Executor ex = null;
+    synchronized (lock) {
+      e = (Entry) cache.get(addr);
+      if (e == null || e.expires < System.currentTimeMillis()) {
+        if (todo.size() >= maxSize) {
+          // too many pending lookups
+          return addr;
+        }
+        e = new Entry();
+        cache.put(addr, e);
+        todo.add(addr);
+        if (!running) {
+          running = true;
+          ex = (executor == null ? DAEMON_EXECUTOR : executor);
+        }
+      }
+      if (e.name != null) {
+        return e.name;
+      }
+    }
+
+    if (ex != null) {
+      startResolver(ex);
+    }
+
+    if (timeout <= 0) {
+      return addr;
+    }
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (lock) {
+      while (e.name == null) {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+          return addr;
+        }
+        try {
+          lock.wait(wait);
+        } catch (InterruptedException ie) {
+          return addr;
+        }
+      }
+      return e.name;
+    }
+  }
+
+  private void startResolver(Executor ex) {
+    Runnable r = new Runnable() {
+      public void run() {
+        resolveAll();
+      }
+    };
+    try {
+      ex.execute(r);
+    } catch (RuntimeException re) {
+      // e.g. a stopped thread pool, try again on the next miss
+      synchronized (lock) {
+        running = false;
+        while (!todo.isEmpty()) {
+          cache.remove(todo.removeFirst());
+        }
+      }
+    }
+  }
+
+  private void resolveAll() {
+    while (true) {
+      String addr;
+      synchronized (lock) {
+        if (todo.isEmpty()) {
+          running = false;
+          return;
+        }
+        addr = (String) todo.removeFirst();
+      }
+
+      // the slow part, done without holding the lock
+      String name;
+      try {
+        name = InetAddress.getByName(addr).getHostName();
+      } catch (Exception e) {
+        name = addr;
+      }
+
+      synchronized (lock) {
+        Entry e = (Entry) cache.get(addr);
+        if (e == null) {
+          // evicted while we were busy, add it back
+          e = new Entry();
+          cache.put(addr, e);
+        }
+        e.name = name;
+        e.expires = System.currentTimeMillis() + ttl;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private static final class Entry {
+    // null if the lookup is pending
+    String name;
+    long expires = Long.MAX_VALUE;
+  }
+}
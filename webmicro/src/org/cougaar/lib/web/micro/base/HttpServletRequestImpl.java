@@ -32,6 +32,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.security.Principal;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -71,7 +72,8 @@ public class HttpServletRequestImpl implements HttpServletRequest {
   private final String contextPath;
 
   private final String clientAddr;
-  private final String clientHost;
+  private String clientHost;
+  private final HostNameCache hostNames;
 
   private String scheme;
   private String serverHost;
@@ -91,8 +93,22 @@ public class HttpServletRequestImpl implements HttpServletRequest {
   private ServletInputStream inputStream;
   private boolean made_reader = false;
 
+  // request attributes, e.g. our tunnel deadline
+  private Map attributes;
+
   public HttpServletRequestImpl(RequestCallback callback, Map metaData) {
+    this(callback, metaData, null);
+  }
+
+  /**
+   * @param hostNames optional cache for lazy {@link #getRemoteHost} lookups,
+   *   used if the metaData lacks a "clientHost"
+   */
+  public HttpServletRequestImpl(
+      RequestCallback callback, Map metaData, HostNameCache hostNames) {
     this.callback = callback;
+    this.hostNames = 
+      (hostNames == null ? HostNameCache.getDefault() : hostNames);
 
     // save metaData
     this.contextPath = _get(metaData, "contextPath");
@@ -158,7 +174,7 @@ public class HttpServletRequestImpl implements HttpServletRequest {
     try {
       request = callback.readRequest();
     } catch (IOException ioe) {
-      throw new RuntimeException("Unable to read request line");
+      throw new RuntimeException("Unable to read request line", ioe);
     }
 
     try {
@@ -210,8 +226,8 @@ public class HttpServletRequestImpl implements HttpServletRequest {
       String sai = sa[i];
       int eq_sep = sai.indexOf('=');
       if (eq_sep <= 0) continue;
-      String name = sai.substring(0, eq_sep);
-      String value = sai.substring(eq_sep+1);
+      String name = decode(sai.substring(0, eq_sep));
+      String value = decode(sai.substring(eq_sep+1));
       Object o = parameters.get(name);
       if (o == null) {
         parameters.put(name, value);
@@ -227,6 +243,21 @@ public class HttpServletRequestImpl implements HttpServletRequest {
     }
   }
 
+  // url-decode a parameter, leaving it as-is if it's not valid, e.g. an
+  // unencoded "100%" from an older tunnel
+  private static String decode(String s) {
+    if (s.indexOf('%') < 0 && s.indexOf('+') < 0) {
+      return s;
+    }
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (IllegalArgumentException iae) {
+      return s;
+    } catch (UnsupportedEncodingException uee) {
+      return s;
+    }
+  }
+
   // parse headers, e.g.:
   //   bar: qux
   //   Content-Length: 1234
@@ -235,7 +266,7 @@ public class HttpServletRequestImpl implements HttpServletRequest {
     try {
       header_lines = callback.readHeaders();
     } catch (IOException e) {
-      throw new RuntimeException("Unable to read header lines");
+      throw new RuntimeException("Unable to read header lines", e);
     }
 
     for (int i = 0; i < header_lines.size(); i++) {
@@ -271,10 +302,10 @@ public class HttpServletRequestImpl implements HttpServletRequest {
     try {
       body = callback.readBody(contentLength);
     } catch (IOException ioe) {
-      throw new RuntimeException("Unable to read body["+contentLength+"]");
+      throw new RuntimeException("Unable to read body["+contentLength+"]", ioe);
     }
 
-    if ("post".equalsIgnoreCase(method)) {
+    if ("post".equalsIgnoreCase(method) && isFormContent()) {
       // read posted parameters, reset body to zero
       parseParameters(new String(body));
       body = new byte[0];
@@ -293,6 +324,16 @@ public class HttpServletRequestImpl implements HttpServletRequest {
     };
   }
 
+  // check if the body is form data, as opposed to multipart or binary
+  // data that we should leave to the servlet.  Older tunnels don't send a
+  // Content-Type.
+  private boolean isFormContent() {
+    String type = getContentType();
+    return 
+      (type == null ||
+       type.toLowerCase().startsWith("application/x-www-form-urlencoded"));
+  }
+
   // server info
   public String getContextPath() { return contextPath; }
   public String getServerName() { return serverHost; }
@@ -300,7 +341,13 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 
   // client info
   public String getRemoteAddr() { return clientAddr; }
-  public String getRemoteHost() { return clientHost; }
+  public String getRemoteHost() {
+    if (clientHost == null) {
+      // lazy, since this may require a reverse-DNS lookup
+      clientHost = hostNames.getHostName(clientAddr);
+    }
+    return clientHost;
+  }
 
   // request info
   public boolean isSecure() { return "https".equalsIgnoreCase(getScheme()); }
@@ -421,6 +468,30 @@ public class HttpServletRequestImpl implements HttpServletRequest {
     return new BufferedReader(new InputStreamReader(getInputStream()));
   }
 
+  // attributes
+  public Object getAttribute(String name) {
+    return (attributes == null ? null : attributes.get(name));
+  }
+  public Enumeration getAttributeNames() {
+    return Collections.enumeration(
+        attributes == null ? Collections.EMPTY_SET : attributes.keySet());
+  }
+  public void setAttribute(String name, Object o) {
+    if (o == null) {
+      removeAttribute(name);
+      return;
+    }
+    if (attributes == null) {
+      attributes = new HashMap();
+    }
+    attributes.put(name, o);
+  }
+  public void removeAttribute(String name) {
+    if (attributes != null) {
+      attributes.remove(name);
+    }
+  }
+
   // unsupported:
   //   HttpServletRequest:
   public String getPathTranslated() { die(); return null; }
@@ -439,10 +510,6 @@ public class HttpServletRequestImpl implements HttpServletRequest {
   //   ServletRequest:
   public String getCharacterEncoding() { die(); return null; }
   public void setCharacterEncoding(String env) throws UnsupportedEncodingException { die(); }
-  public Object getAttribute(String name) { die(); return null; }
-  public Enumeration getAttributeNames() { die(); return null; }
-  public void setAttribute(String name, Object o) { die(); }
-  public void removeAttribute(String name) { die(); }
   public Locale getLocale() { die(); return null; }
   public Enumeration getLocales() { die(); return null; }
   public RequestDispatcher getRequestDispatcher(String path) { die(); return null; }
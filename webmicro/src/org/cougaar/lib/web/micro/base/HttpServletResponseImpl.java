@@ -28,6 +28,7 @@ package org.cougaar.lib.web.micro.base;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -44,15 +45,13 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * An implementation of the http-servlet-response interface.
  * <p>
- * Note that some methods are not currently supported, e.g. cookies and
- * buffer resets.
+ * Note that some methods are not currently supported, e.g. cookies.
  */
 public class HttpServletResponseImpl implements HttpServletResponse {
 
   private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
 
   private final ResponseCallback callback;
-  private boolean committed = false;
   private boolean made_writer = false;
 
   public HttpServletResponseImpl(ResponseCallback callback) {
@@ -60,7 +59,7 @@ public class HttpServletResponseImpl implements HttpServletResponse {
   }
 
   public boolean isCommitted() {
-    return committed;
+    return callback.isCommitted();
   }
 
   // status code
@@ -140,6 +139,10 @@ public class HttpServletResponseImpl implements HttpServletResponse {
   }
 
   // stream
+  public String getCharacterEncoding() {
+    // our writer uses the platform default
+    return Charset.defaultCharset().name();
+  }
   public PrintWriter getWriter() throws IOException {
     if (made_writer) {
       throw new IllegalStateException("Already made writer");
@@ -168,16 +171,17 @@ public class HttpServletResponseImpl implements HttpServletResponse {
     }
   }
 
+  // buffer
+  public void setBufferSize(int size) { callback.setBufferSize(size); }
+  public int getBufferSize() { return callback.getBufferSize(); }
+  public void flushBuffer() throws IOException { callback.flushBuffer(); }
+  public void resetBuffer() { callback.resetBuffer(); }
+  public void reset() { callback.reset(); }
+
   // unsupported:
   //   HttpServletResponse:
   public void addCookie(Cookie cookie) { die(); }
   //   ServletResponse:
-  public String getCharacterEncoding() { die(); return null; }
-  public void setBufferSize(int size) { die(); }
-  public int getBufferSize() { die(); return -1; }
-  public void flushBuffer() throws IOException { die(); }
-  public void resetBuffer() { die(); }
-  public void reset() { die(); }
   public void setLocale(Locale loc) { die(); }
   public Locale getLocale() { die(); return null; }
   private void die() {
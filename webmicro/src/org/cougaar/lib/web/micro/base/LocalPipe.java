@@ -0,0 +1,219 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+
+/**
+ * A bounded in-memory pipe between an {@link AnnotatedOutputStream} and an
+ * {@link AnnotatedInputStream} in the same JVM, used by our
+ * {@link LocalClientFactory} and {@link LocalServerFactory}.
+ * <p>
+ * Written bytes are copied into chunks on a queue, and flushes are queued
+ * as markers so the reader sees them as
+ * {@link AnnotatedInputStream#FLUSH}es.  A writer blocks while the pipe
+ * holds more than its capacity.  There's no serialization.
+ */
+final class LocalPipe {
+
+  /** Default capacity in bytes */
+  static final int DEFAULT_CAPACITY = 65536;
+
+  private static final Object FLUSH_MARKER = new Object();
+
+  private final int capacity;
+
+  // queue of byte[] chunks and FLUSH markers
+  private final LinkedList queue = new LinkedList();
+  // number of unread bytes in the queue and our current chunk
+  private int bytes;
+  private boolean writerClosed;
+  private boolean readerClosed;
+  // maximum millis a read will block, or zero to block forever
+  private long readTimeout;
+
+  private final InputStreamImpl in = new InputStreamImpl();
+  private final OutputStreamImpl out = new OutputStreamImpl();
+
+  LocalPipe() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  LocalPipe(int capacity) {
+    this.capacity = Math.max(1, capacity);
+  }
+
+  AnnotatedInputStream getInputStream() {
+    return in;
+  }
+
+  AnnotatedOutputStream getOutputStream() {
+    return out;
+  }
+
+  void setReadTimeout(long millis) {
+    synchronized (queue) {
+      readTimeout = Math.max(0, millis);
+    }
+  }
+
+  private class OutputStreamImpl extends AnnotatedOutputStream {
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+    public void write(byte[] b, int off, int len) throws IOException {
+      if ((off < 0) || (off > b.length) || (len < 0) ||
+          ((off + len) > b.length) || ((off + len) < 0)) {
+        throw new IndexOutOfBoundsException();
+      }
+      while (len > 0) {
+        int n = Math.min(len, capacity);
+        byte[] chunk = new byte[n];
+        System.arraycopy(b, off, chunk, 0, n);
+        synchronized (queue) {
+          while (true) {
+            if (writerClosed) throw new IOException("Pipe closed");
+            if (readerClosed) throw new IOException("Pipe reader closed");
+            if (bytes < capacity) break;
+            try {
+              queue.wait();
+            } catch (InterruptedException ie) {
+              throw new RuntimeException("interrupted");
+            }
+          }
+          queue.add(chunk);
+          bytes += n;
+          queue.notifyAll();
+        }
+        off += n;
+        len -= n;
+      }
+    }
+    public void flush() throws IOException {
+      synchronized (queue) {
+        if (writerClosed) throw new IOException("Pipe closed");
+        if (readerClosed) return;
+        if (queue.isEmpty() || queue.getLast() != FLUSH_MARKER) {
+          queue.add(FLUSH_MARKER);
+          queue.notifyAll();
+        }
+      }
+    }
+    public void done() {
+      close();
+    }
+    public void close() {
+      synchronized (queue) {
+        writerClosed = true;
+        queue.notifyAll();
+      }
+    }
+  }
+
+  private class InputStreamImpl extends AnnotatedInputStream {
+    // our current chunk, removed from the head of the queue
+    private byte[] buf;
+    private int offset;
+
+    // for "int read2()"
+    private final byte[] tmp = new byte[1];
+
+    public int read2() throws IOException {
+      int count;
+      do {
+        count = read2(tmp, 0, 1);
+      } while (count == 0);
+      return (count == 1 ? (tmp[0] & 0xff) : count);
+    }
+
+    public int read2(byte[] b, int off, int len) throws IOException {
+      if ((off < 0) || (off > b.length) || (len < 0) ||
+          ((off + len) > b.length) || ((off + len) < 0)) {
+        throw new IndexOutOfBoundsException();
+      } else if (len == 0) {
+        return 0;
+      }
+      synchronized (queue) {
+        if (buf == null) {
+          long deadline = 0;
+          while (queue.isEmpty()) {
+            if (readerClosed || writerClosed) return -1;
+            long millis = 0;
+            if (readTimeout > 0) {
+              long now = System.currentTimeMillis();
+              if (deadline == 0) {
+                deadline = now + readTimeout;
+              } else if (now >= deadline) {
+                throw new SocketTimeoutException(
+                    "Read timed out after "+readTimeout+" millis");
+              }
+              millis = deadline - now;
+            }
+            try {
+              queue.wait(millis);
+            } catch (InterruptedException ie) {
+              throw new RuntimeException("interrupted");
+            }
+          }
+          Object o = queue.removeFirst();
+          if (o == FLUSH_MARKER) {
+            return FLUSH;
+          }
+          buf = (byte[]) o;
+          offset = 0;
+        }
+        int n = Math.min(buf.length - offset, len);
+        System.arraycopy(buf, offset, b, off, n);
+        offset += n;
+        if (offset == buf.length) {
+          buf = null;
+          offset = 0;
+        }
+        bytes -= n;
+        queue.notifyAll();
+        return n;
+      }
+    }
+
+    public int available() {
+      synchronized (queue) {
+        return bytes;
+      }
+    }
+
+    public void close() {
+      synchronized (queue) {
+        readerClosed = true;
+        queue.clear();
+        buf = null;
+        bytes = 0;
+        queue.notifyAll();
+      }
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-process server connection factory, for servlet engines that are
+ * only reached by a {@link LocalClientFactory} in the same JVM.
+ * <p>
+ * Connections are handed across through in-memory {@link LocalPipe}s, so
+ * there are no sockets or message serialization.  This is useful to run
+ * several engines in one JVM, e.g. for integration tests and tunnel
+ * benchmarks.
+ * <p>
+ * Supported settings:<pre>
+ *   local.name  the name that clients connect to, defaults to the
+ *               "port" setting
+ *   local.pipeCapacity
+ *               per-direction pipe buffer size in bytes, defaults to
+ *               65536
+ * </pre>
+ * The client's metaData, e.g. from {@link ServletTunnel#extractMetaData},
+ * is passed through as the server connection's metaData.  If the client
+ * passes null then the server sees a localhost "serverURL", like our
+ * {@link SocketServerFactory}.
+ */
+public class LocalServerFactory implements ServerFactory {
+
+  private static final Logger logger =
+    Logger.getLogger(LocalServerFactory.class.getName());
+
+  // map from String name to Listener
+  private static final Map listeners = new HashMap();
+
+  public ListenerControl listen(
+      Map settings, AcceptCallback callback) throws BindException, IOException {
+    Object o = settings.get("local.name");
+    if (o == null) {
+      o = settings.get("port");
+    }
+    final String name = (o == null ? null : o.toString());
+    if (name == null) {
+      throw new IllegalArgumentException("Missing \"local.name\" or \"port\"");
+    }
+    Object cap = settings.get("local.pipeCapacity");
+    int capacity =
+      (cap == null ? LocalPipe.DEFAULT_CAPACITY :
+       Integer.parseInt(cap.toString()));
+
+    final Listener l = new Listener(this, callback, capacity);
+    synchronized (listeners) {
+      if (listeners.containsKey(name)) {
+        throw new BindException("Local name already in use: "+name);
+      }
+      listeners.put(name, l);
+    }
+
+    return new ListenerControl() {
+      public void stop() {
+        synchronized (listeners) {
+          if (listeners.get(name) == l) {
+            listeners.remove(name);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Connect to a local listener, called by our {@link LocalClientFactory}.
+   */
+  static Connection connect(String name, Map metaData) throws IOException {
+    Listener l;
+    synchronized (listeners) {
+      l = (Listener) listeners.get(name);
+    }
+    if (l == null) {
+      throw new ConnectException("No local listener named "+name);
+    }
+
+    final LocalPipe request = new LocalPipe(l.capacity);
+    final LocalPipe response = new LocalPipe(l.capacity);
+    Map m;
+    if (metaData == null) {
+      // like our SocketServerFactory
+      m = new HashMap(3);
+      m.put(
+          "serverURL",
+          "http://localhost"+(isPort(name) ? (":"+name) : ""));
+      m.put("contextPath", "");
+      m.put("clientAddr", "127.0.0.1");
+    } else {
+      m = new HashMap(metaData);
+    }
+    final Map serverMetaData = Collections.unmodifiableMap(m);
+
+    Connection server = new Connection() {
+      public Map getMetaData() {
+        return serverMetaData;
+      }
+      public AnnotatedInputStream getInputStream() {
+        return request.getInputStream();
+      }
+      public AnnotatedOutputStream getOutputStream() {
+        return response.getOutputStream();
+      }
+      public void setReadTimeout(long millis) {
+        request.setReadTimeout(millis);
+      }
+      public void close() throws IOException {
+        request.getInputStream().close();
+        response.getOutputStream().close();
+      }
+      public String toString() {
+        return "local server connection";
+      }
+    };
+    l.factory.accept_bg(l.callback, server);
+
+    return new Connection() {
+      public Map getMetaData() {
+        return null; // not applicable
+      }
+      public AnnotatedInputStream getInputStream() {
+        return response.getInputStream();
+      }
+      public AnnotatedOutputStream getOutputStream() {
+        return request.getOutputStream();
+      }
+      public void setReadTimeout(long millis) {
+        response.setReadTimeout(millis);
+      }
+      public void close() throws IOException {
+        request.getOutputStream().close();
+        response.getInputStream().close();
+      }
+      public String toString() {
+        return "local client connection";
+      }
+    };
+  }
+
+  private static boolean isPort(String name) {
+    for (int i = 0, n = name.length(); i < n; i++) {
+      if (!Character.isDigit(name.charAt(i))) return false;
+    }
+    return (name.length() > 0);
+  }
+
+  /** call "callback.accept(con)" in a background thread */
+  protected void accept_bg(
+      final AcceptCallback callback,
+      final Connection con) {
+    Runnable r = new Runnable() {
+      public void run() {
+        accept(callback, con);
+      }
+    };
+    (new Thread(r, "local servlet engine")).start();
+  }
+
+  /**
+   * call "callback.accept(con)" in the caller's thread, logging any
+   * failure and closing the connection, so the client sees an end of
+   * stream instead of waiting for a response
+   */
+  protected void accept(AcceptCallback callback, Connection con) {
+    try {
+      callback.accept(con);
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Unable to accept "+con, e);
+      try {
+        con.close();
+      } catch (IOException ioe) {
+        // ignore
+      }
+    }
+  }
+
+  private static final class Listener {
+    final LocalServerFactory factory;
+    final AcceptCallback callback;
+    final int capacity;
+    Listener(
+        LocalServerFactory factory, AcceptCallback callback, int capacity) {
+      this.factory = factory;
+      this.callback = callback;
+      this.capacity = capacity;
+    }
+  }
+}
@@ -28,56 +28,101 @@ package org.cougaar.lib.web.micro.base;
 
 import java.io.InputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A standard request callback implementation that reads from an
  * {@link InputStream}.
+ * <p>
+ * The request line and headers are read in bulk by a {@link HeadReader},
+ * with limits on the line length, number of headers, total head size, and
+ * the time taken to read the head.  This keeps a slow or malicious client
+ * from holding our thread or memory.  If a limit is exceeded we throw a
+ * {@link RequestException} with the status that the engine should send.
+ * <p>
+ * We can't interrupt a blocked read, so the per-read (idle) timeout must be
+ * set on the underlying stream, e.g. the socket's SO_TIMEOUT.  If we're
+ * given the {@link Connection} then we shrink its read timeout to the time
+ * left before the head deadline before each read, so a client that trickles
+ * its head can't hold us past the deadline.  Read timeouts are translated
+ * into a 408.
  */
 public class RequestCallbackImpl implements RequestCallback {
 
-  private final InputStream is;
+  public static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+  public static final int DEFAULT_MAX_HEADERS = 100;
+  public static final int DEFAULT_MAX_HEAD_SIZE = 65536;
+  public static final long DEFAULT_HEAD_TIMEOUT = 30000;
+
+  private final int maxHeaders;
+  private final long headTimeout;
+
+  private final HeadReader reader;
 
   public RequestCallbackImpl(InputStream is) {
-    this.is = is;
+    this(
+        is,
+        DEFAULT_MAX_LINE_LENGTH,
+        DEFAULT_MAX_HEADERS,
+        DEFAULT_MAX_HEAD_SIZE,
+        DEFAULT_HEAD_TIMEOUT);
+  }
+
+  /**
+   * @param maxLineLength maximum request line or header line length
+   * @param maxHeaders maximum number of header lines
+   * @param maxHeadSize maximum length of the request line plus headers
+   * @param headTimeout maximum time in milliseconds to read the request
+   *   line and headers, or zero for no limit
+   */
+  public RequestCallbackImpl(
+      InputStream is,
+      int maxLineLength,
+      int maxHeaders,
+      int maxHeadSize,
+      long headTimeout) {
+    this.maxHeaders = maxHeaders;
+    this.headTimeout = headTimeout;
+    this.reader = new HeadReader(is, maxLineLength, maxHeadSize);
+  }
+
+  /**
+   * @param readTimeout the connection's regular read timeout in
+   *   milliseconds, which we restore once the head is read, or zero for
+   *   no limit
+   * @see #RequestCallbackImpl(InputStream,int,int,int,long)
+   */
+  public RequestCallbackImpl(
+      Connection con,
+      int maxLineLength,
+      int maxHeaders,
+      int maxHeadSize,
+      long headTimeout,
+      long readTimeout) throws IOException {
+    this(
+        con.getInputStream(), maxLineLength, maxHeaders, maxHeadSize,
+        headTimeout);
+    reader.setConnection(con, readTimeout);
   }
 
   public String readRequest() throws IOException {
-    return readLine();
+    reader.startHead(headTimeout);
+    return reader.readLine(414);
   }
 
   public List readHeaders() throws IOException {
-    List ret = new ArrayList();
-    while (true) {
-      String s = readLine();
-      if (s == null) break;
-      if (s.length() == 0) break;
-      ret.add(s);
-    }
-    return ret;
+    return reader.readHeaders(maxHeaders);
   }
 
   public byte[] readBody(int contentLength) throws IOException {
     int n = (contentLength > 0 ? contentLength : 0);
     byte[] body = new byte[n];
-    for (int offset = 0; offset < n; ) {
-      int count = is.read(body, offset, (n - offset));
+    int offset = 0;
+    while (offset < n) {
+      int count = reader.read(body, offset, (n - offset));
       if (count < 0) break;
       offset += count;
     }
     return body;
   }
-
-  private String readLine() throws IOException {
-    StringBuffer buf = new StringBuffer();
-    while (true) {
-      int b = is.read();
-      if (b < 0) break;
-      if (b == '\r') b = is.read();
-      if (b == '\n') break;
-      buf.append((char) b);
-    }
-    return buf.toString().trim();
-  }
 }
@@ -0,0 +1,73 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.micro.base;
+
+import java.io.IOException;
+
+/**
+ * An exception thrown by a {@link RequestCallback} if the request should be
+ * rejected with an HTTP error status, e.g. 408 or 431.
+ */
+public class RequestException extends IOException {
+
+  private final int status;
+
+  public RequestException(int status, String message) {
+    super(message);
+    this.status = status;
+  }
+
+  /** @return the HTTP status code, e.g. 400 */
+  public int getStatus() { return status; }
+
+  /** @return the standard HTTP status message for our status */
+  public String getStatusMessage() {
+    switch (status) {
+      case 400: return "Bad Request";
+      case 408: return "Request Timeout";
+      case 413: return "Request Entity Too Large";
+      case 414: return "Request-URI Too Long";
+      case 431: return "Request Header Fields Too Large";
+      case 502: return "Bad Gateway";
+      case 504: return "Gateway Timeout";
+      default: return "HTTP Response Status " + status;
+    }
+  }
+
+  /**
+   * @return the RequestException in the cause chain of the given exception,
+   *   or null if there isn't one
+   */
+  public static RequestException find(Throwable t) {
+    for (Throwable x = t; x != null; x = x.getCause()) {
+      if (x instanceof RequestException) {
+        return (RequestException) x;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,972 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.base;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * An optional cache of tunnelled "GET" responses, shared by all clients.
+ * <p>
+ * Typical usage is:<pre>
+ *   String key = target+" "+uri+"?"+query;
+ *   cache.service(key, req, res, new ResponseCache.Fetcher() {
+ *     public long fetch(HttpServletRequest req, HttpServletResponse res) {
+ *       Connection con = ..;
+ *       return {@link ServletTunnel#tunnel}(req, res, con, ..);
+ *     }
+ *   });
+ * </pre>
+ * <p>
+ * We honor the remote servlet's "Cache-Control" max-age, no-cache,
+ * no-store, and private directives, plus the "Expires" header.  A stale
+ * entry with an "ETag" or "Last-Modified" validator is revalidated with a
+ * conditional request, and a "304 Not Modified" refreshes it.  Responses
+ * with a "Set-Cookie" header are never cached.  Requests with
+ * credentials, ranges, or their own conditional headers bypass the cache.
+ * <p>
+ * The cache key includes the content-codings that the request accepts,
+ * e.g. "gzip" and "deflate", so a response with "Vary: Accept-Encoding"
+ * (as added by a compressing engine) is only served to clients that
+ * accept the same codings.  Responses that vary on any other header are
+ * not cached.
+ * <p>
+ * Bodies are held in direct (off-heap) buffers.  The total size is
+ * bounded, with least-recently-used eviction.  A response is buffered up
+ * to the maximum entry size before it's sent to the client, and larger
+ * responses are streamed through uncached.
+ * <p>
+ * Concurrent misses for the same key are collapsed into one upstream
+ * fetch, and the other requests are served from the cached result.  A
+ * request waits at most the <code>waitTimeout</code> for the fetch, e.g.
+ * the tunnel's read timeout, after which it fetches its own response.
+ */
+public class ResponseCache {
+
+  public static final long DEFAULT_MAX_BYTES = 16L << 20;
+  public static final int DEFAULT_MAX_ENTRY_BYTES = 256 << 10;
+  public static final long DEFAULT_WAIT_TIMEOUT = 60000;
+
+  /** A fetch of a cache miss, e.g. through a {@link ServletTunnel} */
+  public interface Fetcher {
+    /**
+     * @return the {@link ServletTunnel#tunnel} result, i.e. the positive
+     *   milliseconds until the response head was read, zero if the fetch
+     *   wasn't attempted, or -1 if it failed
+     */
+    long fetch(
+        HttpServletRequest req, HttpServletResponse res
+        ) throws ServletException, IOException;
+  }
+
+  // response headers that we don't store
+  private static final String[] UNSTORED_HEADERS = {
+    "Connection",
+    "Content-Length",
+    "Content-Type",
+    "Keep-Alive",
+    "Transfer-Encoding",
+  };
+
+  private final long maxBytes;
+  private final int maxEntryBytes;
+  private final long waitTimeout;
+
+  private final Object lock = new Object();
+  // map from String key to Entry, in least-recently-used order
+  private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+  // map from String key to Pending fetch
+  private final Map pending = new HashMap();
+  private long totalBytes;
+
+  private long hits;
+  private long misses;
+  private long collapsed;
+  private long revalidated;
+  private long evicted;
+
+  public ResponseCache() {
+    this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES);
+  }
+
+  /**
+   * @param maxBytes maximum total size of the cached bodies and headers
+   * @param maxEntryBytes maximum size of a single cached response body
+   */
+  public ResponseCache(long maxBytes, int maxEntryBytes) {
+    this(maxBytes, maxEntryBytes, DEFAULT_WAIT_TIMEOUT);
+  }
+
+  /**
+   * @param maxBytes maximum total size of the cached bodies and headers
+   * @param maxEntryBytes maximum size of a single cached response body
+   * @param waitTimeout maximum milliseconds to wait for a concurrent fetch
+   *   of the same key, or zero to wait until that fetch completes
+   */
+  public ResponseCache(long maxBytes, int maxEntryBytes, long waitTimeout) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = (int) Math.max(0, Math.min(maxEntryBytes, maxBytes));
+    this.waitTimeout = Math.max(0, waitTimeout);
+  }
+
+  /**
+   * Serve the request from the cache if possible, otherwise fetch it.
+   *
+   * @param key the target agent, path, and query
+   * @return zero if the request was served from the cache, otherwise the
+   *   {@link Fetcher#fetch} result
+   */
+  public long service(
+      String key,
+      HttpServletRequest req,
+      HttpServletResponse res,
+      Fetcher fetcher) throws ServletException, IOException {
+    if (!isCacheable(req)) {
+      return fetcher.fetch(req, res);
+    }
+
+    // a compressing engine may vary its response by our accepted codings
+    key = key+" "+getAcceptedCodings(req);
+
+    // a "no-cache" request skips the lookup, but can refresh the entry
+    boolean refresh = isNoCache(req);
+
+    Entry e;
+    Pending p;
+    boolean leader = false;
+    long now = System.currentTimeMillis();
+    synchronized (lock) {
+      e = (refresh ? null : (Entry) entries.get(key));
+      if (e != null && e.isFresh(now)) {
+        hits++;
+        p = null;
+      } else {
+        p = (Pending) pending.get(key);
+        if (p == null) {
+          p = new Pending();
+          pending.put(key, p);
+          leader = true;
+        }
+      }
+    }
+    if (p == null) {
+      serve(e, res, now);
+      return 0;
+    }
+
+    if (!leader) {
+      // wait for the concurrent fetch of the same key
+      p.await(waitTimeout);
+      now = System.currentTimeMillis();
+      synchronized (lock) {
+        e = (Entry) entries.get(key);
+        if (e != null && e.isFresh(now)) {
+          collapsed++;
+        } else {
+          // the response wasn't cacheable, fetch our own
+          e = null;
+          misses++;
+        }
+      }
+      if (e != null) {
+        serve(e, res, now);
+        return 0;
+      }
+      return fetcher.fetch(req, res);
+    }
+
+    try {
+      return fetch(key, req, res, fetcher, e);
+    } finally {
+      synchronized (lock) {
+        pending.remove(key);
+      }
+      p.done();
+    }
+  }
+
+  /** @return the number of entries */
+  public int size() {
+    synchronized (lock) {
+      return entries.size();
+    }
+  }
+
+  /** @return the total size of the entries in bytes */
+  public long getBytes() {
+    synchronized (lock) {
+      return totalBytes;
+    }
+  }
+
+  /** @return the number of requests served from fresh entries */
+  public long getHitCount() {
+    synchronized (lock) {
+      return hits;
+    }
+  }
+
+  /** @return the number of cacheable requests that were fetched */
+  public long getMissCount() {
+    synchronized (lock) {
+      return misses;
+    }
+  }
+
+  /** @return the number of requests served by a concurrent fetch */
+  public long getCollapsedCount() {
+    synchronized (lock) {
+      return collapsed;
+    }
+  }
+
+  /** @return the number of stale entries refreshed by a 304 */
+  public long getRevalidatedCount() {
+    synchronized (lock) {
+      return revalidated;
+    }
+  }
+
+  /** @return the number of entries evicted to bound our size */
+  public long getEvictedCount() {
+    synchronized (lock) {
+      return evicted;
+    }
+  }
+
+  private long fetch(
+      String key,
+      HttpServletRequest req,
+      HttpServletResponse res,
+      Fetcher fetcher,
+      Entry stale) throws ServletException, IOException {
+    synchronized (lock) {
+      misses++;
+    }
+
+    // revalidate a stale entry if it has a validator
+    HttpServletRequest r = req;
+    if (stale != null && stale.hasValidator()) {
+      r = new ConditionalRequest(req, stale);
+    }
+
+    long requestTime = System.currentTimeMillis();
+    Capture cap = new Capture(res, maxEntryBytes);
+    long ret = fetcher.fetch(r, cap);
+    if (cap.isSpilled()) {
+      // too large or an error, already streamed to the client
+      return ret;
+    }
+
+    long now = System.currentTimeMillis();
+    int status = cap.getStatus();
+    if (status == HttpServletResponse.SC_NOT_MODIFIED && r != req) {
+      // refresh our stale entry
+      Entry e = stale.revalidate(cap.getHeaders(), requestTime);
+      if (e != null) {
+        put(key, e);
+        synchronized (lock) {
+          revalidated++;
+        }
+      } else {
+        remove(key);
+      }
+      serve((e == null ? stale : e), res, now);
+      return ret;
+    }
+
+    // don't cache a failed fetch or a body that ended early, e.g. if the
+    // remote socket died or the session was aborted mid-body
+    Entry e = 
+      (status == HttpServletResponse.SC_OK && ret > 0 && cap.isComplete() ?
+       Entry.create(
+         cap.getHeaders(), cap.getContentType(), cap.getBody(),
+         requestTime) :
+       null);
+    if (e != null) {
+      put(key, e);
+    } else if (stale != null) {
+      remove(key);
+    }
+    cap.commit();
+    return ret;
+  }
+
+  private void put(String key, Entry e) {
+    synchronized (lock) {
+      Entry old = (Entry) entries.put(key, e);
+      if (old != null) {
+        totalBytes -= old.size;
+      }
+      totalBytes += e.size;
+      for (Iterator iter = entries.values().iterator();
+          totalBytes > maxBytes && iter.hasNext();
+          ) {
+        Entry x = (Entry) iter.next();
+        iter.remove();
+        totalBytes -= x.size;
+        evicted++;
+      }
+    }
+  }
+
+  private void remove(String key) {
+    synchronized (lock) {
+      Entry old = (Entry) entries.remove(key);
+      if (old != null) {
+        totalBytes -= old.size;
+      }
+    }
+  }
+
+  private static void serve(
+      Entry e, HttpServletResponse res, long now) throws IOException {
+    res.setStatus(HttpServletResponse.SC_OK);
+    for (int i = 0; i < e.headers.size(); i++) {
+      String[] h = (String[]) e.headers.get(i);
+      res.addHeader(h[0], h[1]);
+    }
+    res.setHeader("Age", Long.toString(Math.max(0, now - e.time) / 1000));
+    if (e.contentType != null) {
+      res.setContentType(e.contentType);
+    }
+    ByteBuffer bb = e.body.duplicate();
+    bb.clear();
+    res.setContentLength(bb.remaining());
+    ServletOutputStream out = res.getOutputStream();
+    byte[] buf = BufferPool.take();
+    try {
+      while (bb.hasRemaining()) {
+        int n = Math.min(buf.length, bb.remaining());
+        bb.get(buf, 0, n);
+        out.write(buf, 0, n);
+      }
+    } finally {
+      BufferPool.give(buf);
+    }
+    out.flush();
+  }
+
+  private static boolean isCacheable(HttpServletRequest req) {
+    return
+      "GET".equals(req.getMethod()) &&
+      req.getHeader("Authorization") == null &&
+      req.getHeader("Range") == null &&
+      req.getHeader("If-None-Match") == null &&
+      req.getHeader("If-Modified-Since") == null;
+  }
+
+  /**
+   * @return the sorted, comma-separated content-codings that the request
+   *   accepts, e.g. "deflate,gzip", excluding any with "q=0"
+   */
+  static String getAcceptedCodings(HttpServletRequest req) {
+    String accept = req.getHeader("Accept-Encoding");
+    if (accept == null) {
+      return "";
+    }
+    List l = new ArrayList();
+    String[] sa = accept.split(",");
+    for (int i = 0; i < sa.length; i++) {
+      String si = sa[i].trim();
+      int sep = si.indexOf(';');
+      String name = (sep < 0 ? si : si.substring(0, sep).trim());
+      if (sep >= 0) {
+        String params = si.substring(sep+1).trim();
+        if (params.startsWith("q=")) {
+          try {
+            if (Double.parseDouble(params.substring(2).trim()) <= 0.0) {
+              continue;
+            }
+          } catch (NumberFormatException nfe) {
+            continue;
+          }
+        }
+      }
+      name = name.toLowerCase();
+      if ("x-gzip".equals(name)) {
+        name = "gzip";
+      }
+      if (name.length() > 0 && !l.contains(name)) {
+        l.add(name);
+      }
+    }
+    Collections.sort(l);
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < l.size(); i++) {
+      if (i > 0) {
+        buf.append(",");
+      }
+      buf.append(l.get(i));
+    }
+    return buf.toString();
+  }
+
+  private static boolean isNoCache(HttpServletRequest req) {
+    String cc = req.getHeader("Cache-Control");
+    String pragma = req.getHeader("Pragma");
+    return
+      (cc != null && cc.toLowerCase().indexOf("no-cache") >= 0) ||
+      (pragma != null && pragma.toLowerCase().indexOf("no-cache") >= 0);
+  }
+
+  private static String findHeader(List headers, String name) {
+    for (int i = 0; i < headers.size(); i++) {
+      String[] h = (String[]) headers.get(i);
+      if (h[0].equalsIgnoreCase(name)) {
+        return h[1];
+      }
+    }
+    return null;
+  }
+
+  private static long parseDate(String s) {
+    if (s == null) {
+      return -1;
+    }
+    SimpleDateFormat format = 
+      new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return format.parse(s.trim()).getTime();
+    } catch (Exception e) {
+      // e.g. "Expires: 0", which means already expired
+      return 0;
+    }
+  }
+
+  /** A cached response */
+  private static final class Entry {
+    // List of String[] {name, value}, excluding our UNSTORED_HEADERS
+    final List headers;
+    final String contentType;
+    // off-heap body
+    final ByteBuffer body;
+    // System.currentTimeMillis when we requested the response
+    final long time;
+    // milliseconds that the entry is fresh, which may be zero
+    final long lifetime;
+    final int size;
+
+    private Entry(
+        List headers, String contentType, ByteBuffer body,
+        long time, long lifetime) {
+      this.headers = headers;
+      this.contentType = contentType;
+      this.body = body;
+      this.time = time;
+      this.lifetime = lifetime;
+      int n = body.capacity() + 64;
+      for (int i = 0; i < headers.size(); i++) {
+        String[] h = (String[]) headers.get(i);
+        n += h[0].length() + h[1].length() + 4;
+      }
+      this.size = n;
+    }
+
+    /**
+     * @return a new entry, or null if the response isn't cacheable
+     */
+    static Entry create(
+        List headers, String contentType, byte[] body, long time) {
+      List l = storedHeaders(headers);
+      long lifetime = getLifetime(l, time);
+      if (lifetime < 0) {
+        return null;
+      }
+      ByteBuffer bb = ByteBuffer.allocateDirect(body.length);
+      bb.put(body);
+      bb.flip();
+      return new Entry(
+          Collections.unmodifiableList(l), contentType, bb, time, lifetime);
+    }
+
+    boolean isFresh(long now) {
+      return now - time < lifetime;
+    }
+
+    boolean hasValidator() {
+      return 
+        findHeader(headers, "ETag") != null ||
+        findHeader(headers, "Last-Modified") != null;
+    }
+
+    /**
+     * @param notModified the "304 Not Modified" headers
+     * @return the refreshed entry, or null if it's no longer cacheable
+     */
+    Entry revalidate(List notModified, long time) {
+      List l = new ArrayList(headers);
+      List updates = storedHeaders(notModified);
+      for (int i = 0; i < updates.size(); i++) {
+        String[] u = (String[]) updates.get(i);
+        for (Iterator iter = l.iterator(); iter.hasNext(); ) {
+          String[] h = (String[]) iter.next();
+          if (h[0].equalsIgnoreCase(u[0])) {
+            iter.remove();
+          }
+        }
+      }
+      l.addAll(updates);
+      long lt = getLifetime(l, time);
+      if (lt < 0) {
+        return null;
+      }
+      return new Entry(
+          Collections.unmodifiableList(l), contentType, body, time, lt);
+    }
+
+    private static List storedHeaders(List headers) {
+      List ret = new ArrayList(headers.size());
+      outer:
+      for (int i = 0; i < headers.size(); i++) {
+        String[] h = (String[]) headers.get(i);
+        for (int j = 0; j < UNSTORED_HEADERS.length; j++) {
+          if (UNSTORED_HEADERS[j].equalsIgnoreCase(h[0])) {
+            continue outer;
+          }
+        }
+        ret.add(h);
+      }
+      return ret;
+    }
+
+    /**
+     * @return the milliseconds that the response is fresh, which is zero
+     *   if it must always be revalidated, or -1 if it's not cacheable
+     */
+    private static long getLifetime(List headers, long time) {
+      if (findHeader(headers, "Set-Cookie") != null) {
+        return -1;
+      }
+      for (int i = 0; i < headers.size(); i++) {
+        String[] h = (String[]) headers.get(i);
+        if (h[0].equalsIgnoreCase("Vary") && !isAcceptEncoding(h[1])) {
+          // e.g. "Vary: *" or "Vary: Cookie"
+          return -1;
+        }
+      }
+      long lifetime = -1;
+      String cc = findHeader(headers, "Cache-Control");
+      if (cc != null) {
+        long maxAge = -1;
+        long sMaxAge = -1;
+        String[] a = cc.toLowerCase().split(",");
+        for (int i = 0; i < a.length; i++) {
+          String s = a[i].trim();
+          if (s.equals("no-store") || s.equals("private")) {
+            return -1;
+          } else if (s.equals("no-cache")) {
+            lifetime = 0;
+          } else if (s.startsWith("max-age=")) {
+            maxAge = parseSeconds(s.substring(8));
+          } else if (s.startsWith("s-maxage=")) {
+            sMaxAge = parseSeconds(s.substring(9));
+          }
+        }
+        if (lifetime < 0) {
+          lifetime = (sMaxAge >= 0 ? sMaxAge : maxAge);
+        }
+      }
+      if (lifetime < 0) {
+        String expires = findHeader(headers, "Expires");
+        if (expires != null) {
+          long date = parseDate(findHeader(headers, "Date"));
+          long exp = parseDate(expires);
+          lifetime = Math.max(0, exp - (date > 0 ? date : time));
+        }
+      }
+      if (lifetime <= 0) {
+        // we can still cache it if we can revalidate it
+        boolean validator =
+          findHeader(headers, "ETag") != null ||
+          findHeader(headers, "Last-Modified") != null;
+        return (validator ? 0 : -1);
+      }
+      return lifetime;
+    }
+
+    /**
+     * @return true if the "Vary" value only lists "Accept-Encoding", which
+     *   is part of our key
+     */
+    private static boolean isAcceptEncoding(String vary) {
+      String[] a = vary.split(",");
+      for (int i = 0; i < a.length; i++) {
+        String s = a[i].trim();
+        if (s.length() > 0 && !s.equalsIgnoreCase("Accept-Encoding")) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static long parseSeconds(String s) {
+      try {
+        return Math.max(0, Long.parseLong(s.trim())) * 1000;
+      } catch (NumberFormatException nfe) {
+        return 0;
+      }
+    }
+  }
+
+  /** A concurrent fetch that other requests can wait for */
+  private static final class Pending {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    void await(long timeout) {
+      try {
+        if (timeout > 0) {
+          latch.await(timeout, TimeUnit.MILLISECONDS);
+        } else {
+          latch.await();
+        }
+      } catch (InterruptedException ie) {
+        // give up waiting, we'll fetch it ourselves
+      }
+    }
+    void done() {
+      latch.countDown();
+    }
+  }
+
+  /** A request with the validators of our stale entry */
+  private static final class ConditionalRequest
+    extends HttpServletRequestWrapper {
+    // map from header name to value
+    private final Map extra = new LinkedHashMap();
+    ConditionalRequest(HttpServletRequest req, Entry stale) {
+      super(req);
+      String etag = findHeader(stale.headers, "ETag");
+      if (etag != null) {
+        extra.put("If-None-Match", etag);
+      }
+      String lastModified = findHeader(stale.headers, "Last-Modified");
+      if (lastModified != null) {
+        extra.put("If-Modified-Since", lastModified);
+      }
+    }
+    private String find(String name) {
+      for (Iterator iter = extra.entrySet().iterator(); iter.hasNext(); ) {
+        Map.Entry me = (Map.Entry) iter.next();
+        if (((String) me.getKey()).equalsIgnoreCase(name)) {
+          return (String) me.getValue();
+        }
+      }
+      return null;
+    }
+    public String getHeader(String name) {
+      String s = find(name);
+      return (s == null ? super.getHeader(name) : s);
+    }
+    public Enumeration getHeaders(String name) {
+      String s = find(name);
+      return 
+        (s == null ?
+         super.getHeaders(name) :
+         Collections.enumeration(Collections.singletonList(s)));
+    }
+    public Enumeration getHeaderNames() {
+      List l = new ArrayList(extra.keySet());
+      for (Enumeration en = super.getHeaderNames(); en.hasMoreElements(); ) {
+        String name = (String) en.nextElement();
+        if (find(name) == null) {
+          l.add(name);
+        }
+      }
+      return Collections.enumeration(l);
+    }
+  }
+
+  /**
+   * A response that buffers the status, headers, and body until either
+   * the response is complete or the body exceeds our entry limit, in which
+   * case it "spills" everything to the client response and streams the
+   * rest through.
+   */
+  private static final class Capture extends HttpServletResponseWrapper {
+    private final int limit;
+    private int status = SC_OK;
+    // List of String[] {name, value}, or {name, value, "set"}
+    private final List headers = new ArrayList();
+    private String contentType;
+    private int contentLength = -1;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private boolean spilled;
+    private ServletOutputStream out;
+    private PrintWriter writer;
+    // the client response stream, which we can only get once
+    private ServletOutputStream target;
+
+    Capture(HttpServletResponse res, int limit) {
+      super(res);
+      this.limit = limit;
+    }
+
+    boolean isSpilled() { return spilled; }
+    int getStatus() { return status; }
+    String getContentType() { return contentType; }
+    byte[] getBody() { return body.toByteArray(); }
+
+    /** @return false if the body is shorter than its Content-Length */
+    boolean isComplete() {
+      return contentLength < 0 || body.size() == contentLength;
+    }
+
+    /** @return the List of String[] {name, value} headers */
+    List getHeaders() {
+      List ret = new ArrayList(headers.size());
+      for (int i = 0; i < headers.size(); i++) {
+        String[] h = (String[]) headers.get(i);
+        ret.add(new String[] {h[0], h[1]});
+      }
+      return ret;
+    }
+
+    /** Send our buffered response to the client */
+    void commit() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      spill();
+      getResponse().flushBuffer();
+    }
+
+    private void spill() throws IOException {
+      if (spilled) {
+        return;
+      }
+      spilled = true;
+      HttpServletResponse res = (HttpServletResponse) getResponse();
+      res.setStatus(status);
+      for (int i = 0; i < headers.size(); i++) {
+        String[] h = (String[]) headers.get(i);
+        if (h.length > 2) {
+          res.setHeader(h[0], h[1]);
+        } else {
+          res.addHeader(h[0], h[1]);
+        }
+      }
+      if (contentType != null) {
+        res.setContentType(contentType);
+      }
+      if (contentLength >= 0) {
+        res.setContentLength(contentLength);
+      }
+      if (body.size() > 0) {
+        body.writeTo(getTarget());
+        body.reset();
+      }
+    }
+
+    private ServletOutputStream getTarget() throws IOException {
+      if (target == null) {
+        target = getResponse().getOutputStream();
+      }
+      return target;
+    }
+
+    private void header(String name, String value, boolean set) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        try {
+          contentLength = Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+          contentLength = -1;
+        }
+      }
+      if (set) {
+        for (Iterator iter = headers.iterator(); iter.hasNext(); ) {
+          String[] h = (String[]) iter.next();
+          if (h[0].equalsIgnoreCase(name)) {
+            iter.remove();
+          }
+        }
+      }
+      headers.add(
+          set ?
+          new String[] {name, value, "set"} :
+          new String[] {name, value});
+    }
+
+    public void setStatus(int sc) {
+      if (spilled) {
+        super.setStatus(sc);
+      } else {
+        status = sc;
+      }
+    }
+    public void setStatus(int sc, String sm) {
+      setStatus(sc);
+    }
+    public void sendError(int sc) throws IOException {
+      spill();
+      super.sendError(sc);
+    }
+    public void sendError(int sc, String msg) throws IOException {
+      spill();
+      super.sendError(sc, msg);
+    }
+    public void sendRedirect(String location) throws IOException {
+      spill();
+      super.sendRedirect(location);
+    }
+    public boolean containsHeader(String name) {
+      if (spilled) {
+        return super.containsHeader(name);
+      }
+      return findHeader(headers, name) != null;
+    }
+    public void setHeader(String name, String value) {
+      if (spilled) {
+        super.setHeader(name, value);
+      } else {
+        header(name, value, true);
+      }
+    }
+    public void addHeader(String name, String value) {
+      if (spilled) {
+        super.addHeader(name, value);
+      } else {
+        header(name, value, false);
+      }
+    }
+    public void setIntHeader(String name, int value) {
+      setHeader(name, Integer.toString(value));
+    }
+    public void addIntHeader(String name, int value) {
+      addHeader(name, Integer.toString(value));
+    }
+    public void setDateHeader(String name, long date) {
+      setHeader(name, formatDate(date));
+    }
+    public void addDateHeader(String name, long date) {
+      addHeader(name, formatDate(date));
+    }
+    public void setContentType(String type) {
+      if (spilled) {
+        super.setContentType(type);
+      } else {
+        contentType = type;
+      }
+    }
+    public void setContentLength(int len) {
+      if (spilled) {
+        super.setContentLength(len);
+      } else {
+        contentLength = len;
+      }
+    }
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (out == null) {
+        out = new ServletOutputStream() {
+          public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+          }
+          public void write(byte[] b, int off, int len) throws IOException {
+            if (!spilled && body.size() + len > limit) {
+              spill();
+            }
+            if (spilled) {
+              getTarget().write(b, off, len);
+            } else {
+              body.write(b, off, len);
+            }
+          }
+          public void flush() throws IOException {
+            // only flush once we're streaming to the client
+            if (spilled) {
+              getTarget().flush();
+            }
+          }
+        };
+      }
+      return out;
+    }
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        writer = new PrintWriter(
+            new OutputStreamWriter(
+              getOutputStream(), getCharacterEncoding()));
+      }
+      return writer;
+    }
+    public void flushBuffer() throws IOException {
+      if (spilled) {
+        super.flushBuffer();
+      }
+    }
+    public boolean isCommitted() {
+      return spilled && super.isCommitted();
+    }
+    public void resetBuffer() {
+      if (spilled) {
+        super.resetBuffer();
+      } else {
+        body.reset();
+      }
+    }
+    public void reset() {
+      if (spilled) {
+        super.reset();
+      } else {
+        status = SC_OK;
+        headers.clear();
+        contentType = null;
+        contentLength = -1;
+        body.reset();
+      }
+    }
+
+    private static String formatDate(long date) {
+      SimpleDateFormat format = 
+        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format.format(new Date(date));
+    }
+  }
+}
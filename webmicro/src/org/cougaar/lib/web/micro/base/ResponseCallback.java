@@ -46,6 +46,13 @@ public interface ResponseCallback {
   Map getHeaders();
   String getHeaderLines();
 
+  boolean isCommitted();
+  int getBufferSize();
+  void setBufferSize(int size);
+  void flushBuffer() throws IOException;
+  void resetBuffer();
+  void reset();
+
   ServletOutputStream createOutputStream() throws IOException;
   PrintWriter createWriter() throws IOException;
 
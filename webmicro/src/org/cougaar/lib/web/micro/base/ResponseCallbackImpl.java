@@ -26,6 +26,7 @@
 
 package org.cougaar.lib.web.micro.base;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -39,21 +40,76 @@ import javax.servlet.ServletOutputStream;
 
 /**
  * A standard implementation of the {@link ResponseCallback} API.
+ * <p>
+ * The response body is buffered until either the buffer fills, the servlet
+ * flushes the stream, or the response is finished.  If the entire body fits
+ * in the buffer then we set the "Content-Length" header and send the status
+ * line, headers, and body in a single write.
  */
 public class ResponseCallbackImpl implements ResponseCallback {
 
-  private final String protocol = "HTTP/1.0";
+  /** Default response buffer size in bytes */
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private static final String PROTOCOL = "HTTP/1.0";
+
+  // precomputed byte sequences for the common head elements
+  private static final byte[] CRLF = ascii("\r\n");
+  private static final byte[] COLON_SP = ascii(": ");
+  private static final Map STATUS_LINES = new HashMap();
+  private static final Map HEADER_NAMES = new HashMap();
+  static {
+    int[] sc = {200, 302, 304, 404, 500, 501, 503};
+    String[] sm = {
+      "OK", "Moved Temporarily", "Not Modified", "Not Found",
+      "Internal Server Error", "Not Implemented", "Service Unavailable",
+    };
+    for (int i = 0; i < sc.length; i++) {
+      STATUS_LINES.put(
+          sc[i]+" "+sm[i],
+          ascii(PROTOCOL+" "+sc[i]+" "+sm[i]+"\r\n"));
+    }
+    String[] names = {
+      "Content-Type", "Content-Length", "Location", "Cache-Control",
+      "Expires", "Last-Modified", "Date", "Server", "Connection",
+    };
+    for (int i = 0; i < names.length; i++) {
+      HEADER_NAMES.put(names[i], ascii(names[i]));
+    }
+  }
+
   private final Map headers = new HashMap();
   private int status = 200;
   private String message = "OK";
   private boolean error = false;
 
   private final OutputStream os;
-  private ServletOutputStream out;
+
+  // our response body buffer
+  private byte[] buf;
+  private int count;
+
+  private boolean committed;
+  private boolean closing;
+  private boolean finished;
+
+  private BufferedOutputStream out;
   private PrintWriter writer;
 
   public ResponseCallbackImpl(OutputStream os) {
+    this(os, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize initial response buffer size, or zero to disable
+   *   buffering
+   */
+  public ResponseCallbackImpl(OutputStream os, int bufferSize) {
     this.os = os;
+    if (os == null) {
+      throw new IllegalArgumentException("null stream");
+    }
+    this.buf = new byte[Math.max(0, bufferSize)];
   }
 
   public boolean isError() { return error; }
@@ -69,7 +125,7 @@ public class ResponseCallbackImpl implements ResponseCallback {
   }
   public String getStatusLine() {
     return
-      protocol+" "+status+
+      PROTOCOL+" "+status+
       (message == null ? "" : (" "+message))+
       "\r\n";
   }
@@ -96,25 +152,54 @@ public class ResponseCallbackImpl implements ResponseCallback {
     return buf.toString();
   }
 
+  //
+  // buffer control:
+  //
+
+  public boolean isCommitted() { return committed; }
+  public int getBufferSize() { return buf.length; }
+  public void setBufferSize(int size) {
+    if (committed || count > 0) {
+      throw new IllegalStateException(
+          "Unable to set buffer size after content has been written");
+    }
+    if (size > buf.length) {
+      buf = new byte[size];
+    }
+  }
+  public void flushBuffer() throws IOException {
+    if (writer != null) {
+      // push the encoded chars into our buffer, which will commit
+      writer.flush();
+    } else {
+      commit(false);
+      os.flush();
+    }
+  }
+  public void resetBuffer() {
+    if (committed) {
+      throw new IllegalStateException("Already committed");
+    }
+    count = 0;
+  }
+  public void reset() {
+    resetBuffer();
+    headers.clear();
+    status = 200;
+    message = "OK";
+    error = false;
+  }
+
+  //
+  // streams:
+  //
+
   public ServletOutputStream createOutputStream() throws IOException {
     if (out != null || writer != null) {
       throw new IllegalStateException(
           "Already created "+(writer == null ? "OutputStream" : "Writer"));
     }
-    if (os instanceof ServletOutputStream) {
-      out = (ServletOutputStream) os;
-    } else {
-      out = new ServletOutputStream() {
-        public void write(int b) throws IOException { os.write(b); }
-        public void write(byte b[]) throws IOException { os.write(b); }
-        public void write(byte b[], int off, int len) throws IOException {
-          os.write(b, off, len);
-        }
-        public void flush() throws IOException { os.flush(); }
-        public void close() throws IOException { os.close(); }
-      };
-    }
-    sendHeaders();
+    out = new BufferedOutputStream();
     return out;
   }
 
@@ -123,35 +208,167 @@ public class ResponseCallbackImpl implements ResponseCallback {
       throw new IllegalStateException(
           "Already created "+(writer == null ? "OutputStream" : "Writer"));
     }
-    writer = new PrintWriter(new OutputStreamWriter(os));
-    sendHeaders();
+    out = new BufferedOutputStream();
+    writer = new PrintWriter(
+        new OutputStreamWriter(out) {
+          public void close() throws IOException {
+            // the encoder flushes before it closes, which would commit our
+            // response before we've had a chance to set the Content-Length
+            closing = true;
+            super.close();
+          }
+        });
     return writer;
   }
 
-  private void sendHeaders() throws IOException {
-    if (out != null) {
-      out.print(getStatusLine());
-      out.print(getHeaderLines());
-      out.flush();
-    } else if (writer != null) {
-      writer.print(getStatusLine());
-      writer.print(getHeaderLines());
-      writer.flush();
-    } else {
-      throw new IllegalStateException("Missing stream");
-    }
-  }
-
   public void finishResponse() throws IOException {
     // close streams, let the "close()" do the flush.
-    if (out == null && writer == null) {
+    if (out == null) {
       // create stream to write our headers
-      out = createOutputStream(); 
-      out.close();
-    } else if (out != null) {
+      out = (BufferedOutputStream) createOutputStream(); 
       out.close();
-    } else {
+    } else if (writer != null) {
       writer.close();
+    } else {
+      out.close();
+    }
+  }
+
+  //
+  // impl:
+  //
+
+  private void bufferedWrite(byte[] b, int off, int len) throws IOException {
+    if (finished) {
+      throw new IOException("closed");
+    }
+    if (count + len > buf.length) {
+      // overflow, so send what we have
+      commit(false);
+      if (len >= buf.length) {
+        // large write, bypass our buffer
+        os.write(b, off, len);
+        return;
+      }
+    }
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  private void bufferedFlush() throws IOException {
+    if (finished || closing) return;
+    commit(false);
+    os.flush();
+  }
+
+  private void bufferedClose() throws IOException {
+    if (finished) return;
+    commit(true);
+    finished = true;
+    os.close();
+  }
+
+  /**
+   * Send our buffered data, preceded by the head if we haven't already
+   * committed the response.
+   *
+   * @param complete true if the buffer contains the entire body, in which
+   *   case we can compute the "Content-Length"
+   */
+  private void commit(boolean complete) throws IOException {
+    if (committed) {
+      if (count > 0) {
+        os.write(buf, 0, count);
+        count = 0;
+      }
+      return;
+    }
+    committed = true;
+
+    if (complete && !hasHeader("Content-Length")) {
+      headers.put("Content-Length", Integer.toString(count));
+    }
+
+    // gather the head and body into a single write
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(256 + count);
+    writeHead(bos);
+    bos.write(buf, 0, count);
+    bos.writeTo(os);
+    count = 0;
+  }
+
+  private boolean hasHeader(String name) {
+    if (headers.containsKey(name)) {
+      return true;
+    }
+    for (Iterator iter = headers.keySet().iterator(); iter.hasNext(); ) {
+      if (name.equalsIgnoreCase((String) iter.next())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void writeHead(ByteArrayOutputStream bos) throws IOException {
+    byte[] b = (byte[]) STATUS_LINES.get(status+" "+message);
+    bos.write(b != null ? b : ascii(getStatusLine()));
+    for (Iterator iter = headers.entrySet().iterator();
+        iter.hasNext();
+        ) {
+      Map.Entry me = (Map.Entry) iter.next();
+      String name = (String) me.getKey();
+      byte[] nb = (byte[]) HEADER_NAMES.get(name);
+      if (nb == null) {
+        nb = ascii(name);
+      }
+      Object o = me.getValue();
+      if (o instanceof String) {
+        writeHeader(bos, nb, (String) o);
+      } else {
+        List l = (List) o;
+        for (int i = 0; i < l.size(); i++) {
+          writeHeader(bos, nb, (String) l.get(i));
+        }
+      }
+    }
+    bos.write(CRLF);
+  }
+
+  private static void writeHeader(
+      ByteArrayOutputStream bos, byte[] name, String value
+      ) throws IOException {
+    bos.write(name);
+    bos.write(COLON_SP);
+    bos.write(ascii(value));
+    bos.write(CRLF);
+  }
+
+  private static byte[] ascii(String s) {
+    int n = s.length();
+    byte[] b = new byte[n];
+    for (int i = 0; i < n; i++) {
+      b[i] = (byte) s.charAt(i);
+    }
+    return b;
+  }
+
+  private class BufferedOutputStream extends ServletOutputStream {
+    private final byte[] tmp = new byte[1];
+    public void write(int b) throws IOException {
+      tmp[0] = (byte) b;
+      bufferedWrite(tmp, 0, 1);
+    }
+    public void write(byte b[]) throws IOException {
+      bufferedWrite(b, 0, b.length);
+    }
+    public void write(byte b[], int off, int len) throws IOException {
+      if ((off < 0) || (off > b.length) || (len < 0) ||
+          ((off + len) > b.length) || ((off + len) < 0)) {
+        throw new IndexOutOfBoundsException();
+      }
+      bufferedWrite(b, off, len);
     }
+    public void flush() throws IOException { bufferedFlush(); }
+    public void close() throws IOException { bufferedClose(); }
   }
 }
@@ -26,12 +26,15 @@
 
 package org.cougaar.lib.web.micro.base;
 
-import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.BindException;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
@@ -44,12 +47,52 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * A servlet engine backed by our {@link ServerFactory} support.
+ * <p>
+ * Supported options:<pre>
+ *   http.bufferSize  response buffer size in bytes, defaults to
+ *                    {@link ResponseCallbackImpl#DEFAULT_BUFFER_SIZE}
+ *   ipOnly, hostCache.*
+ *                    remote host name lookups, see {@link HostNameCache}
+ *   http.maxLineLength
+ *                    maximum request or header line length, defaults to
+ *                    {@link RequestCallbackImpl#DEFAULT_MAX_LINE_LENGTH}
+ *   http.maxHeaders  maximum number of request headers, defaults to
+ *                    {@link RequestCallbackImpl#DEFAULT_MAX_HEADERS}
+ *   http.maxHeadSize maximum request line plus headers size, defaults to
+ *                    {@link RequestCallbackImpl#DEFAULT_MAX_HEAD_SIZE}
+ *   http.headTimeout milliseconds allowed to read the request line and
+ *                    headers, defaults to
+ *                    {@link RequestCallbackImpl#DEFAULT_HEAD_TIMEOUT}
+ *   http.readTimeout the connection's regular read timeout, which we
+ *                    shrink while reading the head so a slow client
+ *                    can't outlast the head timeout.  Defaults to the
+ *                    {@link SocketServerFactory#DEFAULT_READ_TIMEOUT}
+ *                    for sockets, otherwise 0.
+ * </pre>
+ * Requests that exceed these limits or can't be parsed are rejected with
+ * a 400, 408, 414, or 431 error, and counted by status in
+ * {@link #getRejectedCounts}.
+ * <p>
+ * A tunnelled request's {@link ServletTunnel#DEADLINE_HEADER} is saved as
+ * the {@link ServletTunnel#DEADLINE_ATTRIBUTE}, so a servlet that tunnels
+ * the request to another hop passes along the remaining time.  Requests
+ * that arrive with an expired deadline are rejected with a 504.
  */
 public class ServletEngineImpl implements ServletEngine {
 
   private final ServerFactory factory;
+  private final Executor resolver;
 
   private Map settings;
+  private int bufferSize = ResponseCallbackImpl.DEFAULT_BUFFER_SIZE;
+  private HostNameCache hostNames = HostNameCache.getDefault();
+  private int maxLineLength = RequestCallbackImpl.DEFAULT_MAX_LINE_LENGTH;
+  private int maxHeaders = RequestCallbackImpl.DEFAULT_MAX_HEADERS;
+  private int maxHeadSize = RequestCallbackImpl.DEFAULT_MAX_HEAD_SIZE;
+  private long headTimeout = RequestCallbackImpl.DEFAULT_HEAD_TIMEOUT;
+  private long readTimeout;
+  // map from Integer status to long[] {count}, guarded by its lock
+  private final Map rejected = new HashMap();
   private boolean running;
   private ServerFactory.ListenerControl controller;
   private Servlet servlet;
@@ -58,7 +101,15 @@ public class ServletEngineImpl implements ServletEngine {
     this(new SocketServerFactory());
   }
   public ServletEngineImpl(ServerFactory factory) {
+    this(factory, null);
+  }
+  /**
+   * @param resolver optional executor for background host name lookups,
+   *   see {@link HostNameCache}
+   */
+  public ServletEngineImpl(ServerFactory factory, Executor resolver) {
     this.factory = factory;
+    this.resolver = resolver;
     if (factory == null) {
       throw new IllegalArgumentException("null factory");
     }
@@ -85,7 +136,43 @@ public class ServletEngineImpl implements ServletEngine {
   //
 
   public void configure(int httpPort, int httpsPort, Map options) {
-    this.settings = Collections.singletonMap("port", Integer.toString(httpPort));
+    Map m = new HashMap();
+    if (options != null) {
+      m.putAll(options);
+    }
+    m.put("port", Integer.toString(httpPort));
+    this.settings = Collections.unmodifiableMap(m);
+
+    String s = (String) m.get("http.bufferSize");
+    if (s != null) {
+      bufferSize = Integer.parseInt(s);
+    }
+    hostNames = HostNameCache.getInstance(m, resolver);
+
+    s = (String) m.get("http.maxLineLength");
+    if (s != null) {
+      maxLineLength = Integer.parseInt(s);
+    }
+    s = (String) m.get("http.maxHeaders");
+    if (s != null) {
+      maxHeaders = Integer.parseInt(s);
+    }
+    s = (String) m.get("http.maxHeadSize");
+    if (s != null) {
+      maxHeadSize = Integer.parseInt(s);
+    }
+    s = (String) m.get("http.headTimeout");
+    if (s != null) {
+      headTimeout = Long.parseLong(s);
+    }
+    s = (String) m.get("http.readTimeout");
+    if (s != null) {
+      readTimeout = Long.parseLong(s);
+    } else {
+      readTimeout =
+        (factory instanceof SocketServerFactory ?
+         SocketServerFactory.DEFAULT_READ_TIMEOUT : 0);
+    }
   }
   public void start() throws BindException, IOException {
     running = true;
@@ -123,6 +210,46 @@ public class ServletEngineImpl implements ServletEngine {
     }
   }
 
+  /**
+   * @return the number of requests that we've rejected because they
+   *   exceeded our limits, timed out, or couldn't be parsed
+   */
+  public long getRejectedCount() {
+    long n = 0;
+    synchronized (rejected) {
+      for (Iterator iter = rejected.values().iterator(); iter.hasNext(); ) {
+        n += ((long[]) iter.next())[0];
+      }
+    }
+    return n;
+  }
+
+  /**
+   * @return the number of requests that we've rejected with the given
+   *   status, e.g. 408 for a head timeout or 431 for a head limit
+   */
+  public long getRejectedCount(int status) {
+    synchronized (rejected) {
+      long[] count = (long[]) rejected.get(new Integer(status));
+      return (count == null ? 0 : count[0]);
+    }
+  }
+
+  /**
+   * @return a sorted map from Integer status to Long count of our
+   *   rejected requests
+   */
+  public Map getRejectedCounts() {
+    Map ret = new TreeMap();
+    synchronized (rejected) {
+      for (Iterator iter = rejected.entrySet().iterator(); iter.hasNext(); ) {
+        Map.Entry me = (Map.Entry) iter.next();
+        ret.put(me.getKey(), new Long(((long[]) me.getValue())[0]));
+      }
+    }
+    return ret;
+  }
+
   //
   // impl:
   //
@@ -130,15 +257,33 @@ public class ServletEngineImpl implements ServletEngine {
   private void accept(Connection con) throws IOException {
     try {
       // read request
-      InputStream is = con.getInputStream();
-      HttpServletRequest req =
-        new HttpServletRequestImpl(
-            new RequestCallbackImpl(is),
-            con.getMetaData());
+      HttpServletRequest req;
+      try {
+        req =
+          new HttpServletRequestImpl(
+              new RequestCallbackImpl(
+                con, maxLineLength, maxHeaders, maxHeadSize, headTimeout,
+                readTimeout),
+              con.getMetaData(),
+              hostNames);
+      } catch (RuntimeException e) {
+        reject(con, e);
+        return;
+      }
+
+      // give up early if our caller has stopped waiting
+      long deadline = ServletTunnel.getDeadline(req);
+      if (deadline > 0) {
+        req.setAttribute(ServletTunnel.DEADLINE_ATTRIBUTE, new Long(deadline));
+        if (deadline <= System.currentTimeMillis()) {
+          reject(con, new RequestException(504, "Deadline expired"));
+          return;
+        }
+      }
 
       // prepare response
       OutputStream out = con.getOutputStream();
-      ResponseCallback rc = new ResponseCallbackImpl(out);
+      ResponseCallback rc = new ResponseCallbackImpl(out, bufferSize);
       HttpServletResponse res = new HttpServletResponseImpl(rc);
 
       // invoke servlet
@@ -154,4 +299,32 @@ public class ServletEngineImpl implements ServletEngine {
       con.close();
     }
   }
+
+  private void reject(Connection con, Exception e) {
+    RequestException re = RequestException.find(e);
+    int status = (re == null ? 400 : re.getStatus());
+    synchronized (rejected) {
+      Integer key = new Integer(status);
+      long[] count = (long[]) rejected.get(key);
+      if (count == null) {
+        count = new long[1];
+        rejected.put(key, count);
+      }
+      count[0]++;
+    }
+    String msg = 
+      (re == null ? "Bad Request" : re.getStatusMessage());
+    String head =
+      "HTTP/1.0 "+status+" "+msg+"\r\n"+
+      "Content-Length: 0\r\n"+
+      "Connection: close\r\n"+
+      "\r\n";
+    try {
+      OutputStream out = con.getOutputStream();
+      out.write(head.getBytes("ISO-8859-1"));
+      out.flush();
+    } catch (IOException ioe) {
+      // client is gone, just close
+    }
+  }
 }
@@ -26,13 +26,16 @@
 
 package org.cougaar.lib.web.micro.base;
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.Servlet;
@@ -54,9 +57,36 @@ import javax.servlet.http.HttpServletRequest;
  *   Connection con = {@link ClientFactory#connect}(uri, metaData);
  *   {@link ServletTunnel#tunnel}(req, res, con);
  * </pre>
+ * <p>
+ * The tunnel can limit how long it waits for the response to start and
+ * for each subsequent read, so a wedged remote server won't hold our
+ * thread forever.  The time that we'll wait for the response to start
+ * is sent to the remote server in a {@link #DEADLINE_HEADER}, so it can
+ * give up early instead of doing work that nobody is waiting for.
  */
 public final class ServletTunnel {
 
+  /**
+   * The request header with the number of milliseconds that the caller
+   * will wait for the response to start, e.g. "Cougaar-Deadline: 5000".
+   */
+  public static final String DEADLINE_HEADER = "Cougaar-Deadline";
+
+  /**
+   * The request attribute with the {@link #DEADLINE_HEADER} converted to
+   * a Long System.currentTimeMillis, set by our servlet engine when it
+   * reads the request.
+   */
+  public static final String DEADLINE_ATTRIBUTE =
+    "org.cougaar.lib.web.micro.deadline";
+
+  /**
+   * The maximum size of a request body without a Content-Length, e.g. a
+   * chunked body.  We must buffer such bodies to compute their length,
+   * so larger bodies are rejected with a "413 Request Entity Too Large".
+   */
+  public static final int MAX_BUFFERED_BODY = 1 << 20;
+
   private ServletTunnel() {}
 
   /**
@@ -72,34 +102,138 @@ public final class ServletTunnel {
         req.getScheme()+"://"+req.getServerName()+":"+req.getServerPort()+
         req.getServletPath());
     ret.put("contextPath", req.getContextPath());
+    // we don't call "req.getRemoteHost()", since it may block on a
+    // reverse-DNS lookup.  The remote engine can resolve it if needed.
     ret.put("clientAddr",  req.getRemoteAddr());
-    ret.put("clientHost",  req.getRemoteHost());
     ret = Collections.unmodifiableMap(ret);
     return ret;
   }
 
   /**
-   * Tunnel a servlet call through a remote connection.
+   * @return the System.currentTimeMillis when our caller will stop waiting
+   *   for the response to start, or zero if there's no deadline
    */
-  public static void tunnel(
+  public static long getDeadline(HttpServletRequest req) {
+    Object o = req.getAttribute(DEADLINE_ATTRIBUTE);
+    if (o instanceof Long) {
+      return ((Long) o).longValue();
+    }
+    String s = req.getHeader(DEADLINE_HEADER);
+    if (s != null) {
+      try {
+        return System.currentTimeMillis() + Long.parseLong(s.trim());
+      } catch (NumberFormatException nfe) {
+        // ignore
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Tunnel a servlet call through a remote connection, without timeouts.
+   *
+   * @see #tunnel(HttpServletRequest,HttpServletResponse,Connection,long,long)
+   */
+  public static long tunnel(
       HttpServletRequest req, HttpServletResponse res,
       Connection con
       ) throws ServletException, IOException {
+    return tunnel(req, res, con, 0, 0);
+  }
 
-    // forward header and post data
-    AnnotatedOutputStream out = con.getOutputStream();
-    {
-      boolean is_post = "post".equalsIgnoreCase(req.getMethod());
+  /**
+   * Tunnel a servlet call through a remote connection.
+   * <p>
+   * If either timeout expires, or our caller's deadline has already
+   * passed, we send a "504 Gateway Timeout" if the response hasn't been
+   * committed, otherwise we throw an IOException.
+   *
+   * @param firstByteTimeout maximum milliseconds to wait for the response
+   *   to start, which is further limited by our caller's deadline, or zero
+   *   for no limit
+   * @param readTimeout maximum milliseconds per read once the response has
+   *   started, or zero for no limit
+   * @return the milliseconds until the response head was read, which is at
+   *   least one, or zero if we didn't contact the server because our
+   *   caller's deadline had passed, or -1 if the server didn't send a
+   *   valid head in time.  An exception means that the outcome is
+   *   unknown, e.g. our client went away, or the response body failed
+   *   after the head.
+   */
+  public static long tunnel(
+      HttpServletRequest req, HttpServletResponse res,
+      Connection con,
+      long firstByteTimeout, long readTimeout
+      ) throws ServletException, IOException {
 
-      boolean is_http11 = "HTTP/1.1".equalsIgnoreCase(req.getProtocol());
+    // figure out how long we'll wait for the response to start
+    long firstByteWait = firstByteTimeout;
+    long deadline = getDeadline(req);
+    if (deadline > 0) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        con.close();
+        res.sendError(
+            HttpServletResponse.SC_GATEWAY_TIMEOUT,
+            "Deadline expired before tunneling");
+        return 0;
+      }
+      if (firstByteWait <= 0 || remaining < firstByteWait) {
+        firstByteWait = remaining;
+      }
+    }
+    long start = System.currentTimeMillis();
+
+    // peek at the body, so we can relay it unchanged
+    boolean is_post = "post".equalsIgnoreCase(req.getMethod());
+    InputStream r_in = req.getInputStream();
+    int r_contentLength = req.getContentLength();
+    byte[] head = null;
+    int headLength = 0;
+    byte[] post_params = null;
+    AnnotatedOutputStream out;
+    try {
+      if (r_contentLength > 0) {
+        head = BufferPool.take();
+        headLength = Math.max(
+            0, r_in.read(head, 0, Math.min(r_contentLength, head.length)));
+        if (headLength == 0) {
+          // the container has already consumed the body, e.g. a filter
+          // called "getParameter".  Re-encode the posted parameters.
+          r_contentLength = 0;
+          if (is_post) {
+            post_params = encodeParameters(req).getBytes("US-ASCII");
+            r_contentLength = post_params.length;
+          }
+        }
+      } else if (r_contentLength < 0 &&
+          req.getHeader("Transfer-Encoding") != null) {
+        // unknown length, e.g. chunked.  We must buffer it, since we've
+        // forced HTTP/1.0, so we reject large bodies before we contact
+        // the server.
+        byte[] b = readAll(r_in, MAX_BUFFERED_BODY);
+        if (b == null) {
+          con.close();
+          res.sendError(
+              HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+              "Request body without a Content-Length exceeds "+
+              MAX_BUFFERED_BODY+" bytes");
+          return 0;
+        }
+        post_params = b;
+        r_contentLength = b.length;
+      }
+
+      // forward header and post data
+      out = con.getOutputStream();
 
       // write request line
       //
-      // FIXME we force HTTP/1.0, since it's awkward to handle chunked data.
+      // We force HTTP/1.0, since it's awkward to handle chunked data.
       // For future reference, Tomcat's chunk-parser is in:
       //   org.apache.catalina.connector.http.HttpRequestStream
-      // The major problem of switching to HTTP/1.0 is that we'll mangle any
-      // chunked content data, as noted below.
+      // The container has already "unchunked" the request body for us, so
+      // we send it with a Content-Length, as noted below.
       String queryString = req.getQueryString();
       out.print(req.getMethod()+" "+req.getRequestURI());
       if (queryString != null) {
@@ -107,158 +241,194 @@ public final class ServletTunnel {
       }
       out.println(" HTTP/1.0");
 
-      // get posted parameters "name=value" line
-      String post_params = null;
-      if (is_post) {
-        StringBuffer buf = new StringBuffer();
-        Map m = req.getParameterMap();
-        for (Iterator iter = m.entrySet().iterator(); iter.hasNext(); ) {
-          Map.Entry me = (Map.Entry) iter.next();
-          String name = (String) me.getKey();
-          String[] values = (String[]) me.getValue();
-          for (int i = 0; i < values.length; i++) {
-            if (buf.length() > 0) {
-              buf.append("&");
-            }
-            buf.append(name).append("=").append(values[i]);
-          }
-        }
-        post_params = buf.toString();
+      // write headers, replacing the length and transfer-encoding
+      if (r_contentLength >= 0) {
+        out.println("Content-Length: "+r_contentLength);
       }
-
-      // write headers:
-      if (is_post) {
-        out.println("Content-Length: "+post_params.length());
+      if (firstByteWait > 0) {
+        out.println(DEADLINE_HEADER+": "+firstByteWait);
       }
-      boolean chunked = false;
       for (Enumeration en = req.getHeaderNames(); en.hasMoreElements(); ) {
         String name = (String) en.nextElement();
-        if (is_post && "Content-Length".equalsIgnoreCase(name)) {
+        if ("Content-Length".equalsIgnoreCase(name) ||
+            "Transfer-Encoding".equalsIgnoreCase(name) ||
+            DEADLINE_HEADER.equalsIgnoreCase(name)) {
           continue;
         }
         for (Enumeration e2 = req.getHeaders(name); e2.hasMoreElements(); ) {
           String value = (String) e2.nextElement();
-          if ("Transfer-Encoding".equalsIgnoreCase(name)) {
-            chunked = "chunked".equalsIgnoreCase(value);
-          }
           out.println(name+": "+value);
         }
       }
       out.println();
 
-      // write post data:
-      if (is_post) {
-        out.print(post_params);
-      } else {
-        int r_contentLength = req.getContentLength();
-        InputStream r_in = req.getInputStream();
-        if (r_contentLength >= 0) {
-          // FIXME if (chunked && is_http11) then we should either:
-          //   a) "unchunk" the stream
-          // or
-          //   b) use HTTP/1.1 and parse the chunks, including the "0"-length
-          //      end chunk marker.
-          pipeTo(r_in, out, r_contentLength, chunked);
-        } else {
-          // FIXME according to the HTTP spec this seems like an error, but we
-          // may be missing some valid cases (e.g. chunked transfer data)
-        }
+      // write body
+      if (post_params != null) {
+        out.write(post_params);
+      } else if (headLength > 0) {
+        out.write(head, 0, headLength);
+        relay(r_in, out, r_contentLength - headLength, head);
       }
+    } finally {
+      BufferPool.give(head);
+    }
 
-      // send data
-      out.flush();
+    // send data
+    out.flush();
 
-      // we're done writing & flushing, but we can't close the stream yet,
-      // otherwise a socket-based connection will complain.
-      out.done();
-    }
+    // we're done writing & flushing, but we can't close the stream yet,
+    // otherwise a socket-based connection will complain.
+    out.done();
 
     // read from our pipe
     InputStream in = con.getInputStream();
+    HeadReader reader = 
+      new HeadReader(
+          in,
+          RequestCallbackImpl.DEFAULT_MAX_LINE_LENGTH,
+          RequestCallbackImpl.DEFAULT_MAX_HEAD_SIZE,
+          HttpServletResponse.SC_GATEWAY_TIMEOUT);
 
-    // read status, e.g.:
+    // read status and headers, e.g.:
     //   HTTP/1.0 200 OK 
-    String status = readLine(in);
-    if (status == null) {
-      throw new RuntimeException("Missing status");
+    String status;
+    List headers;
+    try {
+      con.setReadTimeout(Math.max(0, firstByteWait));
+      status = reader.readLine(HttpServletResponse.SC_BAD_GATEWAY);
+      con.setReadTimeout(Math.max(0, readTimeout));
+      headers = reader.readHeaders(RequestCallbackImpl.DEFAULT_MAX_HEADERS);
+    } catch (RequestException re) {
+      // the remote server is too slow or sent an invalid head
+      con.close();
+      res.sendError(re.getStatus(), re.getMessage());
+      return -1;
+    } catch (IOException ioe) {
+      // e.g. the remote server closed the connection
+      return badHead(con, res, "Unable to read response head: "+ioe);
+    }
+    if (status.length() == 0) {
+      return badHead(con, res, "Missing status");
+    }
+    long headMillis = Math.max(1, System.currentTimeMillis() - start);
+
+    // parse the status, e.g. "HTTP/1.0 200 OK"
+    int sc;
+    try {
+      int sc_sep = status.indexOf(' ');
+      int sm_sep = status.indexOf(' ', sc_sep+1);
+      if (sm_sep < 0) {
+        sm_sep = status.length();
+      }
+      sc = Integer.parseInt(status.substring(sc_sep+1, sm_sep).trim());
+    } catch (RuntimeException e) {
+      return badHead(con, res, "Invalid status: "+status);
     }
 
-    // read headers
+    // parse the headers before we modify our response, so we can still
+    // report a bad head
+    int n = headers.size();
+    String[] names = new String[n];
+    String[] values = new String[n];
     String location = null;
     int contentLength = -1;
     boolean chunked = false;
-    while (true) {
-      String s = readLine(in);
-      if (s == null) break;
-      if (s.length() == 0) break;
+    for (int i = 0; i < n; i++) {
+      String s = (String) headers.get(i);
       int sep = s.indexOf(':');
       if (sep <= 0) {
-        throw new RuntimeException("Invalid header: "+s);
+        return badHead(con, res, "Invalid header: "+s);
       }
       String name = s.substring(0, sep).trim();
       String value = s.substring(sep+1).trim();
-      res.addHeader(name, value);
+      names[i] = name;
+      values[i] = value;
       if ("Content-Length".equalsIgnoreCase(name)) {
-        contentLength = Integer.parseInt(value);
-        res.setContentLength(contentLength);
-      } else if ("Content-Type".equalsIgnoreCase(name)) {
-        res.setContentType(value);
+        try {
+          contentLength = Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+          return badHead(con, res, "Invalid header: "+s);
+        }
       } else if ("Location".equalsIgnoreCase(name)) {
         location = value;
       } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
         chunked = "chunked".equalsIgnoreCase(value);
       }
     }
+    if (sc >= 300 && sc < 400 &&
+        sc != HttpServletResponse.SC_NOT_MODIFIED &&
+        location == null) {
+      return badHead(
+          con, res, "Expecting a \"Location\" header for \""+status+"\"");
+    }
 
-    // set status
-    {
-      int sc_sep = status.indexOf(' ');
-      int sm_sep = status.indexOf(' ', sc_sep+1);
-      if (sm_sep < 0) {
-        sm_sep = status.length();
-      }
-      int sc = Integer.parseInt(status.substring(sc_sep+1, sm_sep).trim());
-      if (sc < 300 || sc == HttpServletResponse.SC_NOT_MODIFIED) {
-        // okay
-        res.setStatus(sc);
-      } else if (sc < 400) {
-        // redirect?  Must read "Location" header.
-        if (location == null) {
-          throw new RuntimeException(
-              "Expecting a \"Location\" header for \""+status+"\"");
-        }
-        res.sendRedirect(location);
-      } else {
-        // error
-        //
-        // use "setStatus" instead of "sendError" -- see bug 1259
-        //String sm = status.substring(sm_sep+1).trim();
-        res.setStatus(sc);
+    // copy headers
+    for (int i = 0; i < n; i++) {
+      String name = names[i];
+      String value = values[i];
+      res.addHeader(name, value);
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        res.setContentLength(contentLength);
+      } else if ("Content-Type".equalsIgnoreCase(name)) {
+        res.setContentType(value);
       }
     }
 
+    // set status
+    if (sc < 300 || sc == HttpServletResponse.SC_NOT_MODIFIED) {
+      // okay
+      res.setStatus(sc);
+    } else if (sc < 400) {
+      // redirect
+      res.sendRedirect(location);
+    } else {
+      // error
+      //
+      // use "setStatus" instead of "sendError" -- see bug 1259
+      res.setStatus(sc);
+    }
+
     // read data
     if (location == null) {
       ServletOutputStream r_out = res.getOutputStream();
-      pipeTo(in, r_out, contentLength, chunked);
+      pipeTo(reader, in, r_out, contentLength, chunked);
     }
 
     // done
     in.close();
     out.close();
     con.close();
+    return headMillis;
+  }
+
+  // report an invalid response head from the remote server
+  private static long badHead(
+      Connection con, HttpServletResponse res, String msg
+      ) throws IOException {
+    con.close();
+    res.sendError(HttpServletResponse.SC_BAD_GATEWAY, msg);
+    return -1;
   }
 
   private static void pipeTo(
-      final InputStream is, OutputStream out,
+      HeadReader reader, final InputStream is, OutputStream out,
       int contentLength, boolean chunked
       ) throws IOException {
     // we use an "annotated" stream to preserve the "out.flush()" requests.
     AnnotatedInputStream ais = AnnotatedInputStream.toAnnotatedInputStream(is);
-    if (contentLength >= 0) {
-      byte[] buf = new byte[Math.max(2048, contentLength)];
-      for (int i = 0; i < contentLength; ) {
-        int count = ais.read2(buf, 0, Math.max(buf.length, (contentLength - i)));
+    // copy through a fixed-size pooled buffer, regardless of the length
+    byte[] buf = BufferPool.take();
+    try {
+      for (int i = 0; contentLength < 0 || i < contentLength; ) {
+        int len = 
+          (contentLength < 0 ?
+           buf.length :
+           Math.min(buf.length, contentLength - i));
+        // first copy any body bytes that were read with the head
+        int count = reader.drain(buf, 0, len);
+        if (count == 0) {
+          count = ais.read2(buf, 0, len);
+        }
         if (count == AnnotatedInputStream.NOOP) {
           continue;
         }
@@ -270,32 +440,62 @@ public final class ServletTunnel {
         out.write(buf, 0, count);
         i += count;
       }
-    } else {
-      byte[] buf = new byte[2048];
+    } finally {
+      BufferPool.give(buf);
+    }
+  }
+
+  // copy "length" request body bytes through the given buffer
+  private static void relay(
+      InputStream in, OutputStream out, int length, byte[] buf
+      ) throws IOException {
+    for (int i = 0; i < length; ) {
+      int count = in.read(buf, 0, Math.min(buf.length, length - i));
+      if (count < 0) {
+        throw new IOException(
+            "Request body ended after "+i+" of "+length+" bytes");
+      }
+      out.write(buf, 0, count);
+      i += count;
+    }
+  }
+
+  // read the entire stream, or return null if it exceeds "max" bytes
+  private static byte[] readAll(InputStream in, int max) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buf = BufferPool.take();
+    try {
       while (true) {
-        int count = ais.read2(buf);
-        if (count == AnnotatedInputStream.NOOP) {
-          continue;
-        }
-        if (count == AnnotatedInputStream.FLUSH) {
-          out.flush();
-          continue;
-        }
+        int count = in.read(buf);
         if (count < 0) break;
-        out.write(buf, 0, count);
+        if (bos.size() + count > max) {
+          return null;
+        }
+        bos.write(buf, 0, count);
       }
+    } finally {
+      BufferPool.give(buf);
     }
+    return bos.toByteArray();
   }
 
-  private static String readLine(InputStream in) throws IOException {
+  // re-encode the posted parameters as "name=value&..."
+  private static String encodeParameters(
+      HttpServletRequest req) throws IOException {
     StringBuffer buf = new StringBuffer();
-    while (true) {
-      int b = in.read();
-      if (b < 0) break;
-      if (b == '\r') b = in.read();
-      if (b == '\n') break;
-      buf.append((char) b);
+    Map m = req.getParameterMap();
+    for (Iterator iter = m.entrySet().iterator(); iter.hasNext(); ) {
+      Map.Entry me = (Map.Entry) iter.next();
+      String name = URLEncoder.encode((String) me.getKey(), "UTF-8");
+      String[] values = (String[]) me.getValue();
+      for (int i = 0; i < values.length; i++) {
+        if (buf.length() > 0) {
+          buf.append("&");
+        }
+        buf.append(name).append("=");
+        buf.append(URLEncoder.encode(values[i], "UTF-8"));
+      }
     }
-    return buf.toString().trim();
+    return buf.toString();
   }
 }
@@ -28,6 +28,7 @@ package org.cougaar.lib.web.micro.base;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URL;
@@ -41,6 +42,20 @@ import javax.servlet.http.HttpServletRequest;
  */
 public class SocketClientFactory implements ClientFactory {
 
+  private final int connectTimeout;
+
+  public SocketClientFactory() {
+    this(0);
+  }
+
+  /**
+   * @param connectTimeout maximum milliseconds to wait for the socket
+   *   connection, or zero to wait forever
+   */
+  public SocketClientFactory(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
   /**
    * @param o must be a URI
    */
@@ -52,7 +67,15 @@ public class SocketClientFactory implements ClientFactory {
     }
     URI uri = (URI) o;
 
-    final Socket socket = new Socket(uri.getHost(), uri.getPort());
+    final Socket socket = new Socket();
+    try {
+      socket.connect(
+          new InetSocketAddress(uri.getHost(), uri.getPort()),
+          connectTimeout);
+    } catch (IOException ioe) {
+      socket.close();
+      throw ioe;
+    }
 
     // FIXME ignore metaData?  If we're sure we're connecting to our own
     // SocketServerFactory then we could send this data as a data header, but
@@ -71,6 +94,9 @@ public class SocketClientFactory implements ClientFactory {
         return AnnotatedOutputStream.toAnnotatedOutputStream(
             socket.getOutputStream());
       }
+      public void setReadTimeout(long millis) throws IOException {
+        socket.setSoTimeout((int) Math.min(millis, Integer.MAX_VALUE));
+      }
       public void close() throws IOException {
         socket.close();
       }
@@ -27,35 +27,204 @@
 package org.cougaar.lib.web.micro.base;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.ServerSocket;
+import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * A standard {@link ServerSocket}-based server connection factory implementation.
  * <p>
  * This implementation supports subclassing to use pooled threads.
+ * <p>
+ * Supported settings:<pre>
+ *   port                   the port to listen on, required
+ *   http.acceptors         number of accept threads, defaults to 1
+ *   http.reusePort         if true and there are multiple acceptors, bind
+ *                          a separate socket per acceptor with SO_REUSEPORT,
+ *                          so the kernel balances incoming connections.
+ *                          Otherwise, or if the JVM doesn't support
+ *                          SO_REUSEPORT, the acceptors share one socket.
+ *                          Defaults to true.
+ *   http.workers           number of worker threads per acceptor, which
+ *                          together form that acceptor's shard.  If zero,
+ *                          each accepted connection is handed to
+ *                          "accept_bg".  Defaults to 0.
+ *   http.workerQueue       connections that may wait for a shard's
+ *                          workers before the acceptor blocks, leaving
+ *                          further clients in the socket backlog.
+ *                          Defaults to 4 * http.workers.
+ *   http.acceptCount       socket backlog, defaults to a server default
+ *   http.tcpNoDelay        set TCP_NODELAY on accepted sockets
+ *   http.receiveBufferSize socket receive buffer size
+ *   http.sendBufferSize    socket send buffer size
+ *   http.readTimeout       milliseconds that a read on an accepted socket
+ *                          may block before it fails, e.g. a client that
+ *                          stalls while sending its request body.
+ *                          Defaults to 30000, zero disables.
+ * </pre>
  */
 public class SocketServerFactory implements ServerFactory {
 
+  /** Default "http.readTimeout" in milliseconds */
+  public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+  // java.net.StandardSocketOptions.SO_REUSEPORT, found by reflection since
+  // it requires Java 9, or null if it's not supported
+  private static Object reusePortOption;
+  private static boolean checkedReusePort;
+
   public ListenerControl listen(
       final Map settings, final AcceptCallback callback) throws BindException, IOException {
 
-    ServerSocket serverSock = bind(settings);
+    int acceptors = getInt(settings, "http.acceptors", 1);
+    int workers = getInt(settings, "http.workers", 0);
+    int workerQueue = getInt(settings, "http.workerQueue", 4 * workers);
+    boolean reusePort = useReusePort(settings);
+
+    // bind our sockets
+    final List serverSocks = new ArrayList();
+    try {
+      for (int i = 0; i < acceptors; i++) {
+        if (i == 0 || reusePort) {
+          serverSocks.add(bind(settings));
+        } else {
+          // share our single socket
+          serverSocks.add(serverSocks.get(0));
+        }
+      }
+    } catch (IOException ioe) {
+      close(serverSocks);
+      throw ioe;
+    }
+
+    // create a worker pool per acceptor
+    final List shards = new ArrayList();
+    if (workers > 0) {
+      for (int i = 0; i < acceptors; i++) {
+        Shard shard = new Shard(callback, Math.max(workerQueue, 1));
+        shards.add(shard);
+        for (int j = 0; j < workers; j++) {
+          worker_bg(shard, "shard "+i+" worker "+j);
+        }
+      }
+    }
+
+    // accept in background threads
+    for (int i = 0; i < acceptors; i++) {
+      AcceptCallback cb = (workers > 0 ? (Shard) shards.get(i) : callback);
+      listen_bg((ServerSocket) serverSocks.get(i), settings, cb);
+    }
+
+    return new ListenerControl() {
+      public void stop() {
+        close(serverSocks);
+        for (int i = 0; i < shards.size(); i++) {
+          ((Shard) shards.get(i)).stop();
+        }
+      }
+    };
+  }
 
-    listen_bg(serverSock, settings, callback);
+  private static void close(List serverSocks) {
+    for (int i = 0; i < serverSocks.size(); i++) {
+      try {
+        ((ServerSocket) serverSocks.get(i)).close();
+      } catch (IOException ioe) {
+        // ignore
+      }
+    }
+  }
 
-    // TODO return object with "stop()" method, to release thread & close socket
-    return null;
+  /**
+   * @return true if "bind" should set SO_REUSEPORT, which is the case if
+   * there are multiple acceptors, "http.reusePort" isn't false, and the
+   * JVM supports it.
+   */
+  protected boolean useReusePort(Map settings) {
+    return
+      (getInt(settings, "http.acceptors", 1) > 1 &&
+       !"false".equals(settings.get("http.reusePort")) &&
+       getReusePortOption() != null);
   }
 
-  /** bind a socket */
+  /**
+   * Bind a socket.
+   * <p>
+   * This is called once per acceptor if {@link #useReusePort} is true,
+   * otherwise once.
+   */
   protected ServerSocket bind(Map settings) throws BindException, IOException {
     int port = Integer.parseInt((String) settings.get("port"));
-    return new ServerSocket(port);
+    int backlog = getInt(settings, "http.acceptCount", 0);
+    int rcvbuf = getInt(settings, "http.receiveBufferSize", -1);
+    ServerSocket serverSock = new ServerSocket();
+    try {
+      if (useReusePort(settings)) {
+        setReusePort(serverSock);
+      }
+      if (rcvbuf > 0) {
+        // must be set before the bind, to be inherited by accepted sockets
+        serverSock.setReceiveBufferSize(rcvbuf);
+      }
+      serverSock.bind(new InetSocketAddress(port), backlog);
+    } catch (IOException ioe) {
+      serverSock.close();
+      throw ioe;
+    }
+    return serverSock;
+  }
+
+  private static synchronized Object getReusePortOption() {
+    if (!checkedReusePort) {
+      checkedReusePort = true;
+      try {
+        Object opt =
+          Class.forName("java.net.StandardSocketOptions").getField(
+              "SO_REUSEPORT").get(null);
+        ServerSocket ss = new ServerSocket();
+        try {
+          Method m = ServerSocket.class.getMethod("supportedOptions");
+          if (((Set) m.invoke(ss)).contains(opt)) {
+            reusePortOption = opt;
+          }
+        } finally {
+          ss.close();
+        }
+      } catch (Exception e) {
+        // pre-Java 9, share a single socket
+      }
+    }
+    return reusePortOption;
+  }
+
+  private static void setReusePort(ServerSocket serverSock) throws IOException {
+    try {
+      Method m = ServerSocket.class.getMethod(
+          "setOption",
+          Class.forName("java.net.SocketOption"),
+          Object.class);
+      m.invoke(serverSock, getReusePortOption(), Boolean.TRUE);
+    } catch (Exception e) {
+      IOException ioe = new IOException("Unable to set SO_REUSEPORT");
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
+
+  private static int getInt(Map settings, String key, int deflt) {
+    String s = (String) settings.get(key);
+    return (s == null ? deflt : Integer.parseInt(s));
   }
 
   /** listen in a background thread */
@@ -82,22 +251,44 @@ public class SocketServerFactory implements ServerFactory {
     int port = Integer.parseInt((String) settings.get("port"));
     String contextPath = "";
     String serverURL = "http://localhost:"+port;
+    boolean tcpNoDelay = "true".equals(settings.get("http.tcpNoDelay"));
+    int sndbuf = getInt(settings, "http.sendBufferSize", -1);
+    int readTimeout =
+      getInt(settings, "http.readTimeout", DEFAULT_READ_TIMEOUT);
 
     while (true) {
       final Socket clientSock;
       try {
         clientSock = serverSock.accept();
       } catch (Exception e) {
+        if (serverSock.isClosed()) {
+          // stopped
+          return;
+        }
         throw new RuntimeException("Socket accept failed", e);
       }
 
+      try {
+        if (tcpNoDelay) {
+          clientSock.setTcpNoDelay(true);
+        }
+        if (sndbuf > 0) {
+          clientSock.setSendBufferSize(sndbuf);
+        }
+        if (readTimeout > 0) {
+          clientSock.setSoTimeout(readTimeout);
+        }
+      } catch (SocketException se) {
+        // ignore, these are only hints
+      }
+
       final Map metaData = new HashMap();
       metaData.put("serverURL", serverURL);
       metaData.put("contextPath", contextPath);
       InetAddress clientAddr = clientSock.getInetAddress();
       if (clientAddr != null) {
+        // the "clientHost" is resolved lazily, to avoid a reverse-DNS lookup
         metaData.put("clientAddr", clientAddr.getHostAddress());
-        metaData.put("clientHost", clientAddr.getHostName());
       }
 
       Connection con = new Connection() {
@@ -113,6 +304,9 @@ public class SocketServerFactory implements ServerFactory {
           return AnnotatedOutputStream.toAnnotatedOutputStream(
               clientSock.getOutputStream());
         }
+        public void setReadTimeout(long millis) throws IOException {
+          clientSock.setSoTimeout((int) Math.min(millis, Integer.MAX_VALUE));
+        }
         public void close() throws IOException {
           clientSock.close();
         }
@@ -129,7 +323,12 @@ public class SocketServerFactory implements ServerFactory {
         }
       };
 
-      accept_bg(callback, con);
+      if (callback instanceof Shard) {
+        // queue for our acceptor's workers
+        ((Shard) callback).execute(con);
+      } else {
+        accept_bg(callback, con);
+      }
     }
   }
 
@@ -154,4 +353,81 @@ public class SocketServerFactory implements ServerFactory {
       e.printStackTrace();
     }
   }
+
+  /**
+   * Run a shard worker in a background thread.
+   * <p>
+   * The worker blocks until its shard is stopped.
+   */
+  protected void worker_bg(Runnable worker, String name) {
+    Thread thread = new Thread(worker, "servlet engine "+name);
+    thread.start();
+  }
+
+  /**
+   * An acceptor's bounded queue of accepted connections and the workers
+   * that serve them.
+   */
+  private class Shard implements AcceptCallback, Runnable {
+
+    // marks a stopped shard
+    private final Object STOP = new Object();
+
+    private final AcceptCallback callback;
+    private final BlockingQueue queue;
+
+    public Shard(AcceptCallback callback, int capacity) {
+      this.callback = callback;
+      this.queue = new LinkedBlockingQueue(capacity);
+    }
+
+    public void accept(Connection con) {
+      execute(con);
+    }
+
+    /** queue a connection, blocking if our workers are all busy */
+    public void execute(Connection con) {
+      try {
+        queue.put(con);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        try {
+          con.close();
+        } catch (IOException ioe) {
+          // ignore
+        }
+      }
+    }
+
+    public void stop() {
+      // close queued connections, then wake a worker, which passes the
+      // stop along to the others
+      List pending = new ArrayList();
+      queue.drainTo(pending);
+      for (int i = 0; i < pending.size(); i++) {
+        try {
+          ((Connection) pending.get(i)).close();
+        } catch (IOException ioe) {
+          // ignore
+        }
+      }
+      queue.offer(STOP);
+    }
+
+    public void run() {
+      while (true) {
+        Object o;
+        try {
+          o = queue.take();
+        } catch (InterruptedException ie) {
+          return;
+        }
+        if (o == STOP) {
+          queue.offer(STOP);
+          return;
+        }
+        SocketServerFactory.this.accept(callback, (Connection) o);
+      }
+    }
+  }
 }
@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 
@@ -110,6 +111,13 @@ public class HttpServletEngine extends AbstractServletEngine {
               ThreadService.WILL_BLOCK_LANE);
           thread.start();
         }
+        protected void worker_bg(Runnable worker, String name) {
+          // like the listener, this blocks until the engine is stopped
+          Schedulable thread = threadService.getThread(
+              this, worker, "HttpServletEngine "+name,
+              ThreadService.WILL_BLOCK_LANE);
+          thread.start();
+        }
         protected void accept_bg(
             final AcceptCallback callback,
             final Connection con) {
@@ -129,8 +137,20 @@ public class HttpServletEngine extends AbstractServletEngine {
         }
       };
 
+    // run reverse-DNS lookups in pooled threads.  The shared host name
+    // cache may outlive us, so we hold onto the service.
+    final ThreadService ts = threadService;
+    Executor resolver = new Executor() {
+      public void execute(Runnable r) {
+        Schedulable thread = ts.getThread(
+            this, r, "HttpServletEngine host name resolver",
+            ThreadService.WILL_BLOCK_LANE);
+        thread.start();
+      }
+    };
+
     // create base engine
-    engine = new ServletEngineImpl(server_factory);
+    engine = new ServletEngineImpl(server_factory, resolver);
 
     return engine;
   }
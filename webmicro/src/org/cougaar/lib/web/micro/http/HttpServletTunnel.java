@@ -33,17 +33,123 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.cougaar.bootstrap.SystemProperties;
 import org.cougaar.lib.web.micro.base.ClientFactory;
 import org.cougaar.lib.web.micro.base.Connection;
+import org.cougaar.lib.web.micro.base.ResponseCache;
 import org.cougaar.lib.web.micro.base.ServletTunnel;
 import org.cougaar.lib.web.micro.base.SocketClientFactory;
+import org.cougaar.lib.web.redirect.CircuitBreaker;
 import org.cougaar.lib.web.redirect.HttpServletRedirector;
 
 /**
  * This component tunnels servlet requests through HTTP.
+ *
+ * @property org.cougaar.lib.web.micro.http.tunnel.connect_timeout=10000
+ *   Milliseconds to wait for the socket connection to the remote host,
+ *   where 0 indicates no timeout.
+ * @property org.cougaar.lib.web.micro.http.tunnel.first_byte_timeout=120000
+ *   Milliseconds to wait for the remote response to start, where 0
+ *   indicates no timeout.  This is also limited by our client's deadline,
+ *   and is sent to the remote host, see {@link ServletTunnel}.
+ * @property org.cougaar.lib.web.micro.http.tunnel.read_timeout=60000
+ *   Milliseconds to wait for each read once the response has started,
+ *   where 0 indicates no timeout.
+ *   This also bounds how long a cacheable request waits for a concurrent
+ *   fetch of the same response.
+ * @property org.cougaar.lib.web.micro.http.tunnel.breaker_failures=5
+ *   Consecutive failures to a remote host:port that open its circuit, so
+ *   further requests fail fast with a "503 Service Unavailable".  A
+ *   failed connect, timeout, or slow response counts as a failure.  Zero
+ *   disables the circuit breaker, see {@link CircuitBreaker}.
+ * @property org.cougaar.lib.web.micro.http.tunnel.breaker_slow_call=30000
+ *   Milliseconds for the response to start, beyond which a successful
+ *   request counts as a failure.  Zero disables the latency check.
+ * @property org.cougaar.lib.web.micro.http.tunnel.breaker_open_timeout=10000
+ *   Milliseconds that an open circuit fails fast before we allow a trial
+ *   request.
+ * @property org.cougaar.lib.web.micro.http.tunnel.cache_max_bytes=0
+ *   Maximum size of our shared cache of "GET" responses, where 0 disables
+ *   the cache.  See {@link ResponseCache}.
+ * @property org.cougaar.lib.web.micro.http.tunnel.cache_max_entry_bytes=262144
+ *   Maximum size of a single cached response body.
  */
 public class HttpServletTunnel extends HttpServletRedirector {
 
+  private long connect_timeout;
+  private long first_byte_timeout;
+  private long read_timeout;
+  private ResponseCache cache;
+
+  public void load() {
+    super.load();
+
+    // parse args
+    String prefix = "org.cougaar.lib.web.micro.http.tunnel.";
+    connect_timeout =
+      args.getLong(
+          "connect_timeout",
+          SystemProperties.getLong(prefix+"connect_timeout", 10000));
+    first_byte_timeout =
+      args.getLong(
+          "first_byte_timeout",
+          SystemProperties.getLong(prefix+"first_byte_timeout", 120000));
+    read_timeout =
+      args.getLong(
+          "read_timeout",
+          SystemProperties.getLong(prefix+"read_timeout", 60000));
+    long cache_max_bytes =
+      args.getLong(
+          "cache_max_bytes",
+          SystemProperties.getLong(prefix+"cache_max_bytes", 0));
+    long cache_max_entry_bytes =
+      args.getLong(
+          "cache_max_entry_bytes",
+          SystemProperties.getLong(
+            prefix+"cache_max_entry_bytes",
+            ResponseCache.DEFAULT_MAX_ENTRY_BYTES));
+    if (cache_max_bytes > 0) {
+      cache = new ResponseCache(
+          cache_max_bytes,
+          (int) Math.min(cache_max_entry_bytes, Integer.MAX_VALUE),
+          read_timeout);
+    }
+  }
+
+  protected CircuitBreaker createCircuitBreaker() {
+    String prefix = "org.cougaar.lib.web.micro.http.tunnel.";
+    long failures =
+      args.getLong(
+          "breaker_failures",
+          SystemProperties.getLong(
+            prefix+"breaker_failures",
+            CircuitBreaker.DEFAULT_FAILURE_THRESHOLD));
+    long slow_call =
+      args.getLong(
+          "breaker_slow_call",
+          SystemProperties.getLong(
+            prefix+"breaker_slow_call",
+            CircuitBreaker.DEFAULT_SLOW_CALL_MILLIS));
+    long open_timeout =
+      args.getLong(
+          "breaker_open_timeout",
+          SystemProperties.getLong(
+            prefix+"breaker_open_timeout",
+            CircuitBreaker.DEFAULT_OPEN_MILLIS));
+    return new CircuitBreaker(
+        (int) failures, slow_call, open_timeout, createCircuitLogger());
+  }
+
+  /** @return our circuit breaker, e.g. for its state and counters */
+  public CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  /** @return our response cache, or null if it's disabled */
+  public ResponseCache getResponseCache() {
+    return cache;
+  }
+
   protected boolean isSupported(String s) {
     return ("http_tunnel".equals(s) || "-".equals(s));
   }
@@ -62,7 +168,7 @@ public class HttpServletTunnel extends HttpServletRedirector {
     String encLoc = res.encodeRedirectURL(location);
 
     // extract host:port
-    URI uri;
+    final URI uri;
     try {
       uri = URI.create(encLoc);
     } catch (Exception e) {
@@ -72,11 +178,49 @@ public class HttpServletTunnel extends HttpServletRedirector {
     // TODO use encLoc in ServletTunnel header line, in case the contextPath
     // is different on the remote host
 
-    // tunnel
-    Map metaData = ServletTunnel.extractMetaData(req);
-    ClientFactory client_factory = new SocketClientFactory();
-    Connection con = client_factory.connect(uri, metaData);
-    ServletTunnel.tunnel(req, res, con);
+    // tunnel, possibly through our cache
+    ResponseCache.Fetcher fetcher = new ResponseCache.Fetcher() {
+      public long fetch(
+          HttpServletRequest req, HttpServletResponse res
+          ) throws ServletException, IOException {
+        Map metaData = ServletTunnel.extractMetaData(req);
+        ClientFactory client_factory = 
+          new SocketClientFactory(
+              (int) Math.min(connect_timeout, Integer.MAX_VALUE));
+        Connection con;
+        try {
+          con = client_factory.connect(uri, metaData);
+        } catch (IOException ioe) {
+          // the peer is down or unreachable
+          res.sendError(
+              HttpServletResponse.SC_BAD_GATEWAY,
+              "Unable to connect to "+uri.getHost()+":"+uri.getPort());
+          return -1;
+        }
+        return ServletTunnel.tunnel(
+            req, res, con, first_byte_timeout, read_timeout);
+      }
+    };
+
+    // record the outcome in our circuit breaker.  Only a failed connect or
+    // a missing, slow, or invalid head counts against the peer.  Other
+    // exceptions, e.g. our client going away during the body relay, are
+    // neutral.
+    String peer = uri.getHost()+":"+uri.getPort();
+    long headMillis = 0;
+    try {
+      headMillis = 
+        (cache == null ?
+         fetcher.fetch(req, res) :
+         cache.service(location, req, res, fetcher));
+    } finally {
+      if (headMillis == 0) {
+        // not attempted, e.g. a cache hit, or an unknown outcome
+        breaker.cancel(peer);
+      } else {
+        breaker.record(peer, (headMillis > 0), headMillis);
+      }
+    }
   }
 
 }
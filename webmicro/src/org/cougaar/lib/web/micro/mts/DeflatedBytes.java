@@ -0,0 +1,165 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.micro.mts;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed <code>byte[]</code> element in a {@link Deliverer} data
+ * list, created by an {@link OutputPipe} and expanded by the remote
+ * {@link InputPipe}.
+ * <p>
+ * Deflaters and inflaters hold native memory and are relatively expensive
+ * to create, so we keep small pools of them.
+ */
+final class DeflatedBytes implements Serializable {
+
+  // max number of idle (in)deflaters we'll keep
+  private static final int MAX_POOL_SIZE = 8;
+
+  private static final List deflaters = new ArrayList();
+  private static final List inflaters = new ArrayList();
+
+  private final byte[] bytes;
+  private final int length;
+
+  DeflatedBytes(byte[] bytes, int length) {
+    this.bytes = bytes;
+    this.length = length;
+  }
+
+  /** @return the compressed bytes */
+  byte[] getBytes() { return bytes; }
+
+  /** @return the uncompressed length */
+  int getLength() { return length; }
+
+  /**
+   * Compress the given range of bytes.
+   *
+   * @return the compressed bytes, or null if compression wouldn't make
+   *   them smaller
+   */
+  static DeflatedBytes deflate(byte[] b, int off, int len, int level) {
+    Deflater deflater = null;
+    synchronized (deflaters) {
+      if (!deflaters.isEmpty()) {
+        deflater = (Deflater) deflaters.remove(deflaters.size() - 1);
+      }
+    }
+    if (deflater == null) {
+      deflater = new Deflater(level);
+    } else {
+      deflater.setLevel(level);
+    }
+    try {
+      deflater.setInput(b, off, len);
+      deflater.finish();
+      byte[] buf = new byte[len];
+      int n = 0;
+      while (!deflater.finished() && n < buf.length) {
+        n += deflater.deflate(buf, n, buf.length - n);
+      }
+      if (!deflater.finished()) {
+        // incompressible
+        return null;
+      }
+      byte[] z = new byte[n];
+      System.arraycopy(buf, 0, z, 0, n);
+      return new DeflatedBytes(z, len);
+    } finally {
+      deflater.reset();
+      synchronized (deflaters) {
+        if (deflaters.size() < MAX_POOL_SIZE) {
+          deflaters.add(deflater);
+          deflater = null;
+        }
+      }
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * @return the uncompressed bytes
+   */
+  byte[] inflate() {
+    Inflater inflater = null;
+    synchronized (inflaters) {
+      if (!inflaters.isEmpty()) {
+        inflater = (Inflater) inflaters.remove(inflaters.size() - 1);
+      }
+    }
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    try {
+      inflater.setInput(bytes);
+      byte[] ret = new byte[length];
+      int n = 0;
+      while (n < length) {
+        int count = inflater.inflate(ret, n, length - n);
+        if (count == 0 && 
+            (inflater.finished() || inflater.needsInput() ||
+             inflater.needsDictionary())) {
+          break;
+        }
+        n += count;
+      }
+      if (n != length) {
+        throw new RuntimeException(
+            "Inflated "+n+" bytes, expecting "+length);
+      }
+      return ret;
+    } catch (DataFormatException e) {
+      throw new RuntimeException("Corrupt deflated data", e);
+    } finally {
+      inflater.reset();
+      synchronized (inflaters) {
+        if (inflaters.size() < MAX_POOL_SIZE) {
+          inflaters.add(inflater);
+          inflater = null;
+        }
+      }
+      if (inflater != null) {
+        inflater.end();
+      }
+    }
+  }
+
+  public String toString() {
+    return "deflated["+length+"->"+bytes.length+"]";
+  }
+
+  static final long serialVersionUID = 4725389102837465901L;
+}
@@ -39,7 +39,9 @@ public interface Deliverer {
    *
    * @param metaData optional metadata, typically only set when counter == 0 
    *
-   * @param data a mixed List of byte[]s and {@link Tokens}.
+   * @param data a mixed List of byte[]s and {@link Tokens}, plus
+   * compressed byte[]s if the receiver accepts them (see
+   * {@link OutputPipe#COMPRESS_KEY}).
    */
   void deliver(int counter, Map metaData, List data);
 }
@@ -0,0 +1,208 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+
+/**
+ * A shared scheduler for the delayed sends of many {@link OutputPipe}s,
+ * so the thread count doesn't grow with the number of open sessions.
+ * <p>
+ * Pipes register their nagle deadlines in a hashed timing wheel, where
+ * each slot holds the pipes that are due in that tick, modulo the wheel
+ * size.  A single timer thread advances the wheel, but only while it has
+ * pending pipes.  Due pipes are handed to a small pool of sender threads,
+ * sharded by pipe so each pipe's sends are never concurrent.
+ * <p>
+ * Timers are never cancelled.  If a pipe's deadline moves, e.g. because
+ * the writer is still writing, then the pipe simply reschedules itself
+ * when the stale timer fires.
+ * <p>
+ * Supported options:<pre>
+ *   flushThreads  number of sender threads, defaults to
+ *                 {@link #DEFAULT_THREADS}.
+ *   flushTick     timing wheel resolution in milliseconds, defaults to
+ *                 {@link #DEFAULT_TICK}.
+ * </pre>
+ */
+final class FlushScheduler {
+
+  /** Default number of sender threads */
+  static final int DEFAULT_THREADS = 2;
+
+  /** Default wheel tick in milliseconds */
+  static final long DEFAULT_TICK = 2;
+
+  // number of slots, which should cover the default nagle delay
+  private static final int WHEEL_SIZE = 256;
+
+  private static final class Entry {
+    final OutputPipe pipe;
+    final long tick;
+    Entry(OutputPipe pipe, long tick) {
+      this.pipe = pipe;
+      this.tick = tick;
+    }
+  }
+
+  private final long tickMillis;
+  private final long tickNanos;
+
+  private final Schedulable timer;
+  private final ReceiveDispatcher senders;
+
+  private final Object lock = new Object();
+
+  // array of Entry Lists, guarded by our lock
+  private final List[] wheel = new List[WHEEL_SIZE];
+  private int size;
+  // the last tick that we processed
+  private long currentTick;
+  private boolean timerScheduled;
+  private boolean stopped;
+
+  FlushScheduler(
+      LoggingService log, ThreadService threadService,
+      String threadName, Map options) {
+    this.tickMillis =
+      Math.max(1, Options.getLong(options, "flushTick", DEFAULT_TICK));
+    this.tickNanos = tickMillis * 1000000;
+
+    Runnable r = new Runnable() {
+      public void run() {
+        advance();
+      }
+    };
+    this.timer = threadService.getThread(
+        this, r, threadName+" timer", ThreadService.BEST_EFFORT_LANE);
+
+    // these threads won't block
+    this.senders =
+      new ReceiveDispatcher(
+          log, threadService,
+          threadName+" sender",
+          ThreadService.BEST_EFFORT_LANE,
+          Options.getInt(options, "flushThreads", DEFAULT_THREADS),
+          TodoQueue.DEFAULT_BATCH_SIZE) {
+        protected void doNow(Object o) {
+          ((OutputPipe) o).runScheduled();
+        }
+      };
+  }
+
+  /**
+   * Call the pipe's "timerExpired" at or shortly after the deadline.
+   *
+   * @param deadline a System.nanoTime
+   */
+  void schedule(OutputPipe pipe, long deadline) {
+    boolean startTimer;
+    synchronized (lock) {
+      if (stopped) return;
+      if (size == 0) {
+        currentTick = System.nanoTime() / tickNanos;
+      }
+      // round up, and always at least one tick in the future
+      long tick = Math.max(
+          (deadline + tickNanos - 1) / tickNanos, currentTick + 1);
+      int slot = (int) (tick % WHEEL_SIZE);
+      List l = wheel[slot];
+      if (l == null) {
+        l = new ArrayList();
+        wheel[slot] = l;
+      }
+      l.add(new Entry(pipe, tick));
+      size++;
+      startTimer = !timerScheduled;
+      timerScheduled = true;
+    }
+    if (startTimer) {
+      timer.schedule(tickMillis);
+    }
+  }
+
+  /** Call the pipe's "runScheduled" as soon as possible */
+  void dispatch(OutputPipe pipe) {
+    senders.add(pipe, pipe);
+  }
+
+  void stop() {
+    synchronized (lock) {
+      stopped = true;
+      for (int i = 0; i < WHEEL_SIZE; i++) {
+        wheel[i] = null;
+      }
+      size = 0;
+    }
+    timer.cancelTimer();
+  }
+
+  // called by our timer thread
+  private void advance() {
+    List due = null;
+    boolean again;
+    synchronized (lock) {
+      long nowTick = System.nanoTime() / tickNanos;
+      // visit each slot at most once, even if we've fallen far behind
+      long n = Math.min(nowTick - currentTick, WHEEL_SIZE);
+      for (long i = 1; i <= n; i++) {
+        List l = wheel[(int) ((currentTick + i) % WHEEL_SIZE)];
+        if (l == null) continue;
+        for (Iterator iter = l.iterator(); iter.hasNext(); ) {
+          Entry e = (Entry) iter.next();
+          if (e.tick > nowTick) continue;
+          iter.remove();
+          size--;
+          if (due == null) {
+            due = new ArrayList();
+          }
+          due.add(e.pipe);
+        }
+      }
+      if (nowTick > currentTick) {
+        currentTick = nowTick;
+      }
+      timerScheduled = (size > 0 && !stopped);
+      again = timerScheduled;
+    }
+    if (again) {
+      timer.schedule(tickMillis);
+    }
+    if (due == null) return;
+    // call the pipes without holding our lock, since they'll lock
+    // themselves and may reschedule
+    for (int i = 0; i < due.size(); i++) {
+      ((OutputPipe) due.get(i)).timerExpired();
+    }
+  }
+}
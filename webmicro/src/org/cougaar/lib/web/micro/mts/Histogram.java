@@ -0,0 +1,137 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.micro.mts;
+
+/**
+ * A simple thread-safe histogram with power-of-two buckets.
+ * <p>
+ * Bucket <i>i</i> counts values in [2<sup>i-1</sup>, 2<sup>i</sup>), with
+ * bucket zero holding values less than one.  This is cheap enough to update
+ * on every message, e.g. to record {@link OutputPipe} batch sizes.
+ */
+public class Histogram {
+
+  private static final int BUCKETS = 64;
+
+  private final String units;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long sum;
+  private long max;
+
+  /**
+   * @param units optional units for the "toString()", e.g. "ms"
+   */
+  public Histogram(String units) {
+    this.units = (units == null ? "" : units);
+  }
+
+  /** Record a value, where negative values are treated as zero. */
+  public void add(long value) {
+    long v = (value < 0 ? 0 : value);
+    int i = (v == 0 ? 0 : (64 - Long.numberOfLeadingZeros(v)));
+    synchronized (counts) {
+      counts[i]++;
+      count++;
+      sum += v;
+      if (v > max) max = v;
+    }
+  }
+
+  /** @return the number of recorded values */
+  public long getCount() {
+    synchronized (counts) {
+      return count;
+    }
+  }
+
+  /** @return the mean of the recorded values, or zero if there are none */
+  public double getMean() {
+    synchronized (counts) {
+      return (count == 0 ? 0.0 : ((double) sum / count));
+    }
+  }
+
+  /** @return the largest recorded value */
+  public long getMax() {
+    synchronized (counts) {
+      return max;
+    }
+  }
+
+  /**
+   * @return a copy of the bucket counts, where bucket <i>i &gt; 0</i> holds
+   *   values less than 2<sup>i</sup>
+   */
+  public long[] getBuckets() {
+    synchronized (counts) {
+      return (long[]) counts.clone();
+    }
+  }
+
+  /**
+   * @return an upper bound on the p'th percentile, e.g. p=0.99, rounded
+   *   up to the bucket limit
+   */
+  public long getPercentile(double p) {
+    synchronized (counts) {
+      long target = (long) Math.ceil(p * count);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= target && seen > 0) {
+          return (i == 0 ? 0 : Math.min(max, (1L << i) - 1));
+        }
+      }
+      return max;
+    }
+  }
+
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    synchronized (counts) {
+      buf.append("(count=").append(count);
+      if (count > 0) {
+        buf.append(" mean=").append(sum / count).append(units);
+        buf.append(" max=").append(max).append(units);
+        buf.append(" buckets={");
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+          if (counts[i] == 0) continue;
+          if (!first) buf.append(", ");
+          first = false;
+          buf.append("<").append(i == 0 ? 1 : (1L << i)).append(units);
+          buf.append(":").append(counts[i]);
+        }
+        buf.append("}");
+      }
+      buf.append(")");
+    }
+    return buf.toString();
+  }
+}
@@ -29,7 +29,9 @@ package org.cougaar.lib.web.micro.mts;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -41,60 +43,251 @@ import org.cougaar.lib.web.micro.base.AnnotatedInputStream;
  * <p>
  * One thread calls "deliver" to add to the pipe, and another thread
  * reads from the "input_stream".
+ * <p>
+ * If a {@link Granter} is specified then the pipe is flow-controlled: as
+ * the reader consumes data we grant credit back to the remote
+ * {@link OutputPipe}, in chunks of half our window, so the remote writer
+ * can't buffer more than our window in our queue.  The granter may be
+ * set after the first deliver, once the remote peer has advertised that
+ * it supports flow control.
+ * <p>
+ * Segments may be delivered out of order, e.g. over a multipath
+ * transport.  Early segments are held in a bounded reorder buffer until
+ * the missing segments arrive.  If the buffer overflows, or a gap isn't
+ * filled within the gap timeout, the pipe fails: blocked and future reads
+ * throw an IOException, instead of the "deliver" caller seeing an
+ * exception.  Duplicate segments are ignored.
  */
 public class InputPipe implements Deliverer {
 
+  /** Default maximum number of early segments that we'll hold */
+  public static final int DEFAULT_REORDER_WINDOW = 64;
+
+  /** Default milliseconds that we'll wait for a missing segment */
+  public static final long DEFAULT_GAP_TIMEOUT = 30000;
+
   // a list of buffered byte[]s and Tokens
   private final LinkedList queue = new LinkedList();
 
   private final InputStreamImpl in;
 
+  // our granter, guarded by the queue lock
+  private Granter granter;
+  private final int window;
+
+  private final int reorderWindow;
+  private final long gapNanos;
+
+  // map from Integer counter to early Object[] {metaData, data}, or null
+  private Map early;
+  // System.nanoTime when we started waiting for a missing segment, or zero
+  private long gapStart;
+  // our failure message, or null
+  private String failure;
+
+  // consumed bytes that we haven't granted yet
+  private int consumed;
+
+  // System.nanoTime of our last deliver or read
+  private long lastActivity = System.nanoTime();
+
+  // maximum nanos a read will block, or zero to block forever
+  private long readNanos;
+
   private Map metaData;
   private int counter = -1;
   private boolean in_closed;
   private boolean out_closed;
+  // true if we've received the remote close, so we don't need to grant
+  private boolean close_delivered;
 
   public InputPipe() {
+    this(null, 0);
+  }
+
+  /**
+   * @param granter optional flow-control granter
+   * @param window our flow-control window, which we advertise to the
+   *   remote {@link OutputPipe} as its initial credit, or zero to disable
+   *   flow control
+   */
+  public InputPipe(Granter granter, int window) {
+    this(granter, window, DEFAULT_REORDER_WINDOW, DEFAULT_GAP_TIMEOUT);
+  }
+
+  /**
+   * @param granter optional flow-control granter
+   * @param window our flow-control window, which we advertise to the
+   *   remote {@link OutputPipe} as its initial credit, or zero to disable
+   *   flow control
+   * @param reorderWindow maximum number of early segments to hold, or
+   *   zero to fail on any out-of-order segment
+   * @param gapTimeout milliseconds to wait for a missing segment, or zero
+   *   to wait forever
+   */
+  public InputPipe(
+      Granter granter, int window, int reorderWindow, long gapTimeout) {
+    this.granter = (window > 0 ? granter : null);
+    this.window = window;
+    this.reorderWindow = Math.max(0, reorderWindow);
+    this.gapNanos = Math.max(0, gapTimeout) * 1000000;
     in = new InputStreamImpl();
   }
 
+  /**
+   * Set our flow-control granter, e.g. once the remote peer has advertised
+   * its window.  This is ignored if our window is zero or negative.
+   * <p>
+   * Data consumed before this call is included in our first grant.
+   */
+  void setGranter(Granter granter) {
+    synchronized (queue) {
+      if (window > 0) {
+        this.granter = granter;
+      }
+    }
+  }
+
   /** Non-blocking deliver call */
   public void deliver(int counter, Map metaData, List data) {
     synchronized (queue) {
       // check if closed
-      if (in_closed) {
-        // our local client closed the input stream (?)
+      if (in_closed || out_closed || close_delivered) {
+        // our local client closed the input stream, we've failed, or
+        // this is a straggler after the remote close
         return;
       }
 
-      // update counter
-      if (counter != this.counter + 1) {
-        throw new RuntimeException(
-            "Unexpected counter value "+counter+
-            ", expecting "+(this.counter+1));
+      long now = System.nanoTime();
+      lastActivity = now;
+
+      if (counter <= this.counter) {
+        // duplicate
+        return;
       }
-      this.counter = counter;
 
-      if (counter == 0) {
-        // save metadata
-        this.metaData = (metaData == null ? Collections.EMPTY_MAP : metaData);
+      if (counter > this.counter + 1) {
+        // early, hold it until the gap is filled
+        if (checkGap(now)) return;
+        if (counter - this.counter - 1 > reorderWindow) {
+          fail(
+              "Segment "+counter+" is beyond our reorder window of "+
+              reorderWindow+", expecting "+(this.counter+1));
+          return;
+        }
+        if (early == null) {
+          early = new HashMap();
+        }
+        Integer key = new Integer(counter);
+        if (early.containsKey(key)) {
+          // duplicate
+          return;
+        }
+        early.put(key, new Object[] {metaData, data});
+        if (gapStart == 0) {
+          gapStart = now;
+          // wake the reader, so it waits with our gap timeout
+          queue.notifyAll();
+        }
+        return;
       }
 
-      // append to queue
-      queue.addAll(data);
+      // in order, append it and any held segments that it releases
+      append(counter, metaData, data);
+      while (early != null && !close_delivered) {
+        Object[] a = (Object[]) early.remove(new Integer(this.counter + 1));
+        if (a == null) break;
+        append(this.counter + 1, (Map) a[0], (List) a[1]);
+      }
+      if (early != null && (early.isEmpty() || close_delivered)) {
+        early = null;
+      }
+      gapStart = (early == null ? 0 : now);
       queue.notifyAll();
     }
   }
 
+  private void append(int counter, Map metaData, List data) {
+    assert Thread.holdsLock(queue);
+
+    this.counter = counter;
+
+    if (counter == 0) {
+      // save metadata
+      this.metaData = (metaData == null ? Collections.EMPTY_MAP : metaData);
+    }
+
+    // append to queue
+    queue.addAll(data);
+    if (!data.isEmpty() && data.get(data.size() - 1) == Tokens.CLOSE) {
+      close_delivered = true;
+    }
+  }
+
+  /**
+   * Fail the pipe if we've waited too long for a missing segment.
+   *
+   * @return true if we've failed
+   */
+  private boolean checkGap(long now) {
+    assert Thread.holdsLock(queue);
+    if (gapStart != 0 && gapNanos > 0 && now - gapStart >= gapNanos) {
+      fail(
+          "Timeout after "+(gapNanos / 1000000)+
+          " millis waiting for segment "+(counter+1));
+      return true;
+    }
+    return false;
+  }
+
+  /** Wait for a deliver, limited by our gap timeout */
+  private void waitForDeliver() {
+    waitForDeliver(0);
+  }
+
+  /**
+   * Wait for a deliver, limited by our gap timeout and the given
+   * System.nanoTime read deadline, if it's non-zero.
+   */
+  private void waitForDeliver(long readDeadline) {
+    assert Thread.holdsLock(queue);
+    long millis = 0;
+    long now = System.nanoTime();
+    if (gapStart != 0 && gapNanos > 0) {
+      long nanos = gapStart + gapNanos - now;
+      millis = Math.max(1, (nanos + 999999) / 1000000);
+    }
+    if (readDeadline != 0) {
+      long nanos = readDeadline - now;
+      long m = Math.max(1, (nanos + 999999) / 1000000);
+      millis = (millis == 0 ? m : Math.min(millis, m));
+    }
+    try {
+      queue.wait(millis);
+    } catch (InterruptedException ie) {
+      throw new RuntimeException("interrupted");
+    }
+    checkGap(System.nanoTime());
+  }
+
+  private void fail(String message) {
+    assert Thread.holdsLock(queue);
+    failure = message;
+    out_closed = true;
+    queue.clear();
+    early = null;
+    gapStart = 0;
+    in.discard();
+    queue.notifyAll();
+  }
+
+  /**
+   * @return null if there's metadata or the pipe is closed or failed
+   */
   public Map getMetaData() {
     synchronized (queue) {
       while (metaData == null && (!in_closed && !out_closed)) {
-        try {
-          // TODO have max-wait limit for stream timeout
-          queue.wait();
-        } catch (InterruptedException ie) {
-          throw new RuntimeException("interrupted");
-        }
+        waitForDeliver();
       }
       return metaData;
     }
@@ -104,6 +297,39 @@ public class InputPipe implements Deliverer {
     return in;
   }
 
+  /**
+   * @return the System.nanoTime of the last "deliver" or read
+   */
+  public long getLastActivity() {
+    synchronized (queue) {
+      return lastActivity;
+    }
+  }
+
+  /**
+   * Limit the time that a read will block waiting for data.
+   * <p>
+   * A read that times out throws a {@link SocketTimeoutException} and
+   * leaves the pipe open, like a socket's SO_TIMEOUT.
+   *
+   * @param millis maximum milliseconds per read, or zero to block forever
+   */
+  public void setReadTimeout(long millis) {
+    synchronized (queue) {
+      readNanos = Math.max(0, millis) * 1000000;
+    }
+  }
+
+  /**
+   * Abandon the pipe, e.g. if the remote peer appears to have crashed.
+   * <p>
+   * Any blocked "getMetaData" call will return null, and any blocked or
+   * future reads will see the end of the stream.
+   */
+  public void abort() {
+    in.abort();
+  }
+
   public void close() {
     in.close();
   }
@@ -116,27 +342,28 @@ public class InputPipe implements Deliverer {
     // for "int read2()"
     private byte[] tmp = new byte[1];
 
-    public int read2() {
+    public int read2() throws IOException {
+      int count;
       synchronized (queue) {
-        while (true) {
-          int count = _read2(tmp, 0, 1);
-          switch (count) {
-            case 1: return tmp[0];
-            case 0: break;
-            case -1: return -1;
-            case NOOP: return NOOP;
-            case FLUSH: return FLUSH;
-            default: throw new RuntimeException("Invalid read count: "+count);
-          }
-        }
+        do {
+          count = _read2(tmp, 0, 1);
+        } while (count == 0);
+      }
+      sendGrant();
+      switch (count) {
+        case 1: return (tmp[0] & 0xff);
+        case -1: return -1;
+        case NOOP: return NOOP;
+        case FLUSH: return FLUSH;
+        default: throw new RuntimeException("Invalid read count: "+count);
       }
     }
 
-    public int read2(byte b[]) {
+    public int read2(byte b[]) throws IOException {
       return read2(b, 0, b.length);
     }
 
-    public int read2(byte[] b, int off, int len) {
+    public int read2(byte[] b, int off, int len) throws IOException {
       if (b == null) {
         throw new NullPointerException();
       } else if ((off < 0) || (off > b.length) || (len < 0) ||
@@ -145,30 +372,41 @@ public class InputPipe implements Deliverer {
       } else if (len == 0) {
         return 0;
       }
+      int count;
       synchronized (queue) {
-        return _read2(b, off, len);
+        count = _read2(b, off, len);
       }
+      sendGrant();
+      return count;
     }
 
-    private int _read2(byte[] b, int off, int len) {
+    private int _read2(byte[] b, int off, int len) throws IOException {
       assert Thread.holdsLock(queue);
 
       if (buf == null) {
+        long readDeadline = 0;
         while (true) {
+          if (failure != null) throw new IOException(failure);
           if (out_closed || in_closed) return -1;
           if (!queue.isEmpty()) break;
-          try {
-            // TODO have max-wait limit for stream timeout
-            queue.wait();
-          } catch (InterruptedException ie) {
-            throw new RuntimeException("interrupted");
+          if (readNanos > 0) {
+            long now = System.nanoTime();
+            if (readDeadline == 0) {
+              readDeadline = now + readNanos;
+            } else if (now - readDeadline >= 0) {
+              throw new SocketTimeoutException(
+                  "Read timed out after "+(readNanos / 1000000)+" millis");
+            }
           }
+          waitForDeliver(readDeadline);
         }
         Object o = queue.removeFirst();
         if (o instanceof ByteArrayOutputStream) {
           // our InputPipe is supposed to convert these, but we'll
           // catch this case regardless
           o = ((ByteArrayOutputStream) o).toByteArray();
+        } else if (o instanceof DeflatedBytes) {
+          o = ((DeflatedBytes) o).inflate();
         }
         if (o instanceof byte[]) {
           buf = (byte[]) o;
@@ -190,6 +428,8 @@ public class InputPipe implements Deliverer {
       int n = Math.min(buf.length - offset, len);
       System.arraycopy(buf, offset, b, off, n);
       offset += n;
+      consumed += n;
+      lastActivity = System.nanoTime();
       if (offset == buf.length) {
         buf = null;
         offset = 0;
@@ -198,14 +438,55 @@ public class InputPipe implements Deliverer {
     }
 
     public void close() {
+      Granter g;
       synchronized (queue) {
         if (in_closed) return;
         in_closed = true;
         queue.clear();
-        buf = null;
-        offset = 0;
+        early = null;
+        gapStart = 0;
+        discard();
         queue.notifyAll();
+        g = (close_delivered ? null : granter);
+      }
+      if (g != null) {
+        // we'll discard any further data, so let the writer finish
+        g.grant(Granter.UNLIMITED);
+      }
+    }
+
+    public void abort() {
+      synchronized (queue) {
+        if (in_closed || out_closed) return;
+        out_closed = true;
+        queue.clear();
+        early = null;
+        gapStart = 0;
+        discard();
+        queue.notifyAll();
+      }
+    }
+
+    // drop our partially read buffer
+    private void discard() {
+      buf = null;
+      offset = 0;
+    }
+
+    // grant credit for consumed data, called without holding the lock
+    private void sendGrant() {
+      Granter g;
+      int n;
+      synchronized (queue) {
+        if (granter == null || close_delivered || in_closed ||
+            consumed < (window >> 1)) {
+          return;
+        }
+        g = granter;
+        n = consumed;
+        consumed = 0;
       }
+      g.grant(n);
     }
   }
 }
@@ -26,9 +26,8 @@
 
 package org.cougaar.lib.web.micro.mts;
 
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -58,16 +57,32 @@ public class MessagingClientFactory implements ClientFactory {
   private final UIDService uids;
   private final ThreadService threadService;
   private final MessageSwitchService msgSwitch;
-  private final long nagle;
+  private final int window;
+  private final int reorderWindow;
+  private final long gapTimeout;
+  private final boolean compress;
 
-  // map from session UID to Pipe
-  private final Map input_pipes = new HashMap();
+  // pipe options, where we never compress our requests, and we don't
+  // flow-control them until the server advertises its window
+  private final Map plainOptions;
 
-  // todo for processing input messages
-  private final TodoQueue todo;
+  // our open sessions
+  private final SessionTable sessions;
+
+  // sharded queues for processing input messages
+  private final ReceiveDispatcher receiver;
+
+  // sender for output messages
+  private final Multiplexer mux;
+
+  // shared nagle timers and sender threads for our output pipes
+  private final FlushScheduler flusher;
 
   /**
-   * @param nagle see {@link OutputPipe}
+   * Equivalent to the options constructor with only a "nagle" option.
+   *
+   * @param nagle maximum batching delay in milliseconds, see
+   *   {@link OutputPipe}
    */
   public MessagingClientFactory(
       LoggingService log,
@@ -75,11 +90,45 @@ public class MessagingClientFactory implements ClientFactory {
       ThreadService threadService,
       MessageSwitchService msgSwitch,
       long nagle) {
+    this(
+        log, uids, threadService, msgSwitch,
+        Collections.singletonMap("nagle", Long.toString(nagle)));
+  }
+
+  /**
+   * @param options optional pipe settings, e.g. "nagle" and "window", see
+   *   {@link OutputPipe}, plus the "muxDelay" send interval for our
+   *   {@link Multiplexer}, and the "reorderWindow" and "gapTimeout"
+   *   limits for our {@link InputPipe}s, and the "receiveThreads" and
+   *   "receiveBatchSize" for our {@link ReceiveDispatcher}.  The
+   *   "compress" option defaults to false.  Both compression and flow
+   *   control are negotiated through the first message metadata, so we
+   *   interoperate with servers that predate them.  The session limits
+   *   and timeouts are documented in {@link SessionTable}, and the
+   *   "flushThreads" and "flushTick" in {@link FlushScheduler}.
+   */
+  public MessagingClientFactory(
+      LoggingService log,
+      UIDService uids,
+      ThreadService threadService,
+      MessageSwitchService msgSwitch,
+      Map options) {
     this.log = log;
     this.uids = uids;
     this.threadService = threadService;
     this.msgSwitch = msgSwitch;
-    this.nagle = nagle;
+    this.window = 
+      Options.getInt(options, "window", OutputPipe.DEFAULT_WINDOW);
+    this.reorderWindow =
+      Options.getInt(
+          options, "reorderWindow", InputPipe.DEFAULT_REORDER_WINDOW);
+    this.gapTimeout =
+      Options.getLong(options, "gapTimeout", InputPipe.DEFAULT_GAP_TIMEOUT);
+    this.compress = Options.getBoolean(options, "compress", false);
+    this.plainOptions =
+      Options.with(
+          Options.with(options, "compress", "false"),
+          "window", "0");
 
     String s = 
       (log == null ? "log" :
@@ -91,12 +140,28 @@ public class MessagingClientFactory implements ClientFactory {
       throw new IllegalArgumentException("null "+s);
     }
 
-    // this thread won't block
-    this.todo = 
-      new TodoQueue(
+    this.sessions = new SessionTable(log, options);
+
+    this.flusher =
+      new FlushScheduler(log, threadService, "mts tunnel flusher", options);
+
+    this.mux =
+      new Multiplexer(
+          log, threadService, msgSwitch,
+          MessagingServerFactory.TYPE,
+          Options.getLong(options, "muxDelay", Multiplexer.DEFAULT_DELAY));
+
+    // these threads won't block
+    this.receiver =
+      new ReceiveDispatcher(
           log, threadService,
           "mts tunnel receiver",
-          ThreadService.BEST_EFFORT_LANE) {
+          ThreadService.BEST_EFFORT_LANE,
+          Options.getInt(
+              options, "receiveThreads", ReceiveDispatcher.DEFAULT_SHARDS),
+          Options.getInt(
+              options, "receiveBatchSize",
+              ReceiveDispatcher.DEFAULT_BATCH_SIZE)) {
         protected void doNow(Object o) {
           handleMessage((PipeMessage) o);
         }
@@ -107,22 +172,45 @@ public class MessagingClientFactory implements ClientFactory {
     MessageHandler handler = new MessageHandler() {
       // called in the mts thread
       public boolean handleMessage(Message m) {
+        if (m instanceof PipeMessageBundle) {
+          PipeMessageBundle bundle = (PipeMessageBundle) m;
+          if (!TYPE.equals(bundle.getType())) return false;
+          // switch threads, preserving the per-session order
+          List l = bundle.getMessages();
+          for (int i = 0; i < l.size(); i++) {
+            PipeMessage pm = (PipeMessage) l.get(i);
+            receiver.add(pm.getSessionId(), pm);
+          }
+          return true;
+        }
         if (!(m instanceof PipeMessage)) return false;
         PipeMessage pm = (PipeMessage) m;
         if (!TYPE.equals(pm.getType())) return false;
         // switch threads
-        todo.add(pm);
+        receiver.add(pm.getSessionId(), pm);
         return true;
       }
     };
     msgSwitch.addMessageHandler(handler);
+    sessions.start(threadService, "mts tunnel client reaper");
   }
 
   public void stop() {
     // no "msgSwitch.removeMessageHandler(handler)" method!
+    sessions.stop();
+    flusher.stop();
+    mux.flush();
   }
 
-  // called in our "todo" thread
+  /**
+   * @return the approximate number of queued input messages in each of
+   *   our receive shards
+   */
+  public int[] getReceiveQueueDepths() {
+    return receiver.getQueueDepths();
+  }
+
+  // called in one of our receive shard threads
   private void handleMessage(PipeMessage pm) {
     if (log.isDebugEnabled()) {
       log.debug("client-recv: "+pm);
@@ -131,17 +219,12 @@ public class MessagingClientFactory implements ClientFactory {
     // lookup pipe
     UID sessionId = pm.getSessionId();
 
-    List data = pm.getData();
-    Object last = (data.isEmpty() ? null : data.get(data.size() - 1));
-    boolean is_last = (last == Tokens.CLOSE);
-
-    InputPipe ip;
-    synchronized (input_pipes) {
-      ip = (InputPipe) input_pipes.get(sessionId);
-      if (is_last) {
-        input_pipes.remove(sessionId);
-      }
+    if (pm.isGrant()) {
+      handleGrant(pm);
+      return;
     }
+
+    InputPipe ip = sessions.getInputPipe(sessionId);
     if (ip == null) {
       // unknown?  response to dead/closed pipe?
       if (log.isWarnEnabled()) {
@@ -150,11 +233,72 @@ public class MessagingClientFactory implements ClientFactory {
       return;
     }
 
+    if (pm.getCounter() == 0) {
+      // enable flow control before the reader can consume the response
+      negotiate(pm, ip);
+    }
+
     // deliver to input pipe
-    ip.deliver(pm.getCounter(), pm.getMetaData(), data);
+    ip.deliver(pm.getCounter(), pm.getMetaData(), pm.getData());
+  }
+
+  /**
+   * Enable flow control if the server's first response advertised its
+   * window.  A server that predates flow control won't grant credit, and
+   * won't expect grants from us.
+   */
+  private void negotiate(PipeMessage pm, InputPipe ip) {
+    Map meta = pm.getMetaData();
+    Object o = (meta == null ? null : meta.get(OutputPipe.WINDOW_KEY));
+    if (o == null || window <= 0) return;
+    int peerWindow;
+    try {
+      peerWindow = Integer.parseInt(o.toString());
+    } catch (NumberFormatException e) {
+      if (log.isWarnEnabled()) {
+        log.warn("Invalid "+OutputPipe.WINDOW_KEY+" in "+pm);
+      }
+      return;
+    }
+    UID sessionId = pm.getSessionId();
+    ip.setGranter(newGranter(pm.getOriginator(), sessionId));
+    OutputPipe op = sessions.getOutputPipe(sessionId);
+    if (op != null) {
+      op.setPeerWindow(peerWindow);
+    }
   }
 
-  public Connection connect(Object o, Map metaData) {
+  private Granter newGranter(
+      final MessageAddress target, final UID sessionId) {
+    return new Granter() {
+      public void grant(int credit) {
+        PipeMessage pm =
+          new PipeMessage(
+              msgSwitch.getMessageAddress(), target,
+              MessagingServerFactory.TYPE,
+              sessionId, credit);
+        if (log.isDebugEnabled()) {
+          log.debug("client-send: "+pm);
+        }
+        mux.send(pm);
+      }
+    };
+  }
+
+  private void handleGrant(PipeMessage pm) {
+    UID sessionId = pm.getSessionId();
+    OutputPipe op = sessions.getOutputPipe(sessionId);
+    if (op == null) {
+      // we've already closed this session
+      if (log.isDebugEnabled()) {
+        log.debug("Ignoring grant for closed sessionId: "+pm);
+      }
+      return;
+    }
+    op.grant(pm.getCredit());
+  }
+
+  public Connection connect(Object o, Map metaData) throws IOException {
     if (!(o instanceof MessageAddress)) {
       throw new IllegalArgumentException(
           "Expecting a MessageAddress, not "+
@@ -166,13 +310,31 @@ public class MessagingClientFactory implements ClientFactory {
   }
 
   private Connection makeConnection(
-      final MessageAddress target, final Map metaData) {
+      final MessageAddress target, final Map metaData
+      ) throws IOException {
 
-    // create pipes
+    // tell the server if we accept compressed responses and grant credit.
+    // We don't compress our request, since we don't know if the server
+    // accepts it, and we don't wait for credit until the server's first
+    // response advertises its window.
+    Map meta = metaData;
+    if (compress) {
+      meta = Options.with(meta, OutputPipe.COMPRESS_KEY, "deflate");
+    }
+    if (window > 0) {
+      meta =
+        Options.with(meta, OutputPipe.WINDOW_KEY, Integer.toString(window));
+    }
+
+    // create pipes, where our granter is set when we negotiate
     final UID sessionId = uids.nextUID();
-    final InputPipe ip = new InputPipe();
-    synchronized (input_pipes) {
-      input_pipes.put(sessionId, ip);
+    final InputPipe ip = 
+      new InputPipe(null, window, reorderWindow, gapTimeout);
+    if (!sessions.add(sessionId, target, ip)) {
+      // fail fast, instead of queuing behind the open sessions
+      throw new SessionLimitException(
+          "Too many open sessions to "+target+", limit is "+
+          sessions.getMaxPerPeer());
     }
     Deliverer sender = new Deliverer() {
       public void deliver(int counter, Map meta, List data) {
@@ -186,14 +348,15 @@ public class MessagingClientFactory implements ClientFactory {
         if (log.isDebugEnabled()) {
           log.debug("client-send: "+pm);
         }
-        msgSwitch.sendMessage(pm);
+        mux.send(pm);
       }
     };
     final OutputPipe op = 
       new OutputPipe(
           "mts tunnel target="+target+" session="+sessionId,
           log, threadService, sender,
-          metaData, nagle);
+          meta, plainOptions, flusher);
+    sessions.setOutputPipe(sessionId, op);
 
     return new Connection() {
       public Map getMetaData() {
@@ -205,12 +368,13 @@ public class MessagingClientFactory implements ClientFactory {
       public AnnotatedOutputStream getOutputStream() {
         return op.getOutputStream();
       }
+      public void setReadTimeout(long millis) {
+        ip.setReadTimeout(millis);
+      }
       public void close() {
         ip.close();
         op.close();
-        synchronized (input_pipes) {
-          input_pipes.remove(sessionId);
-        }
+        sessions.remove(sessionId);
       }
     };
   }
@@ -26,13 +26,9 @@
 
 package org.cougaar.lib.web.micro.mts;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.Serializable;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import javax.servlet.Servlet;
@@ -44,7 +40,6 @@ import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.mts.MessageHandler;
 import org.cougaar.core.service.LoggingService;
 import org.cougaar.core.service.ThreadService;
-import org.cougaar.core.thread.Schedulable;
 import org.cougaar.core.util.UID;
 import org.cougaar.lib.web.micro.base.AnnotatedInputStream;
 import org.cougaar.lib.web.micro.base.AnnotatedOutputStream;
@@ -60,31 +55,91 @@ public class MessagingServerFactory implements ServerFactory {
   /** A {@link PipeMessage} tag for messages we should receive */
   public static final String TYPE = "server";
 
+  // our response if we have too many sessions from the client
+  private static final byte[] BUSY_RESPONSE = 
+    ("HTTP/1.0 503 Service Unavailable\r\n"+
+     "Retry-After: 1\r\n"+
+     "Content-Length: 0\r\n"+
+     "Connection: close\r\n"+
+     "\r\n").getBytes();
+
   private final LoggingService log;
   private final ThreadService threadService;
   private final MessageSwitchService msgSwitch;
-  private final long nagle;
+  private final int window;
+  private final int reorderWindow;
+  private final long gapTimeout;
+  private final boolean compress;
+
+  // pipe options with and without compression, where we only compress if
+  // the peer accepts it
+  private final Map plainOptions;
+  private final Map compressOptions;
 
   private AcceptCallback callback;
 
-  // map from session UID to Pipe
-  private final Map input_pipes = new HashMap();
+  // our open sessions
+  private final SessionTable sessions;
+
+  // sharded queues for processing input messages
+  private final ReceiveDispatcher receiver;
 
-  // todo for processing input messages
-  private final TodoQueue todo;
+  // sender for output messages
+  private final Multiplexer mux;
+
+  // shared nagle timers and sender threads for our output pipes
+  private final FlushScheduler flusher;
+
+  // bounded threads for running servlets
+  private final WorkerPool runners;
 
   /**
-   * @param nagle see {@link OutputPipe}
+   * Equivalent to the options constructor with only a "nagle" option.
+   *
+   * @param nagle maximum batching delay in milliseconds, see
+   *   {@link OutputPipe}
    */
   public MessagingServerFactory(
       LoggingService log,
       ThreadService threadService,
       MessageSwitchService msgSwitch,
       long nagle) {
+    this(
+        log, threadService, msgSwitch,
+        Collections.singletonMap("nagle", Long.toString(nagle)));
+  }
+
+  /**
+   * @param options optional pipe settings, e.g. "nagle" and "window", see
+   *   {@link OutputPipe}, plus the "muxDelay" send interval for our
+   *   {@link Multiplexer}, and the "reorderWindow" and "gapTimeout"
+   *   limits for our {@link InputPipe}s, and the "receiveThreads" and
+   *   "receiveBatchSize" for our {@link ReceiveDispatcher}.  The
+   *   "compress" option defaults to false.  Both compression and flow
+   *   control are negotiated through the first message metadata, so we
+   *   interoperate with clients that predate them.  The session limits
+   *   and timeouts are documented in {@link SessionTable}, the
+   *   "flushThreads" and "flushTick" in {@link FlushScheduler}, and the
+   *   servlet thread limits in {@link WorkerPool}.
+   */
+  public MessagingServerFactory(
+      LoggingService log,
+      ThreadService threadService,
+      MessageSwitchService msgSwitch,
+      Map options) {
     this.log = log;
     this.threadService = threadService;
     this.msgSwitch = msgSwitch;
-    this.nagle = nagle;
+    this.window = 
+      Options.getInt(options, "window", OutputPipe.DEFAULT_WINDOW);
+    this.reorderWindow =
+      Options.getInt(
+          options, "reorderWindow", InputPipe.DEFAULT_REORDER_WINDOW);
+    this.gapTimeout =
+      Options.getLong(options, "gapTimeout", InputPipe.DEFAULT_GAP_TIMEOUT);
+    this.compress = Options.getBoolean(options, "compress", false);
+    this.plainOptions = Options.with(options, "compress", "false");
+    this.compressOptions = Options.with(options, "compress", "true");
 
     String s =
       (log == null ? "log" :
@@ -95,12 +150,32 @@ public class MessagingServerFactory implements ServerFactory {
       throw new IllegalArgumentException("null "+s);
     }
 
-    // this thread won't block
-    this.todo =
-      new TodoQueue(
+    this.sessions = new SessionTable(log, options);
+
+    this.flusher =
+      new FlushScheduler(log, threadService, "mts engine flusher", options);
+
+    this.runners =
+      new WorkerPool(
+          log, threadService, "mts engine servlet runner", options);
+
+    this.mux =
+      new Multiplexer(
+          log, threadService, msgSwitch,
+          MessagingClientFactory.TYPE,
+          Options.getLong(options, "muxDelay", Multiplexer.DEFAULT_DELAY));
+
+    // these threads won't block
+    this.receiver =
+      new ReceiveDispatcher(
           log, threadService,
           "mts engine receiver",
-          ThreadService.BEST_EFFORT_LANE) {
+          ThreadService.BEST_EFFORT_LANE,
+          Options.getInt(
+              options, "receiveThreads", ReceiveDispatcher.DEFAULT_SHARDS),
+          Options.getInt(
+              options, "receiveBatchSize",
+              ReceiveDispatcher.DEFAULT_BATCH_SIZE)) {
         protected void doNow(Object o) {
           handleMessage((PipeMessage) o);
         }
@@ -110,18 +185,49 @@ public class MessagingServerFactory implements ServerFactory {
   public void start() {
     MessageHandler handler = new MessageHandler() {
       public boolean handleMessage(Message m) {
+        if (m instanceof PipeMessageBundle) {
+          PipeMessageBundle bundle = (PipeMessageBundle) m;
+          if (!TYPE.equals(bundle.getType())) return false;
+          // switch threads, preserving the per-session order
+          List l = bundle.getMessages();
+          for (int i = 0; i < l.size(); i++) {
+            PipeMessage pm = (PipeMessage) l.get(i);
+            receiver.add(pm.getSessionId(), pm);
+          }
+          return true;
+        }
         if (!(m instanceof PipeMessage)) return false;
         PipeMessage pm = (PipeMessage) m;
         if (!TYPE.equals(pm.getType())) return false;
         // switch threads
-        todo.add(pm);
+        receiver.add(pm.getSessionId(), pm);
         return true;
       }
     };
     msgSwitch.addMessageHandler(handler);
+    sessions.start(threadService, "mts engine reaper");
   }
   public void stop() {
     // no "msgSwitch.removeMessageHandler(handler)" method!
+    sessions.stop();
+    flusher.stop();
+    mux.flush();
+  }
+
+  /**
+   * @return a histogram of the milliseconds that accepted requests waited
+   *   for a servlet thread
+   */
+  public Histogram getQueueWaitHistogram() {
+    return runners.getQueueWaitHistogram();
+  }
+
+  /**
+   * @return the number of requests rejected because all our servlet
+   *   threads were busy and our queue was full
+   */
+  public long getRejectedCount() {
+    return runners.getRejectedCount();
   }
 
   public ListenerControl listen(Map settings, AcceptCallback cb) {
@@ -139,6 +245,27 @@ public class MessagingServerFactory implements ServerFactory {
     };
   }
 
+  /**
+   * @return the approximate number of queued input messages in each of
+   *   our receive shards
+   */
+  public int[] getReceiveQueueDepths() {
+    return receiver.getQueueDepths();
+  }
+
+  private void handleGrant(PipeMessage pm) {
+    UID sessionId = pm.getSessionId();
+    OutputPipe op = sessions.getOutputPipe(sessionId);
+    if (op == null) {
+      // we've already closed this session
+      if (log.isDebugEnabled()) {
+        log.debug("Ignoring grant for closed sessionId: "+pm);
+      }
+      return;
+    }
+    op.grant(pm.getCredit());
+  }
+
   private void handleMessage(PipeMessage pm) {
     if (log.isDebugEnabled()) {
       log.debug("server-recv: "+pm);
@@ -152,34 +279,73 @@ public class MessagingServerFactory implements ServerFactory {
       return;
     }
 
+    if (pm.isGrant()) {
+      handleGrant(pm);
+      return;
+    }
+
     final MessageAddress target = pm.getOriginator();
     Map metaData = pm.getMetaData();
     final UID sessionId = pm.getSessionId();
     int counter = pm.getCounter();
 
     List data = pm.getData();
-    Object last = (data.isEmpty() ? null : data.get(data.size() - 1));
-    boolean is_last = (last == Tokens.CLOSE);
-
-    // create pipe or look it up if this is an existing connection
-    final InputPipe ip;
-    synchronized (input_pipes) {
-      if (counter <= 0) {
-        ip = new InputPipe();
-        if (!is_last) {
-          input_pipes.put(sessionId, ip);
-        }
-      } else {
-        ip = (InputPipe) input_pipes.get(sessionId);
-        if (is_last) {
-          input_pipes.remove(sessionId);
+
+    // look up the pipe if this is an existing connection
+    InputPipe existing = sessions.getInputPipe(sessionId);
+    if (existing != null) {
+      // just an input update, don't invoke new "accept" callback.  The
+      // pipe ignores duplicates, e.g. a duplicate first segment.
+      if (log.isDebugEnabled()) {
+        log.debug("ip<"+sessionId+">.deliver("+counter+", ..");
+      }
+      existing.deliver(counter, metaData, data);
+      return;
+    }
+    if (sessions.isRecentlyClosed(sessionId)) {
+      // a duplicate or late message, don't run the servlet again
+      if (log.isDebugEnabled()) {
+        log.debug("Ignoring message for closed sessionId: "+pm);
+      }
+      return;
+    }
+    if (counter > 0) {
+      // the first segment hasn't arrived yet, e.g. over a multipath
+      // transport, so hold this one until it does
+      if (!sessions.holdEarly(sessionId, pm)) {
+        if (log.isWarnEnabled()) {
+          log.warn("Dropping early segment for unknown sessionId: "+pm);
         }
+      } else if (log.isDebugEnabled()) {
+        log.debug("Holding early segment for unknown sessionId: "+pm);
       }
+      return;
     }
-    if (ip == null) {
-      if (log.isWarnEnabled()) {
-        log.warn("Unknown sessionId specified by "+pm);
+
+    // only flow-control the session if the client advertised its window,
+    // since an older client won't grant credit or expect our grants
+    int peerWindow = (window > 0 ? getPeerWindow(metaData) : 0);
+
+    // create pipe
+    Granter granter = new Granter() {
+      public void grant(int credit) {
+        PipeMessage gm =
+          new PipeMessage(
+              msgSwitch.getMessageAddress(), target,
+              MessagingClientFactory.TYPE,
+              sessionId, credit);
+        if (log.isDebugEnabled()) {
+          log.debug("server-send: "+gm);
+        }
+        mux.send(gm);
       }
+    };
+    final InputPipe ip =
+      new InputPipe(
+          (peerWindow > 0 ? granter : null),
+          window, reorderWindow, gapTimeout);
+    if (!sessions.add(sessionId, target, ip)) {
+      reject(target, sessionId);
       return;
     }
 
@@ -187,15 +353,29 @@ public class MessagingServerFactory implements ServerFactory {
       log.debug("ip<"+sessionId+">.deliver("+counter+", ..");
     }
     ip.deliver(counter, metaData, data);
-    if (counter > 0) {
-      // just an input update, don't invoke new "accept" callback
-      return;
+
+    // deliver any segments that arrived before this first one
+    List early = sessions.takeEarly(sessionId);
+    if (early != null) {
+      for (int i = 0; i < early.size(); i++) {
+        PipeMessage e = (PipeMessage) early.get(i);
+        if (log.isDebugEnabled()) {
+          log.debug("ip<"+sessionId+">.deliver("+e.getCounter()+", ..");
+        }
+        ip.deliver(e.getCounter(), e.getMetaData(), e.getData());
+      }
     }
 
     if (log.isInfoEnabled()) {
       log.info("Handling servlet request from "+target+": "+pm);
     }
 
+    // compress our response if the client accepts it
+    boolean accepts_compression = 
+      (compress &&
+       metaData != null &&
+       "deflate".equals(metaData.get(OutputPipe.COMPRESS_KEY)));
+
     Deliverer sender = new Deliverer() {
       public void deliver(int seq, Map meta, List dat) {
         PipeMessage pm =
@@ -208,13 +388,25 @@ public class MessagingServerFactory implements ServerFactory {
         if (log.isDebugEnabled()) {
           log.debug("server-send: "+pm);
         }
-        msgSwitch.sendMessage(pm);
+        mux.send(pm);
       }
     };
+    Map options = (accepts_compression ? compressOptions : plainOptions);
+    Map meta = null;
+    if (peerWindow > 0) {
+      // advertise our window in our first response
+      options = Options.with(options, "window", Integer.toString(peerWindow));
+      meta =
+        Collections.singletonMap(
+            OutputPipe.WINDOW_KEY, Integer.toString(window));
+    } else {
+      options = Options.with(options, "window", "0");
+    }
     final OutputPipe op = 
       new OutputPipe(
           "mts engine output pipe target="+target+" session="+sessionId,
-          log, threadService, sender, null, nagle);
+          log, threadService, sender, meta, options, flusher);
+    sessions.setOutputPipe(sessionId, op);
 
     final Connection con = new Connection() {
       public Map getMetaData() {
@@ -226,18 +418,19 @@ public class MessagingServerFactory implements ServerFactory {
       public AnnotatedOutputStream getOutputStream() throws IOException {
         return op.getOutputStream();
       }
+      public void setReadTimeout(long millis) {
+        ip.setReadTimeout(millis);
+      }
       public void close() throws IOException {
         ip.close();
         op.close();
-        synchronized (input_pipes) {
-          input_pipes.remove(sessionId);
-        }
+        sessions.remove(sessionId);
       }
     };
 
     // run our "accept" callback in a separate thread, since servlets can block
     //
-    // we want servlets to run in parallel threads
+    // we want servlets to run in parallel threads, up to our pool limit
     Runnable r = new Runnable() {
       public void run() {
         try {
@@ -252,11 +445,67 @@ public class MessagingServerFactory implements ServerFactory {
         }
       }
     };
-    Schedulable thread = 
-      threadService.getThread(
-          this, r,
-          "mts engine servlet runner target="+target+" session="+sessionId,
-          ThreadService.WILL_BLOCK_LANE);
-    thread.start();
+    if (runners.execute(r)) {
+      return;
+    }
+
+    // saturated, reply with a "503" instead of queuing without limit
+    if (log.isWarnEnabled()) {
+      log.warn(
+          "Rejecting servlet request from "+target+" session="+sessionId+
+          ", all servlet threads are busy and the queue is full");
+    }
+    try {
+      try {
+        op.getOutputStream().write(BUSY_RESPONSE);
+      } finally {
+        con.close();
+      }
+    } catch (IOException e) {
+      if (log.isErrorEnabled()) {
+        log.error("Reject failed for sessionId="+sessionId, e);
+      }
+    }
+  }
+
+  /**
+   * @return the client's advertised {@link InputPipe} window, or zero if
+   *   the client doesn't support flow control
+   */
+  private int getPeerWindow(Map metaData) {
+    Object o =
+      (metaData == null ? null : metaData.get(OutputPipe.WINDOW_KEY));
+    if (o == null) return 0;
+    try {
+      return Math.max(0, Integer.parseInt(o.toString()));
+    } catch (NumberFormatException e) {
+      if (log.isWarnEnabled()) {
+        log.warn("Invalid "+OutputPipe.WINDOW_KEY+": "+o);
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Reply with a "503 Service Unavailable" to a new session that exceeds
+   * our per-client limit, without running the servlet.
+   */
+  private void reject(MessageAddress target, UID sessionId) {
+    if (log.isWarnEnabled()) {
+      log.warn(
+          "Rejecting servlet request from "+target+" session="+sessionId+
+          ", already have "+sessions.getMaxPerPeer()+" open sessions");
+    }
+    sessions.markClosed(sessionId);
+    List data = new ArrayList(2);
+    data.add(BUSY_RESPONSE);
+    data.add(Tokens.CLOSE);
+    PipeMessage pm =
+      new PipeMessage(
+          msgSwitch.getMessageAddress(), target,
+          MessagingClientFactory.TYPE,
+          sessionId, 0,
+          null, data);
+    mux.send(pm);
   }
 }
@@ -32,10 +32,10 @@ import java.net.URI;
 import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 
-import org.cougaar.bootstrap.SystemProperties;
 import org.cougaar.core.agent.service.MessageSwitchService;
 import org.cougaar.core.component.Component;
 import org.cougaar.core.component.ServiceBroker;
@@ -44,6 +44,7 @@ import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.node.NodeIdentificationService;
 import org.cougaar.core.service.LoggingService;
 import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
 import org.cougaar.lib.web.engine.ServletEngineRegistryService;
 import org.cougaar.lib.web.engine.ServletEngineService;
 import org.cougaar.lib.web.micro.base.ServletEngine;
@@ -55,9 +56,70 @@ import org.cougaar.util.GenericStateModelAdapter;
  * This component loads a message-transport-backed servlet engine that
  * listens for incoming {@link MessagingTunnel} servlet requests.
  *
- * @property org.cougaar.lib.web.micro.mts.engine.nagle=1000
- *   MTS-backed servlet engine response OutputStream buffering delay.
- *   See {@link OutputPipe}.
+ * @property org.cougaar.lib.web.micro.mts.engine.nagle=100
+ *   MTS-backed servlet engine response OutputStream maximum buffering
+ *   delay.  The actual delay adapts to the observed gaps between writes,
+ *   and flushes are sent immediately.  See {@link OutputPipe}.
+ * @property org.cougaar.lib.web.micro.mts.engine.batchSize=16384
+ *   Send buffered response bytes as soon as this many are buffered.
+ * @property org.cougaar.lib.web.micro.mts.engine.maxSegmentSize=32768
+ *   Maximum response data bytes per message.  Each full segment is sent
+ *   right away, so large responses are pipelined.
+ * @property org.cougaar.lib.web.micro.mts.engine.window=65536
+ *   Per-session flow-control window in bytes for the request body.  We
+ *   advertise it to the tunnel, which adopts it as its send credit, and
+ *   we adopt the tunnel's advertised window for our response, so the two
+ *   windows can differ.  Zero on either side disables flow control for
+ *   the session.
+ * @property org.cougaar.lib.web.micro.mts.engine.creditTimeout=60000
+ *   Milliseconds a servlet's response write will block waiting for the
+ *   client to grant more flow-control credit.
+ * @property org.cougaar.lib.web.micro.mts.engine.muxDelay=2
+ *   Milliseconds to linger before sending, so messages from concurrent
+ *   sessions to the same node are packed into one message.  Zero sends
+ *   every message immediately.  See {@link Multiplexer}.
+ * @property org.cougaar.lib.web.micro.mts.engine.compress=false
+ *   Deflate large response segments if the tunnel accepts it.  Both the
+ *   engine and the tunnel must enable it.
+ * @property org.cougaar.lib.web.micro.mts.engine.compressLevel=6
+ *   Response deflate level, from 1 (fastest) to 9 (smallest).
+ * @property org.cougaar.lib.web.micro.mts.engine.compressThreshold=1024
+ *   Minimum response segment size in bytes to compress.
+ * @property org.cougaar.lib.web.micro.mts.engine.maxSessionsPerPeer=100
+ *   Maximum concurrent servlet requests from a single tunnel node.  Excess
+ *   requests are rejected with a "503 Service Unavailable".  Zero
+ *   disables the limit.
+ * @property org.cougaar.lib.web.micro.mts.engine.idleTimeout=300000
+ *   Milliseconds without any activity before a session is reaped, e.g.
+ *   because the tunnel's node has crashed.  Zero disables the timeout.
+ * @property org.cougaar.lib.web.micro.mts.engine.sessionTimeout=3600000
+ *   Maximum lifetime of a session in milliseconds, regardless of
+ *   activity.  Zero disables the timeout.  See {@link SessionTable}.
+ * @property org.cougaar.lib.web.micro.mts.engine.reorderWindow=64
+ *   Maximum number of out-of-order request segments held per session while
+ *   waiting for a missing segment.  Zero requires in-order delivery.
+ * @property org.cougaar.lib.web.micro.mts.engine.gapTimeout=30000
+ *   Milliseconds to wait for a missing request segment before failing the
+ *   session.  See {@link InputPipe}.
+ * @property org.cougaar.lib.web.micro.mts.engine.receiveThreads=4
+ *   Number of threads that process received messages.  Sessions are
+ *   sharded across these threads, so a slow session won't delay the
+ *   sessions in other shards.  See {@link ReceiveDispatcher}.
+ * @property org.cougaar.lib.web.micro.mts.engine.receiveBatchSize=64
+ *   Maximum number of received messages a thread processes before it
+ *   yields its lane.
+ * @property org.cougaar.lib.web.micro.mts.engine.flushThreads=2
+ *   Number of threads shared by all sessions to send buffered output
+ *   once its nagle delay expires.  See {@link FlushScheduler}.
+ * @property org.cougaar.lib.web.micro.mts.engine.flushTick=2
+ *   Resolution in milliseconds of the shared nagle timer.
+ * @property org.cougaar.lib.web.micro.mts.engine.maxServletThreads=64
+ *   Maximum number of tunnelled servlet requests that run at once.  Zero
+ *   disables the limit.
+ * @property org.cougaar.lib.web.micro.mts.engine.maxQueuedServlets=256
+ *   Maximum number of tunnelled requests that wait for a servlet thread.
+ *   Once the threads are busy and the queue is full, further requests are
+ *   rejected with a "503 Service Unavailable".  See {@link WorkerPool}.
  */
 public class MessagingServletEngine
 extends GenericStateModelAdapter
@@ -91,8 +153,7 @@ implements Component
 
     // parse args
     String prefix = "org.cougaar.lib.web.micro.mts.engine.";
-    long nagle = 
-      args.getLong("nagle", SystemProperties.getLong(prefix+".nagle", 1000));
+    Map options = Options.parse(args, prefix);
 
     // obtain services
     log = (LoggingService)
@@ -119,11 +180,21 @@ implements Component
 
     // create mts listener
     MessagingServerFactory server_factory = 
-      new MessagingServerFactory(log, threadService, messageSwitch, nagle);
+      new MessagingServerFactory(log, threadService, messageSwitch, options);
     server_factory.start();
 
-    // create engine
-    engine = new ServletEngineImpl(server_factory);
+    // create engine, with reverse-DNS lookups in pooled threads.  The
+    // shared host name cache may outlive us, so we hold onto the service.
+    final ThreadService ts = threadService;
+    Executor resolver = new Executor() {
+      public void execute(Runnable r) {
+        Schedulable thread = ts.getThread(
+            this, r, "MessagingServletEngine host name resolver",
+            ThreadService.WILL_BLOCK_LANE);
+        thread.start();
+      }
+    };
+    engine = new ServletEngineImpl(server_factory, resolver);
     engine.configure(-1, -1, null);
     try {
       engine.start();
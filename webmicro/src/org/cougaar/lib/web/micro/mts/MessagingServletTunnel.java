@@ -48,7 +48,9 @@ import org.cougaar.core.service.LoggingService;
 import org.cougaar.core.service.ThreadService;
 import org.cougaar.core.service.UIDService;
 import org.cougaar.lib.web.micro.base.Connection;
+import org.cougaar.lib.web.micro.base.ResponseCache;
 import org.cougaar.lib.web.micro.base.ServletTunnel;
+import org.cougaar.lib.web.redirect.CircuitBreaker;
 import org.cougaar.lib.web.redirect.NamingSupport;
 import org.cougaar.lib.web.redirect.ServletRedirector;
 import org.cougaar.lib.web.redirect.ServletRedirectorService;
@@ -60,7 +62,80 @@ import org.cougaar.util.GenericStateModelAdapter;
  * This component loads the "mts_tunnel" servlet redirector, which tunnels
  * servlet requests through the message transport to a remote mts-engine.
  *
- * @property org.cougaar.lib.web.micro.mts.tunnel.nagle=1000
+ * @property org.cougaar.lib.web.micro.mts.tunnel.nagle=100
+ *   MTS tunnel request OutputStream maximum buffering delay, see
+ *   {@link OutputPipe}.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.batchSize=16384
+ *   Send buffered request bytes as soon as this many are buffered.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.maxSegmentSize=32768
+ *   Maximum request data bytes per message.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.window=65536
+ *   Per-session flow-control window in bytes for the response body.  We
+ *   advertise it to the engine, which adopts it as its send credit, and
+ *   we adopt the engine's advertised window for our request, so the two
+ *   windows can differ.  Zero on either side disables flow control for
+ *   the session.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.creditTimeout=60000
+ *   Milliseconds a request write will block waiting for the engine to
+ *   grant more flow-control credit.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.muxDelay=2
+ *   Milliseconds to linger before sending, so messages from concurrent
+ *   sessions to the same node are packed into one message.  Zero sends
+ *   every message immediately.  See {@link Multiplexer}.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.compress=false
+ *   Accept compressed responses from the engine.  Requests are never
+ *   compressed.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.maxSessionsPerPeer=100
+ *   Maximum concurrent requests to a single engine node.  Excess requests
+ *   fail fast with a "503 Service Unavailable".  Zero disables the limit.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.idleTimeout=300000
+ *   Milliseconds without any activity before a session is reaped, which
+ *   wakes the blocked request thread.  Zero disables the timeout.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.sessionTimeout=3600000
+ *   Maximum lifetime of a session in milliseconds, regardless of
+ *   activity.  Zero disables the timeout.  See {@link SessionTable}.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.reorderWindow=64
+ *   Maximum number of out-of-order response segments held per session while
+ *   waiting for a missing segment.  Zero requires in-order delivery.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.gapTimeout=30000
+ *   Milliseconds to wait for a missing response segment before failing the
+ *   session.  See {@link InputPipe}.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.receiveThreads=4
+ *   Number of threads that process received messages.  Sessions are
+ *   sharded across these threads, so a slow session won't delay the
+ *   sessions in other shards.  See {@link ReceiveDispatcher}.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.receiveBatchSize=64
+ *   Maximum number of received messages a thread processes before it
+ *   yields its lane.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.flushThreads=2
+ *   Number of threads shared by all sessions to send buffered output
+ *   once its nagle delay expires.  See {@link FlushScheduler}.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.flushTick=2
+ *   Resolution in milliseconds of the shared nagle timer.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.firstByteTimeout=120000
+ *   Milliseconds to wait for the engine's response to start.  This is also
+ *   limited by our client's deadline, and is sent to the engine so it can
+ *   give up early, see {@link ServletTunnel}.  Zero disables the timeout.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.readTimeout=60000
+ *   Milliseconds to wait for each response read once the response has
+ *   started, and for a concurrent cache fetch of the same response.  Zero
+ *   disables the timeout.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.breakerFailures=5
+ *   Consecutive failures to an engine node that open its circuit, so
+ *   further requests fail fast with a "503 Service Unavailable".  A
+ *   timeout or slow response counts as a failure.  Zero disables the
+ *   circuit breaker, see {@link CircuitBreaker}.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.breakerSlowCall=30000
+ *   Milliseconds for the response to start, beyond which a successful
+ *   request counts as a failure.  Zero disables the latency check.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.breakerOpenTimeout=10000
+ *   Milliseconds that an open circuit fails fast before we allow a trial
+ *   request.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.cacheMaxBytes=0
+ *   Maximum size of our shared cache of "GET" responses, where 0 disables
+ *   the cache.  See {@link ResponseCache}.
+ * @property org.cougaar.lib.web.micro.mts.tunnel.cacheMaxEntryBytes=262144
+ *   Maximum size of a single cached response body.
  * @property org.cougaar.lib.web.micro.mts.tunnel.naming_timeout=30000
  */
 public class MessagingServletTunnel
@@ -78,6 +153,10 @@ implements Component
   private MessageSwitchService messageSwitch;
 
   private long naming_timeout;
+  private long firstByteTimeout;
+  private long readTimeout;
+  private CircuitBreaker breaker;
+  private ResponseCache cache;
 
   private ServletRedirectorService srs;
   private ServletRedirectorRegistryService srrs;
@@ -99,8 +178,9 @@ implements Component
 
     // parse args
     String prefix = "org.cougaar.lib.web.micro.mts.tunnel.";
-    long nagle = 
-      args.getLong("nagle", SystemProperties.getLong(prefix+"nagle", 1000));
+    Map options = Options.parse(args, prefix);
+    firstByteTimeout = Options.getLong(options, "firstByteTimeout", 120000);
+    readTimeout = Options.getLong(options, "readTimeout", 60000);
     naming_timeout =
       args.getLong(
           "naming_timeout",
@@ -124,9 +204,46 @@ implements Component
       sb.releaseService(this, NodeIdentificationService.class, nis);
     }
 
+    // create per-node circuit breaker
+    breaker = new CircuitBreaker(
+        Options.getInt(
+          options, "breakerFailures",
+          CircuitBreaker.DEFAULT_FAILURE_THRESHOLD),
+        Options.getLong(
+          options, "breakerSlowCall",
+          CircuitBreaker.DEFAULT_SLOW_CALL_MILLIS),
+        Options.getLong(
+          options, "breakerOpenTimeout",
+          CircuitBreaker.DEFAULT_OPEN_MILLIS),
+        new CircuitBreaker.Listener() {
+          public void stateChanged(Object key, int oldState, int newState) {
+            if (newState == CircuitBreaker.OPEN) {
+              if (log.isWarnEnabled()) {
+                log.warn("Circuit opened for node "+key+", "+breaker);
+              }
+            } else if (log.isInfoEnabled()) {
+              log.info(
+                  "Circuit for node "+key+" changed from "+
+                  CircuitBreaker.toString(oldState)+" to "+
+                  CircuitBreaker.toString(newState));
+            }
+          }
+        });
+
+    // create optional response cache
+    long cacheMaxBytes = Options.getLong(options, "cacheMaxBytes", 0);
+    if (cacheMaxBytes > 0) {
+      cache = new ResponseCache(
+          cacheMaxBytes,
+          Options.getInt(
+            options, "cacheMaxEntryBytes",
+            ResponseCache.DEFAULT_MAX_ENTRY_BYTES),
+          readTimeout);
+    }
+
     // create connection factory
     client_factory = new MessagingClientFactory(
-        log, uids, threadService, messageSwitch, nagle);
+        log, uids, threadService, messageSwitch, options);
     client_factory.start();
 
     if (log.isInfoEnabled()) {
@@ -204,6 +321,16 @@ implements Component
     super.unload();
   }
 
+  /** @return our per-node circuit breaker, e.g. for its state and counters */
+  public CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  /** @return our response cache, or null if it's disabled */
+  public ResponseCache getResponseCache() {
+    return cache;
+  }
+
   private boolean isSupported(String s) {
     return ("mts_tunnel".equals(s) || "_".equals(s));
   }
@@ -255,20 +382,84 @@ implements Component
       // invalid entry, shouldn't happen
       return ServletRedirector.OTHER_ERROR;
     }
-    MessageAddress addr = MessageAddress.getMessageAddress(rawNode);
+    final MessageAddress addr = MessageAddress.getMessageAddress(rawNode);
 
     // check for loopback error, possibly due to stale naming entries.
     if (addr.equals(localNode)) {
       return ServletRedirector.DETECTED_LOOP;
     }
 
-    // tunnel
-    Map metaData = ServletTunnel.extractMetaData(req);
-    Connection con = client_factory.connect(addr, metaData);
-    ServletTunnel.tunnel(req, res, con);
+    // fail fast if the node has been failing
+    if (!breaker.allow(addr)) {
+      res.setHeader(
+          "Retry-After",
+          Long.toString(Math.max(1, breaker.getOpenMillis() / 1000)));
+      res.sendError(
+          HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "Node "+addr+" is unavailable");
+      return ServletRedirector.REDIRECTED;
+    }
+
+    // tunnel, possibly through our cache
+    ResponseCache.Fetcher fetcher = new ResponseCache.Fetcher() {
+      public long fetch(
+          HttpServletRequest req, HttpServletResponse res
+          ) throws ServletException, IOException {
+        return tunnel(addr, req, res);
+      }
+    };
+    // record the outcome in our circuit breaker.  Only a missing, slow, or
+    // invalid head counts against the node.  Other exceptions, e.g. our
+    // client going away during the body relay, are neutral.
+    long headMillis = 0;
+    try {
+      if (cache == null) {
+        headMillis = fetcher.fetch(req, res);
+      } else {
+        String key = addr+" "+req.getRequestURI();
+        String queryString = req.getQueryString();
+        if (queryString != null) {
+          key += "?"+queryString;
+        }
+        headMillis = cache.service(key, req, res, fetcher);
+      }
+    } finally {
+      if (headMillis == 0) {
+        // not attempted, e.g. a cache hit, or an unknown outcome
+        breaker.cancel(addr);
+      } else {
+        breaker.record(addr, (headMillis > 0), headMillis);
+      }
+    }
     return ServletRedirector.REDIRECTED;
   }
 
+  /** @return the {@link ServletTunnel#tunnel} result */
+  private long tunnel(
+      MessageAddress addr,
+      HttpServletRequest req,
+      HttpServletResponse res) throws ServletException, IOException {
+    Map metaData = ServletTunnel.extractMetaData(req);
+    Connection con;
+    try {
+      con = client_factory.connect(addr, metaData);
+    } catch (SessionLimitException sle) {
+      // too many concurrent requests to this node, tell the client to
+      // back off instead of queuing
+      res.setHeader("Retry-After", "1");
+      res.sendError(
+          HttpServletResponse.SC_SERVICE_UNAVAILABLE, sle.getMessage());
+      return 0;
+    }
+    try {
+      return ServletTunnel.tunnel(
+          req, res, con, firstByteTimeout, readTimeout);
+    } finally {
+      // release our session, even if the tunnel failed
+      con.close();
+    }
+  }
+
   private static final String decode(String enc) {
     try {
       return URLDecoder.decode(enc, "UTF-8");
@@ -0,0 +1,100 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free, unbounded, multi-producer single-consumer queue.
+ * <p>
+ * Producers append by swapping the tail node and then linking the old
+ * tail to the new node, so "add" never blocks.  Only one thread at a time
+ * may call "poll".
+ * <p>
+ * A producer may be preempted between its swap and its link, in which
+ * case "poll" returns null even though {@link #size} is positive.  The
+ * consumer should reschedule itself instead of spinning, which is why
+ * "add" reports the transition from empty.
+ */
+final class MpscQueue {
+
+  private static final class Node {
+    volatile Node next;
+    Object value;
+  }
+
+  // the last added node, swapped by producers
+  private final AtomicReference tail;
+
+  // the consumed "stub" node, whose next is the first element
+  private Node head;
+
+  private final AtomicInteger size = new AtomicInteger();
+
+  MpscQueue() {
+    Node stub = new Node();
+    head = stub;
+    tail = new AtomicReference(stub);
+  }
+
+  /**
+   * Append an element, called by any thread.
+   *
+   * @return true if the queue was empty, so the caller should wake the
+   *   consumer
+   */
+  boolean add(Object o) {
+    Node n = new Node();
+    n.value = o;
+    Node prev = (Node) tail.getAndSet(n);
+    prev.next = n;
+    return (size.getAndIncrement() == 0);
+  }
+
+  /**
+   * Remove the first element, called by the consumer thread.
+   *
+   * @return the element, or null if the queue is empty or the next
+   *   element is still being linked
+   */
+  Object poll() {
+    Node next = head.next;
+    if (next == null) {
+      return null;
+    }
+    Object o = next.value;
+    next.value = null;
+    head = next;
+    size.decrementAndGet();
+    return o;
+  }
+
+  /** @return the approximate number of queued elements */
+  int size() {
+    return Math.max(0, size.get());
+  }
+}
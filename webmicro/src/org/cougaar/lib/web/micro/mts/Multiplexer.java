@@ -0,0 +1,166 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.agent.service.MessageSwitchService;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+
+/**
+ * A sender that packs the {@link PipeMessage}s from all our sessions that
+ * are bound for the same target into a single {@link PipeMessageBundle}
+ * per send interval.
+ * <p>
+ * This trades a small "linger" delay for fewer message transport sends
+ * when there are many concurrent sessions between two nodes.  Messages
+ * are queued in a single FIFO list per target, so the order within each
+ * session is preserved.  If only one message is pending for a target then
+ * it's sent as-is, without a bundle.
+ */
+public class Multiplexer {
+
+  /** Default linger delay in milliseconds */
+  public static final long DEFAULT_DELAY = 2;
+
+  private final LoggingService log;
+  private final MessageSwitchService msgSwitch;
+  private final String type;
+  private final long delay;
+
+  private final Schedulable thread;
+
+  // map from target MessageAddress to a List of PipeMessages
+  private final Map pending = new LinkedHashMap();
+
+  private final Histogram bundleSizes = new Histogram(null);
+
+  /**
+   * @param type the receiver type of all our messages, e.g.
+   *   {@link MessagingServerFactory#TYPE}
+   * @param delay milliseconds to linger before sending, or zero to
+   *   disable bundling and send every message immediately
+   */
+  public Multiplexer(
+      LoggingService log,
+      ThreadService threadService,
+      MessageSwitchService msgSwitch,
+      String type,
+      long delay) {
+    this.log = log;
+    this.msgSwitch = msgSwitch;
+    this.type = type;
+    this.delay = delay;
+
+    if (delay <= 0) {
+      thread = null;
+    } else {
+      Runnable r = new Runnable() {
+        public void run() {
+          flush();
+        }
+      };
+      // this thread won't block
+      thread = threadService.getThread(
+          this, r, "mts tunnel multiplexer type="+type,
+          ThreadService.BEST_EFFORT_LANE);
+    }
+  }
+
+  /**
+   * @return a histogram of the number of messages per send
+   */
+  public Histogram getBundleSizeHistogram() {
+    return bundleSizes;
+  }
+
+  /**
+   * Queue a message for sending.
+   */
+  public void send(PipeMessage pm) {
+    if (!type.equals(pm.getType())) {
+      throw new IllegalArgumentException(
+          "Expecting type "+type+", not "+pm.getType());
+    }
+    if (thread == null) {
+      bundleSizes.add(1);
+      msgSwitch.sendMessage(pm);
+      return;
+    }
+    boolean schedule;
+    synchronized (pending) {
+      schedule = pending.isEmpty();
+      MessageAddress target = pm.getTarget();
+      List l = (List) pending.get(target);
+      if (l == null) {
+        l = new ArrayList();
+        pending.put(target, l);
+      }
+      l.add(pm);
+    }
+    if (schedule) {
+      thread.schedule(delay);
+    }
+  }
+
+  /**
+   * Send all pending messages now, e.g. when we're stopped.
+   */
+  public void flush() {
+    Map m;
+    synchronized (pending) {
+      if (pending.isEmpty()) return;
+      m = new LinkedHashMap(pending);
+      pending.clear();
+    }
+    for (Iterator iter = m.entrySet().iterator(); iter.hasNext(); ) {
+      Map.Entry me = (Map.Entry) iter.next();
+      MessageAddress target = (MessageAddress) me.getKey();
+      List l = (List) me.getValue();
+      bundleSizes.add(l.size());
+      if (l.size() == 1) {
+        msgSwitch.sendMessage((PipeMessage) l.get(0));
+        continue;
+      }
+      PipeMessageBundle bundle =
+        new PipeMessageBundle(
+            msgSwitch.getMessageAddress(), target,
+            type, l);
+      if (log.isDebugEnabled()) {
+        log.debug("mux-send: "+bundle);
+      }
+      msgSwitch.sendMessage(bundle);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cougaar.bootstrap.SystemProperties;
+import org.cougaar.util.Arguments;
+
+/**
+ * Package-private utility methods to parse our messaging tunnel options,
+ * e.g. the {@link OutputPipe} "nagle" delay.
+ * <p>
+ * Options are passed to our factories as a map of String names to String
+ * values, the same as the {@link
+ * org.cougaar.lib.web.micro.base.ServletEngine} "configure" options.
+ */
+final class Options {
+
+  /** Names of all the options recognized by our factories */
+  static final String[] NAMES = {
+    "nagle",
+    "batchSize",
+    "maxSegmentSize",
+    "window",
+    "creditTimeout",
+    "muxDelay",
+    "compress",
+    "compressLevel",
+    "compressThreshold",
+    "maxSessionsPerPeer",
+    "idleTimeout",
+    "sessionTimeout",
+    "reorderWindow",
+    "gapTimeout",
+    "receiveThreads",
+    "receiveBatchSize",
+    "flushThreads",
+    "flushTick",
+    "maxServletThreads",
+    "maxQueuedServlets",
+    "firstByteTimeout",
+    "readTimeout",
+    "breakerFailures",
+    "breakerSlowCall",
+    "breakerOpenTimeout",
+    "cacheMaxBytes",
+    "cacheMaxEntryBytes",
+  };
+
+  private Options() {}
+
+  /**
+   * Collect our options from the component arguments, falling back on the
+   * system properties with the given prefix.
+   */
+  static Map parse(Arguments args, String prefix) {
+    Map ret = new HashMap();
+    for (int i = 0; i < NAMES.length; i++) {
+      String name = NAMES[i];
+      String value =
+        args.getString(name, SystemProperties.getProperty(prefix+name));
+      if (value != null) {
+        ret.put(name, value);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return a copy of the options with the given name set to the value
+   */
+  static Map with(Map options, String name, String value) {
+    Map ret = new HashMap();
+    if (options != null) {
+      ret.putAll(options);
+    }
+    ret.put(name, value);
+    return ret;
+  }
+
+  static long getLong(Map options, String name, long deflt) {
+    Object o = (options == null ? null : options.get(name));
+    return (o == null ? deflt : Long.parseLong(o.toString().trim()));
+  }
+
+  static int getInt(Map options, String name, int deflt) {
+    Object o = (options == null ? null : options.get(name));
+    return (o == null ? deflt : Integer.parseInt(o.toString().trim()));
+  }
+
+  static boolean getBoolean(Map options, String name, boolean deflt) {
+    Object o = (options == null ? null : options.get(name));
+    return (o == null ? deflt : "true".equals(o.toString().trim()));
+  }
+}
@@ -26,7 +26,6 @@
 
 package org.cougaar.lib.web.micro.mts;
 
-import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -43,33 +42,174 @@ import org.cougaar.lib.web.micro.base.AnnotatedOutputStream;
  * <p>
  * One thread writes to the "output_stream", and another thread (spawned by
  * this instance) periodically flushes the stream to our message-deliverer.
+ * If a shared {@link FlushScheduler} is specified then we don't spawn a
+ * thread.  Instead we register our send deadline with the scheduler's
+ * timing wheel, and its sender threads call our deliverer.
+ * <p>
+ * The flush thread batches writes with an adaptive "nagle" delay.  A batch
+ * is sent immediately on a flush or close, or once it reaches the batch
+ * size.  Otherwise we wait for the writer to pause, where a pause is twice
+ * the (smoothed) observed gap between writes, but never longer than the
+ * nagle limit after the first buffered write.  If writes are further apart
+ * than the nagle limit then there's nothing to gain by waiting, so we send
+ * immediately.
+ * <p>
+ * Writes are buffered in fixed-size pooled segments.  A full segment is
+ * sent right away in its own message, even if we're otherwise waiting for
+ * the nagle delay, so a large response is pipelined as a sequence of
+ * bounded messages instead of being materialized as one huge message.
+ * Each sent segment is copied, or compressed, into its message, so the
+ * segment itself always returns to the pool.
+ * <p>
+ * The pipe is flow-controlled by byte credits that the remote
+ * {@link InputPipe} grants as its reader consumes data.  A writer that
+ * runs out of credit blocks until more is granted, which bounds the memory
+ * held by a session to our window on each side.  A peer that predates
+ * flow control never grants credit, so the factories only enable it if
+ * the peer advertised {@link #WINDOW_KEY} in its first message metadata.
+ * <p>
+ * Supported options:<pre>
+ *   nagle          use -1 to send on every write/flush/close, 0 to only
+ *                  send on the close, or a positive number to adaptively
+ *                  batch writes for at most that many milliseconds.
+ *                  Defaults to {@link #DEFAULT_NAGLE}.
+ *   batchSize      send as soon as this many bytes are buffered, even if
+ *                  the nagle delay hasn't expired.  Defaults to
+ *                  {@link #DEFAULT_BATCH_SIZE}.
+ *   maxSegmentSize size of our write buffer segments, which bounds the
+ *                  data bytes per message.  Defaults to
+ *                  {@link #DEFAULT_MAX_SEGMENT_SIZE}.
+ *   window         initial byte credit, i.e. the window that the remote
+ *                  {@link InputPipe} advertised.  Zero or negative
+ *                  disables flow control until the peer's window is
+ *                  known, and a nagle of 0 disables it entirely.
+ *                  Defaults to {@link #DEFAULT_WINDOW}.
+ *   creditTimeout  milliseconds a writer will wait for credit before it
+ *                  fails.  Defaults to {@link #DEFAULT_CREDIT_TIMEOUT}.
+ *   compress       if true then deflate each sent <code>byte[]</code> that
+ *                  is at least "compressThreshold" bytes long.  The remote
+ *                  {@link InputPipe} must support this, so the factories
+ *                  only enable it if the peer advertised
+ *                  {@link #COMPRESS_KEY} in its first message metadata.
+ *                  Defaults to false.
+ *   compressLevel  deflate level, defaults to
+ *                  {@link #DEFAULT_COMPRESS_LEVEL}
+ *   compressThreshold
+ *                  minimum size to compress, defaults to
+ *                  {@link #DEFAULT_COMPRESS_THRESHOLD}
+ * </pre>
  */
 public class OutputPipe {
 
+  /** Default maximum nagle delay in milliseconds */
+  public static final long DEFAULT_NAGLE = 100;
+
+  /** Default batch size in bytes */
+  public static final int DEFAULT_BATCH_SIZE = 16384;
+
+  /** Default maximum segment size in bytes */
+  public static final int DEFAULT_MAX_SEGMENT_SIZE = 32768;
+
+  /** Default flow-control window in bytes */
+  public static final int DEFAULT_WINDOW = 65536;
+
+  /** Default time in milliseconds to wait for credit */
+  public static final long DEFAULT_CREDIT_TIMEOUT = 60000;
+
+  /** Default deflate level */
+  public static final int DEFAULT_COMPRESS_LEVEL = 6;
+
+  /** Default minimum number of bytes to compress */
+  public static final int DEFAULT_COMPRESS_THRESHOLD = 1024;
+
+  /**
+   * Metadata key that a peer sets to "deflate" in its first message if it
+   * accepts compressed data
+   */
+  public static final String COMPRESS_KEY = "mts.compress";
+
+  /**
+   * Metadata key that a peer sets to its {@link InputPipe} window in its
+   * first message if it grants flow-control credit
+   */
+  public static final String WINDOW_KEY = "mts.window";
+
+  // minimum adaptive delay, to coalesce back-to-back writes
+  private static final long MIN_DELAY_NANOS = 1000000;
+
   private final LoggingService log;
   private final Deliverer sender;
   private final Map metaData;
   private final long nagle;
+  private final long nagleNanos;
+  private final int batchSize;
+  private final SegmentPool segments;
+  private final long creditTimeout;
+  private final boolean compress;
+  private final int compressLevel;
+  private final int compressThreshold;
 
   private final OutputStreamImpl out;
 
   private final Schedulable thread;
 
-  // a list of buffered ByteArrayOutputStreams and Tokens
+  // shared scheduler, or null if we have our own thread
+  private final FlushScheduler scheduler;
+  // scheduler state, guarded by the queue lock
+  private boolean timerPending;
+  private boolean sendPending;
+
+  // a list of buffered Segments and Tokens
   private final List queue = new ArrayList();
 
+  // with a nagle of 0, serializes the writer's and closer's sends
+  private final Object sendLock = new Object();
+
   private boolean closed;
+  private boolean flushed;
+
+  // batching state, guarded by the queue lock
+  private int bufferedBytes;
+  private int fullSegments;
+  private long firstWrite;
+  private long lastWrite;
+  private long avgGap;
+
+  // System.nanoTime of our last write or grant
+  private long lastActivity = System.nanoTime();
+
+  // flow-control state, guarded by the queue lock.  We count our credit
+  // even if flow control is disabled, in case the peer's window arrives
+  // after we've started writing.
+  private boolean flowControl;
+  private long credit;
+
+  private final Histogram batchSizes = new Histogram("b");
+  private final Histogram delays = new Histogram("ms");
 
   private int counter = 0;
 
+  /**
+   * Equivalent to the options-based constructor with only a "nagle" option.
+   */
+  public OutputPipe(
+      String threadName,
+      LoggingService log,
+      ThreadService threadService,
+      Deliverer sender,
+      Map metaData,
+      long nagle) {
+    this(
+        threadName, log, threadService, sender, metaData,
+        Collections.singletonMap("nagle", Long.toString(nagle)));
+  }
+
   /**
    * @param sender our output sender
    *
    * @param metaData optional meta-data to be sent in the first "deliver" call.
    *
-   * @param nagle use -1 to send on every write/flush/close, 0 to only send on
-   * the close, or a positive number to only send once that many milliseconds have
-   * passed or a close has occured.
+   * @param options optional settings, see the class-level documentation
    */
   public OutputPipe(
       String threadName,
@@ -77,11 +217,45 @@ public class OutputPipe {
       ThreadService threadService,
       Deliverer sender,
       Map metaData,
-      long nagle) {
+      Map options) {
+    this(threadName, log, threadService, sender, metaData, options, null);
+  }
+
+  /**
+   * @param scheduler optional shared scheduler, otherwise we'll create
+   *   our own thread
+   */
+  OutputPipe(
+      String threadName,
+      LoggingService log,
+      ThreadService threadService,
+      Deliverer sender,
+      Map metaData,
+      Map options,
+      FlushScheduler scheduler) {
     this.log = log;
     this.sender = sender;
     this.metaData = metaData;
-    this.nagle = nagle;
+    this.nagle = Options.getLong(options, "nagle", DEFAULT_NAGLE);
+    this.nagleNanos = nagle * 1000000;
+    this.batchSize = 
+      Options.getInt(options, "batchSize", DEFAULT_BATCH_SIZE);
+    this.segments =
+      SegmentPool.getInstance(
+          Math.max(1,
+            Options.getInt(
+              options, "maxSegmentSize", DEFAULT_MAX_SEGMENT_SIZE)));
+    int window = Options.getInt(options, "window", DEFAULT_WINDOW);
+    this.flowControl = (window > 0 && nagle != 0);
+    this.credit = Math.max(0, window);
+    this.creditTimeout =
+      Options.getLong(options, "creditTimeout", DEFAULT_CREDIT_TIMEOUT);
+    this.compress = Options.getBoolean(options, "compress", false);
+    this.compressLevel = 
+      Options.getInt(options, "compressLevel", DEFAULT_COMPRESS_LEVEL);
+    this.compressThreshold =
+      Options.getInt(
+          options, "compressThreshold", DEFAULT_COMPRESS_THRESHOLD);
     this.out = new OutputStreamImpl();
 
     if (sender == null) {
@@ -91,7 +265,13 @@ public class OutputPipe {
     if (nagle == 0) {
       // only call the sender when we're done, in the "close()" thread
       thread = null;
+      this.scheduler = null;
+    } else if (scheduler != null) {
+      // the scheduler will call us
+      thread = null;
+      this.scheduler = scheduler;
     } else {
+      this.scheduler = null;
       Runnable r = new Runnable() {
         public void run() {
           checkQueue();
@@ -103,46 +283,350 @@ public class OutputPipe {
     }
   }
 
+  /**
+   * Add flow-control credit, typically sent by the remote {@link InputPipe}
+   * as its reader consumes our data.
+   *
+   * @param n number of bytes, or {@link Granter#UNLIMITED}
+   */
+  public void grant(int n) {
+    synchronized (queue) {
+      if (n == Granter.UNLIMITED) {
+        credit = Long.MAX_VALUE / 2;
+      } else if (n > 0 && credit < Long.MAX_VALUE / 2) {
+        credit += n;
+      }
+      lastActivity = System.nanoTime();
+      queue.notifyAll();
+    }
+  }
+
+  /**
+   * Enable flow control once the peer has advertised its window, e.g. in
+   * its first message metadata.  This is ignored if flow control is
+   * already enabled or our nagle is 0.
+   *
+   * @param window the remote {@link InputPipe} window
+   */
+  void setPeerWindow(int window) {
+    synchronized (queue) {
+      if (flowControl || nagle == 0 || window <= 0) return;
+      flowControl = true;
+      if (credit < Long.MAX_VALUE / 2) {
+        credit += window;
+      }
+      queue.notifyAll();
+    }
+  }
+
+  /**
+   * @return the System.nanoTime of the last write or grant
+   */
+  public long getLastActivity() {
+    synchronized (queue) {
+      return lastActivity;
+    }
+  }
+
+  /**
+   * @return a histogram of the number of bytes sent per "deliver" call
+   */
+  public Histogram getBatchSizeHistogram() {
+    return batchSizes;
+  }
+
+  /**
+   * @return a histogram of the delay in milliseconds between the first
+   * buffered write of a batch and the "deliver" call
+   */
+  public Histogram getDelayHistogram() {
+    return delays;
+  }
+
   private void checkQueue() {
     if (log.isDebugEnabled()) {
       log.debug("checkQueue");
     }
 
     // take data off queue
-    List data = null;
+    Batch batch;
+    boolean more;
     synchronized (queue) {
       if (nagle < 0) {
         if (queue.isEmpty()) return;
         // take whatever's there, even if it's only a single byte
       } else {
-        // wait a while, until either the nagle period expires or the stream
-        // is closed (whichever comes first)
+        // wait a while, until either the writer pauses, the batch is full,
+        // or the stream is flushed or closed (whichever comes first)
         //
-        // TODO support min/max nagle and a periodic NOOP as a keep-alive
-        if (!closed) {
+        // TODO support a periodic NOOP as a keep-alive
+        while (!queue.isEmpty() &&
+            !closed &&
+            !flushed &&
+            fullSegments == 0 &&
+            bufferedBytes < batchSize) {
+          long deadline = 
+            Math.min(lastWrite + getPause(), firstWrite + nagleNanos);
+          long wait = deadline - System.nanoTime();
+          if (wait <= 0) break;
           try {
             if (log.isDebugEnabled()) {
-              log.debug("wait "+nagle);
+              log.debug("wait "+wait+" nanos");
             }
-            queue.wait(nagle);
+            queue.wait(wait / 1000000, (int) (wait % 1000000));
           } catch (InterruptedException e) {
+            break;
           }
         }
         if (queue.isEmpty()) return;
       }
-      data = new ArrayList(queue);
-      queue.clear();
+      batch = takeBatch();
+      more = !queue.isEmpty();
+    }
+
+    send(batch);
+
+    if (more) {
+      // e.g. another full segment
+      thread.start();
     }
+  }
 
-    // convert baos's to byte[]s, to make them serializable
+  /**
+   * Called by our {@link FlushScheduler} when our timer is due.
+   */
+  void timerExpired() {
+    synchronized (queue) {
+      timerPending = false;
+      checkSchedule();
+    }
+  }
+
+  /**
+   * Called by one of our {@link FlushScheduler}'s sender threads, which
+   * will never call us concurrently.
+   */
+  void runScheduled() {
+    Batch batch;
+    synchronized (queue) {
+      sendPending = false;
+      if (queue.isEmpty()) return;
+      long t = getSendTime();
+      if (t != 0 && t - System.nanoTime() > 0) {
+        // a stale dispatch, e.g. our deadline moved
+        scheduleTimer(t);
+        return;
+      }
+      batch = takeBatch();
+    }
+
+    send(batch);
+
+    // check for more, e.g. another full segment
+    wake();
+  }
+
+  // ask our thread or scheduler to check the queue
+  private void wake() {
+    if (scheduler != null) {
+      synchronized (queue) {
+        checkSchedule();
+      }
+    } else if (thread != null) {
+      thread.start();
+    } else {
+      sendFullSegments();
+    }
+  }
+
+  // with a nagle of 0, send any full segments in the writer's thread
+  private void sendFullSegments() {
+    synchronized (sendLock) {
+      while (true) {
+        Batch batch;
+        synchronized (queue) {
+          if (fullSegments == 0) return;
+          batch = takeBatch();
+        }
+        send(batch);
+      }
+    }
+  }
+
+  // dispatch a send if we're due, otherwise schedule a timer
+  private void checkSchedule() {
+    assert Thread.holdsLock(queue);
+    if (queue.isEmpty() || sendPending) return;
+    long t = getSendTime();
+    if (t == 0 || t - System.nanoTime() <= 0) {
+      sendPending = true;
+      scheduler.dispatch(this);
+    } else {
+      scheduleTimer(t);
+    }
+  }
+
+  private void scheduleTimer(long t) {
+    assert Thread.holdsLock(queue);
+    if (timerPending) return;
+    timerPending = true;
+    scheduler.schedule(this, t);
+  }
+
+  // compute the System.nanoTime when we should send, or zero for now
+  private long getSendTime() {
+    assert Thread.holdsLock(queue);
+    if (nagle < 0 || closed || flushed || fullSegments > 0 ||
+        bufferedBytes >= batchSize) {
+      return 0;
+    }
+    return Math.min(lastWrite + getPause(), firstWrite + nagleNanos);
+  }
+
+  // compute how long the writer must be idle before we send
+  private long getPause() {
+    assert Thread.holdsLock(queue);
+    long pause = 2 * avgGap;
+    if (pause >= nagleNanos) {
+      // writes are sparse, so don't wait
+      return 0;
+    }
+    return Math.max(pause, Math.min(MIN_DELAY_NANOS, nagleNanos));
+  }
+
+  // wait for credit, called without holding the lock, since we may need
+  // to wake our sender
+  private void awaitCredit() {
+    long deadline = 0;
+    while (true) {
+      long now = System.currentTimeMillis();
+      synchronized (queue) {
+        if (!flowControl || credit > 0 || closed) return;
+        if (deadline == 0) {
+          deadline = now + creditTimeout;
+        } else if (now >= deadline) {
+          throw new IllegalStateException(
+              "No credit granted within "+creditTimeout+" millis");
+        }
+        // make sure our buffered data is sent, otherwise the reader can't
+        // consume it and grant us more credit
+        flushed = true;
+        queue.notifyAll();
+      }
+      wake();
+      synchronized (queue) {
+        if (!flowControl || credit > 0 || closed) return;
+        if (log.isDebugEnabled()) {
+          log.debug("wait for credit");
+        }
+        try {
+          queue.wait(Math.max(1, deadline - now));
+        } catch (InterruptedException e) {
+          throw new RuntimeException("interrupted");
+        }
+      }
+    }
+  }
+
+  // return the number of bytes (up to len) we may write, which is zero if
+  // another writer took our credit
+  private int getCredit(int len) {
+    assert Thread.holdsLock(queue);
+    if (closed) {
+      throw new IllegalStateException("closed");
+    }
+    if (!flowControl) {
+      return len;
+    }
+    return (int) Math.max(0, Math.min(len, credit));
+  }
+
+  // record a write of "len" bytes into the segment
+  private void noteWrite(Segment sg, int len) {
+    assert Thread.holdsLock(queue);
+    long now = System.nanoTime();
+    if (bufferedBytes == 0) {
+      firstWrite = now;
+    }
+    if (lastWrite != 0) {
+      // exponentially-weighted moving average, with weight 1/8
+      long gap = Math.min(now - lastWrite, nagleNanos);
+      avgGap += (gap - avgGap) >> 3;
+    }
+    lastWrite = now;
+    lastActivity = now;
+    bufferedBytes += len;
+    credit -= len;
+    if (sg.isFull()) {
+      fullSegments++;
+    }
+    if (fullSegments > 0 || bufferedBytes >= batchSize) {
+      queue.notifyAll();
+    }
+  }
+
+  /**
+   * Take the next batch off the queue, up to and including the first full
+   * segment, so each message holds at most one full segment.
+   */
+  private Batch takeBatch() {
+    assert Thread.holdsLock(queue);
+    List data = new ArrayList();
+    int bytes = 0;
+    while (!queue.isEmpty()) {
+      Object o = queue.remove(0);
+      data.add(o);
+      if (o instanceof Segment) {
+        Segment sg = (Segment) o;
+        bytes += sg.len;
+        if (sg.isFull()) {
+          fullSegments--;
+          break;
+        }
+      }
+    }
+    long delay = System.nanoTime() - firstWrite;
+    bufferedBytes -= bytes;
+    if (queue.isEmpty()) {
+      flushed = false;
+    }
+    return new Batch(data, bytes, delay);
+  }
+
+  private void send(Batch batch) {
+    List data = batch.data;
+    int bytes = batch.bytes;
+    long delay = batch.delay;
+
+    // convert segments to byte[]s, to make them serializable, and compress
+    // the large ones
     for (int i = 0; i < data.size(); i++) {
       Object oi = data.get(i);
-      if (oi instanceof ByteArrayOutputStream) {
-        byte[] b = ((ByteArrayOutputStream) oi).toByteArray();
-        data.set(i, b);
+      if (oi instanceof Segment) {
+        Segment sg = (Segment) oi;
+        // the message gets a compressed or exact-size copy, never the
+        // pooled segment, so we can always reuse the segment
+        Object z = null;
+        if (compress && sg.len >= compressThreshold) {
+          z = DeflatedBytes.deflate(sg.buf, 0, sg.len, compressLevel);
+        }
+        if (z == null) {
+          byte[] b = new byte[sg.len];
+          System.arraycopy(sg.buf, 0, b, 0, sg.len);
+          z = b;
+        }
+        segments.give(sg.buf);
+        data.set(i, z);
       }
     }
 
+    batchSizes.add(bytes);
+    delays.add(bytes == 0 ? 0 : (delay / 1000000));
+    if (log.isDebugEnabled() &&
+        data.get(data.size() - 1) == Tokens.CLOSE) {
+      log.debug("closed, batchSizes="+batchSizes+" delays="+delays);
+    }
+
     // send
     sender.deliver(
         counter,
@@ -165,11 +649,16 @@ public class OutputPipe {
   private class OutputStreamImpl extends AnnotatedOutputStream {
 
     public void write(int b) {
-      synchronized (queue) {
-        getBuffer().write(b);
-      }
-      if (thread != null) {
-        thread.start();
+      while (true) {
+        awaitCredit();
+        synchronized (queue) {
+          if (getCredit(1) == 0) continue;
+          Segment sg = getBuffer();
+          sg.buf[sg.len++] = (byte) b;
+          noteWrite(sg, 1);
+        }
+        wake();
+        return;
       }
     }
 
@@ -187,11 +676,21 @@ public class OutputPipe {
         return;
       }
 
-      synchronized (queue) {
-        getBuffer().write(b, off, len);
-      }
-      if (thread != null) {
-        thread.start();
+      int i = off;
+      int end = off + len;
+      while (i < end) {
+        awaitCredit();
+        synchronized (queue) {
+          int n = getCredit(end - i);
+          if (n == 0) continue;
+          Segment sg = getBuffer();
+          n = Math.min(n, sg.buf.length - sg.len);
+          System.arraycopy(b, i, sg.buf, sg.len, n);
+          sg.len += n;
+          noteWrite(sg, n);
+          i += n;
+        }
+        wake();
       }
     }
 
@@ -201,20 +700,19 @@ public class OutputPipe {
       write(s.getBytes());
     }
 
-    private ByteArrayOutputStream getBuffer() {
+    // get the last segment if it has space, otherwise add a new one
+    private Segment getBuffer() {
       assert Thread.holdsLock(queue);
       if (closed) {
         throw new IllegalStateException("closed");
       }
       Object o = (queue.isEmpty() ? null : queue.get(queue.size() - 1));
-      ByteArrayOutputStream buf;
-      if (o instanceof ByteArrayOutputStream) {
-        buf = (ByteArrayOutputStream) o;
-      } else {
-        buf = new ByteArrayOutputStream();
-        queue.add(buf);
+      if (o instanceof Segment && !((Segment) o).isFull()) {
+        return (Segment) o;
       }
-      return buf;
+      Segment sg = new Segment(segments.take());
+      queue.add(sg);
+      return sg;
     }
 
     public void flush() {
@@ -226,10 +724,11 @@ public class OutputPipe {
           return;
         }
         queue.add(Tokens.FLUSH);
+        // send now
+        flushed = true;
+        queue.notifyAll();
       }
-      if (thread != null) {
-        thread.start();
-      }
+      wake();
     }
 
     // since we're message-based, when we're done writing/flushing then
@@ -242,23 +741,56 @@ public class OutputPipe {
     }
 
     public void close() {
-      List data = null;
+      if (nagle == 0) {
+        // send everything in this thread, one segment per message
+        synchronized (sendLock) {
+          synchronized (queue) {
+            if (closed) return;
+            closed = true;
+            queue.add(Tokens.CLOSE);
+          }
+          while (true) {
+            Batch batch;
+            synchronized (queue) {
+              if (queue.isEmpty()) break;
+              batch = takeBatch();
+            }
+            send(batch);
+          }
+        }
+        return;
+      }
       synchronized (queue) {
         if (closed) return;
         closed = true;
         queue.add(Tokens.CLOSE);
-        if (thread == null) {
-          data = new ArrayList(queue);
-          queue.clear();
-        } else {
-          queue.notifyAll();
-        }
-      }
-      if (thread == null) {
-        sender.deliver(0, metaData, Collections.unmodifiableList(data)); 
-      } else {
-        thread.start();
+        queue.notifyAll();
       }
+      wake();
+    }
+  }
+
+  /** A buffer of written bytes */
+  private static final class Segment {
+    final byte[] buf;
+    int len;
+    Segment(byte[] buf) {
+      this.buf = buf;
+    }
+    boolean isFull() {
+      return len == buf.length;
+    }
+  }
+
+  /** Data taken off our queue to send */
+  private static final class Batch {
+    final List data;
+    final int bytes;
+    final long delay;
+    Batch(List data, int bytes, long delay) {
+      this.data = data;
+      this.bytes = bytes;
+      this.delay = delay;
     }
   }
 }
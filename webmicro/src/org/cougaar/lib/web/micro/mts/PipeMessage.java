@@ -27,23 +27,86 @@
 package org.cougaar.lib.web.micro.mts;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.cougaar.bootstrap.SystemProperties;
 import org.cougaar.core.mts.Message;
 import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.util.UID;
 
 /**
  * A message between input/output pipe deliverers.
+ * <p>
+ * Most messages carry sequenced data from an {@link OutputPipe} to the
+ * remote {@link InputPipe}.  A "grant" message instead carries
+ * flow-control credit in the reverse direction, from the {@link InputPipe}
+ * back to the {@link OutputPipe}, and isn't part of the data sequence.
+ * <p>
+ * We serialize our data in a compact binary form instead of as a List of
+ * <code>byte[]</code>s and {@link Tokens}, to avoid the per-element object
+ * overhead.  The data is written as a single length-prefixed byte array,
+ * where each element starts with a one-byte code: {@link Tokens} are just
+ * their code, and <code>byte[]</code>s are a code, a variable-length size,
+ * and the bytes.  Compressed <code>byte[]</code>s also have their
+ * uncompressed size.  String metadata is written as a string table plus
+ * index pairs.  If the data or metadata contains anything else then we
+ * fall back to standard serialization.
+ * <p>
+ * We can read messages written by older versions of this class, which
+ * used standard serialization.
+ *
+ * @property org.cougaar.lib.web.micro.mts.PipeMessage.compact=true
+ *   Write the compact encoding, which older nodes can't read.  Set this
+ *   to false when mixing with older nodes.
  */
 public class PipeMessage extends Message {
 
-  private final String type;
-  private final UID sessionId;
-  private final int counter;
-  private final Map metaData;
-  private final List data;
+  // our compact encoding version
+  private static final int COMPACT_V1 = 1;
+
+  // one-byte data codes
+  private static final int DATA = 0;
+  private static final int NOOP = 1;
+  private static final int FLUSH = 2;
+  private static final int CLOSE = 3;
+  private static final int DEFLATED = 4;
+
+  // longest metadata string we'll write with "writeUTF"
+  private static final int MAX_UTF_LENGTH = 0xffff / 3;
+
+  private static boolean compact =
+    SystemProperties.getBoolean(
+        "org.cougaar.lib.web.micro.mts.PipeMessage.compact", true);
+
+  // the original field layout, which we must match to read older messages
+  private static final ObjectStreamField[] serialPersistentFields = {
+    new ObjectStreamField("type", String.class),
+    new ObjectStreamField("sessionId", UID.class),
+    new ObjectStreamField("counter", Integer.TYPE),
+    new ObjectStreamField("metaData", Map.class),
+    new ObjectStreamField("data", List.class),
+    new ObjectStreamField("credit", Integer.TYPE),
+  };
+
+  // not final, since they're set by "readObject"
+  private String type;
+  private UID sessionId;
+  private int counter;
+  private Map metaData;
+  private List data;
+  private int credit;
 
   public PipeMessage(
       MessageAddress source, MessageAddress target,
@@ -57,6 +120,7 @@ public class PipeMessage extends Message {
     this.counter = counter;
     this.metaData = metaData;
     this.data = data;
+    this.credit = 0;
 
     String s = 
       (type == null ? "null type" :
@@ -69,6 +133,34 @@ public class PipeMessage extends Message {
     }
   }
 
+  /**
+   * Create a flow-control "grant" message.
+   *
+   * @param credit the number of bytes granted, or {@link Granter#UNLIMITED}
+   */
+  public PipeMessage(
+      MessageAddress source, MessageAddress target,
+      String type,
+      UID sessionId,
+      int credit) {
+    super(source, target);
+    this.type = type;
+    this.sessionId = sessionId;
+    this.counter = -1;
+    this.metaData = null;
+    this.data = Collections.EMPTY_LIST;
+    this.credit = credit;
+
+    String s = 
+      (type == null ? "null type" :
+       sessionId == null ? "null sessionId" : 
+       credit <= 0 ? ("non-positive credit: "+credit) :
+       null);
+    if (s != null) {
+      throw new IllegalArgumentException(s);
+    }
+  }
+
   /**
    * @return sender type, used to distinguish between client and server
    * messages.
@@ -78,9 +170,15 @@ public class PipeMessage extends Message {
   /** @return unique session id */
   public UID getSessionId() { return sessionId; }
 
-  /** @return positive sequence counter */
+  /** @return positive sequence counter, or -1 if this is a grant */
   public int getCounter() { return counter; }
 
+  /** @return true if this is a flow-control "grant" message */
+  public boolean isGrant() { return credit > 0; }
+
+  /** @return the flow-control credit, or zero if this isn't a grant */
+  public int getCredit() { return credit; }
+
   /** @see Deliverer#deliver */
   public Map getMetaData() { return metaData; }
 
@@ -125,6 +223,8 @@ public class PipeMessage extends Message {
           buf.append("..");
           break;
         }
+      } else if (o instanceof DeflatedBytes) {
+        buf.append(pre).append("** ").append(o).append(" **");
       } else if (o == Tokens.NOOP) {
         buf.append(pre).append("** noop **");
       } else if (o == Tokens.FLUSH) {
@@ -139,11 +239,270 @@ public class PipeMessage extends Message {
     return buf.toString();
   }
 
+  /** Enable or disable the compact encoding, e.g. for benchmarks */
+  static void setCompact(boolean b) {
+    compact = b;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    byte[] body = 
+      (compact && isStringMap(metaData) ? encodeData(data) : null);
+
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("type", type);
+    fields.put("sessionId", sessionId);
+    fields.put("counter", counter);
+    fields.put("credit", credit);
+    if (body == null) {
+      // standard serialization
+      fields.put("metaData", metaData);
+      fields.put("data", data);
+    }
+    out.writeFields();
+
+    if (body != null) {
+      out.writeByte(COMPACT_V1);
+      writeMetaData(out, metaData);
+      writeVarInt(out, body.length);
+      out.write(body);
+    }
+  }
+
+  private void readObject(
+      ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    type = (String) fields.get("type", null);
+    sessionId = (UID) fields.get("sessionId", null);
+    counter = fields.get("counter", 0);
+    credit = fields.get("credit", 0);
+    metaData = (Map) fields.get("metaData", null);
+    data = (List) fields.get("data", null);
+    if (data != null) {
+      // standard serialization
+      return;
+    }
+
+    int version = in.readUnsignedByte();
+    if (version != COMPACT_V1) {
+      throw new InvalidObjectException("Unknown encoding: "+version);
+    }
+    metaData = readMetaData(in);
+    byte[] body = new byte[readVarInt(in)];
+    in.readFully(body);
+    data = decodeData(body);
+  }
+
+  // encode our data as coded elements, or return null if it contains
+  // an unknown type
+  private static byte[] encodeData(List l) {
+    int n = l.size();
+    Object[] elements = new Object[n];
+    int size = 0;
+    for (int i = 0; i < n; i++) {
+      Object o = l.get(i);
+      if (o instanceof ByteArrayOutputStream) {
+        o = ((ByteArrayOutputStream) o).toByteArray();
+      }
+      if (o instanceof byte[]) {
+        int len = ((byte[]) o).length;
+        size += 1 + getVarIntSize(len) + len;
+      } else if (o instanceof DeflatedBytes) {
+        DeflatedBytes z = (DeflatedBytes) o;
+        int len = z.getBytes().length;
+        size += 1 + getVarIntSize(z.getLength()) + getVarIntSize(len) + len;
+      } else if (o == Tokens.NOOP || o == Tokens.FLUSH || o == Tokens.CLOSE) {
+        size++;
+      } else {
+        return null;
+      }
+      elements[i] = o;
+    }
+
+    byte[] body = new byte[size];
+    int pos = 0;
+    for (int i = 0; i < n; i++) {
+      Object o = elements[i];
+      if (o instanceof byte[]) {
+        byte[] b = (byte[]) o;
+        body[pos++] = DATA;
+        pos = putVarInt(body, pos, b.length);
+        System.arraycopy(b, 0, body, pos, b.length);
+        pos += b.length;
+      } else if (o instanceof DeflatedBytes) {
+        DeflatedBytes z = (DeflatedBytes) o;
+        byte[] b = z.getBytes();
+        body[pos++] = DEFLATED;
+        pos = putVarInt(body, pos, z.getLength());
+        pos = putVarInt(body, pos, b.length);
+        System.arraycopy(b, 0, body, pos, b.length);
+        pos += b.length;
+      } else {
+        body[pos++] = 
+          (byte) (o == Tokens.NOOP ? NOOP : o == Tokens.FLUSH ? FLUSH : CLOSE);
+      }
+    }
+    return body;
+  }
+
+  private static List decodeData(byte[] body) throws IOException {
+    List ret = new ArrayList();
+    int[] pos = new int[1];
+    while (pos[0] < body.length) {
+      int code = body[pos[0]++];
+      switch (code) {
+        case DATA:
+          ret.add(getBytes(body, pos, getVarInt(body, pos)));
+          break;
+        case DEFLATED:
+          int length = getVarInt(body, pos);
+          byte[] z = getBytes(body, pos, getVarInt(body, pos));
+          ret.add(new DeflatedBytes(z, length));
+          break;
+        case NOOP: ret.add(Tokens.NOOP); break;
+        case FLUSH: ret.add(Tokens.FLUSH); break;
+        case CLOSE: ret.add(Tokens.CLOSE); break;
+        default: throw new InvalidObjectException("Unknown code: "+code);
+      }
+    }
+    return Collections.unmodifiableList(ret);
+  }
+
+  private static byte[] getBytes(byte[] body, int[] pos, int len) {
+    byte[] b = new byte[len];
+    System.arraycopy(body, pos[0], b, 0, len);
+    pos[0] += len;
+    return b;
+  }
+
+  private static int getVarInt(byte[] body, int[] pos) {
+    int v = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = body[pos[0]++];
+      v |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return v;
+    }
+  }
+
+  private static boolean isStringMap(Map m) {
+    if (m == null) return true;
+    for (Iterator iter = m.entrySet().iterator(); iter.hasNext(); ) {
+      Map.Entry me = (Map.Entry) iter.next();
+      Object key = me.getKey();
+      Object value = me.getValue();
+      if (!(key instanceof String) ||
+          ((String) key).length() > MAX_UTF_LENGTH ||
+          (value != null &&
+           (!(value instanceof String) ||
+            ((String) value).length() > MAX_UTF_LENGTH))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // write the size plus one (zero if null), the string table, then the
+  // key/value index pairs, where index zero is null
+  private static void writeMetaData(DataOutput out, Map m) throws IOException {
+    if (m == null) {
+      writeVarInt(out, 0);
+      return;
+    }
+    writeVarInt(out, m.size() + 1);
+    List table = new ArrayList();
+    Map index = new HashMap();
+    int[] refs = new int[2 * m.size()];
+    int j = 0;
+    for (Iterator iter = m.entrySet().iterator(); iter.hasNext(); ) {
+      Map.Entry me = (Map.Entry) iter.next();
+      refs[j++] = intern(me.getKey(), table, index);
+      refs[j++] = intern(me.getValue(), table, index);
+    }
+    writeVarInt(out, table.size());
+    for (int i = 0; i < table.size(); i++) {
+      out.writeUTF((String) table.get(i));
+    }
+    for (int i = 0; i < refs.length; i++) {
+      writeVarInt(out, refs[i]);
+    }
+  }
+
+  private static int intern(Object o, List table, Map index) {
+    if (o == null) return 0;
+    Integer i = (Integer) index.get(o);
+    if (i == null) {
+      table.add(o);
+      i = new Integer(table.size());
+      index.put(o, i);
+    }
+    return i.intValue();
+  }
+
+  private static Map readMetaData(DataInput in) throws IOException {
+    int n = readVarInt(in);
+    if (n == 0) return null;
+    n--;
+    String[] table = new String[readVarInt(in) + 1];
+    for (int i = 1; i < table.length; i++) {
+      table[i] = in.readUTF();
+    }
+    Map ret = new HashMap(n + (n >> 1) + 1);
+    for (int i = 0; i < n; i++) {
+      String key = table[readVarInt(in)];
+      String value = table[readVarInt(in)];
+      ret.put(key, value);
+    }
+    return Collections.unmodifiableMap(ret);
+  }
+
+  private static int getVarIntSize(int v) {
+    int n = 1;
+    while ((v >>>= 7) != 0) n++;
+    return n;
+  }
+
+  private static int putVarInt(byte[] b, int pos, int v) {
+    while ((v & ~0x7f) != 0) {
+      b[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    b[pos++] = (byte) v;
+    return pos;
+  }
+
+  private static void writeVarInt(DataOutput out, int v) throws IOException {
+    while ((v & ~0x7f) != 0) {
+      out.writeByte((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static int readVarInt(DataInput in) throws IOException {
+    int v = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      v |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return v;
+    }
+    throw new InvalidObjectException("Invalid varint");
+  }
+
   public String toString() {
     return toString(100);
   }
 
   public String toString(int limit) {
+    if (isGrant()) {
+      return 
+        "(pipe-grant"+
+        "\n  source="+getOriginator()+
+        "\n  target="+getTarget()+
+        "\n  type="+type+
+        "\n  sessionId="+sessionId+
+        "\n  credit="+
+        (credit == Granter.UNLIMITED ? "unlimited" : Integer.toString(credit))+
+        ")";
+    }
     return 
       "(pipe-message"+
       "\n  source="+getOriginator()+
@@ -159,4 +518,6 @@ public class PipeMessage extends Message {
       (!data.isEmpty() && data.get(data.size()-1) == Tokens.CLOSE)+
       ")";
   }
+
+  static final long serialVersionUID = 1993323733888243644L;
 }
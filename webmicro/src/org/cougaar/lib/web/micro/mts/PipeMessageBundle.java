@@ -0,0 +1,94 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.List;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+
+/**
+ * A composite message that packs {@link PipeMessage}s from multiple
+ * sessions bound for the same target, created by our {@link Multiplexer}.
+ * <p>
+ * The receiver must handle the contained messages in list order, which
+ * preserves the order within each session.
+ */
+public class PipeMessageBundle extends Message {
+
+  private final String type;
+  private final List messages;
+
+  /**
+   * @param type the receiver type of all the messages, e.g.
+   *   {@link MessagingServerFactory#TYPE}
+   * @param messages a List of {@link PipeMessage}s
+   */
+  public PipeMessageBundle(
+      MessageAddress source, MessageAddress target,
+      String type,
+      List messages) {
+    super(source, target);
+    this.type = type;
+    this.messages = messages;
+
+    String s = 
+      (type == null ? "null type" :
+       messages == null ? "null messages" :
+       null);
+    if (s != null) {
+      throw new IllegalArgumentException(s);
+    }
+  }
+
+  /** @see PipeMessage#getType */
+  public String getType() { return type; }
+
+  /** @return the List of {@link PipeMessage}s */
+  public List getMessages() { return messages; }
+
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("(pipe-bundle");
+    buf.append("\n  source=").append(getOriginator());
+    buf.append("\n  target=").append(getTarget());
+    buf.append("\n  type=").append(type);
+    buf.append("\n  messages=List[").append(messages.size()).append("]");
+    for (int i = 0; i < messages.size(); i++) {
+      PipeMessage pm = (PipeMessage) messages.get(i);
+      buf.append("\n    session=").append(pm.getSessionId());
+      if (pm.isGrant()) {
+        buf.append(" credit=").append(pm.getCredit());
+      } else {
+        buf.append(" counter=").append(pm.getCounter());
+        buf.append(" data=List[").append(pm.getData().size()).append("]");
+      }
+    }
+    buf.append(")");
+    return buf.toString();
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+
+/**
+ * A queue that dispatches work across multiple pooled threads, sharded by
+ * a key such as the tunnel session id, e.g. to process received messages
+ * or to run {@link FlushScheduler} sends.
+ * <p>
+ * Work with the same key always runs in the same shard, in the order it
+ * was added, so per-session ordering is preserved while a slow session
+ * only delays the sessions that share its shard.  Each shard is a
+ * {@link TodoQueue}, so adds are lock-free and each shard runs bounded
+ * batches.
+ */
+abstract class ReceiveDispatcher {
+
+  /** Default number of shards */
+  static final int DEFAULT_SHARDS = 4;
+
+  /** Default maximum number of items per shard run */
+  static final int DEFAULT_BATCH_SIZE = TodoQueue.DEFAULT_BATCH_SIZE;
+
+  private final TodoQueue[] shards;
+
+  /**
+   * @param threadName base name for our shard threads
+   * @param lane ThreadService lane, e.g. BEST_EFFORT_LANE
+   * @param shards number of shards, at least one
+   * @param batchSize maximum items per shard run, at least one
+   */
+  ReceiveDispatcher(
+      LoggingService log, ThreadService threadService,
+      String threadName, int lane,
+      int shards, int batchSize) {
+    int n = Math.max(1, shards);
+    this.shards = new TodoQueue[n];
+    for (int i = 0; i < n; i++) {
+      this.shards[i] =
+        new TodoQueue(
+            log, threadService, threadName+" shard "+i+"/"+n,
+            lane, batchSize) {
+          protected void doNow(Object o) {
+            ReceiveDispatcher.this.doNow(o);
+          }
+        };
+    }
+  }
+
+  /**
+   * Add work to do in our asynchronous "doNow" callback.
+   *
+   * @param key the sharding key, e.g. a session UID, or null
+   * @param o the work
+   */
+  void add(Object key, Object o) {
+    int h = (key == null ? 0 : (key.hashCode() & 0x7fffffff));
+    shards[h % shards.length].add(o);
+  }
+
+  /**
+   * Do previously queued work, called by a shard thread.
+   *
+   * @param o an object passed into {@link #add}.
+   */
+  protected abstract void doNow(Object o);
+
+  /** @return the number of shards */
+  int getShardCount() {
+    return shards.length;
+  }
+
+  /** @return the approximate number of queued items in the shard */
+  int getQueueDepth(int shard) {
+    return shards[shard].size();
+  }
+
+  /** @return the approximate number of queued items per shard */
+  int[] getQueueDepths() {
+    int[] ret = new int[shards.length];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = getQueueDepth(i);
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of fixed-size <code>byte[]</code> segments for the
+ * {@link OutputPipe} write buffers.
+ * <p>
+ * A sent segment is copied or compressed into a right-sized array for
+ * its message, so it's always recycled.  Pools are shared by all pipes
+ * with the same segment size.
+ */
+final class SegmentPool {
+
+  // max number of idle segments we'll keep per size
+  private static final int MAX_POOL_SIZE = 32;
+
+  // map from Integer size to SegmentPool
+  private static final Map pools = new HashMap();
+
+  private final int size;
+  private final List idle = new ArrayList();
+
+  private SegmentPool(int size) {
+    this.size = size;
+  }
+
+  /** @return the shared pool for the given segment size */
+  static SegmentPool getInstance(int size) {
+    Integer key = new Integer(size);
+    synchronized (pools) {
+      SegmentPool ret = (SegmentPool) pools.get(key);
+      if (ret == null) {
+        ret = new SegmentPool(size);
+        pools.put(key, ret);
+      }
+      return ret;
+    }
+  }
+
+  /** @return an idle or new segment */
+  byte[] take() {
+    synchronized (idle) {
+      if (!idle.isEmpty()) {
+        return (byte[]) idle.remove(idle.size() - 1);
+      }
+    }
+    return new byte[size];
+  }
+
+  /** @return the number of idle segments, for testing */
+  int getIdleCount() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  /** Return a segment that's no longer referenced */
+  void give(byte[] b) {
+    if (b.length != size) return;
+    synchronized (idle) {
+      if (idle.size() < MAX_POOL_SIZE) {
+        idle.add(b);
+      }
+    }
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.core.util.UID;
+
+/**
+ * A table of the open tunnel sessions in a messaging client or server
+ * factory.
+ * <p>
+ * We limit the number of concurrent sessions per peer, and support a
+ * background "reaper" that removes sessions that have been idle for too
+ * long or have exceeded their absolute deadline, e.g. because the peer
+ * crashed or a final message was lost.  Reaped sessions are aborted, which
+ * wakes any reader or writer that's blocked on their pipes.
+ * <p>
+ * We also remember the ids of recently closed sessions for one reaper
+ * interval, so the server can drop a duplicate or late first message
+ * instead of opening a new session for it.
+ * <p>
+ * The server also holds segments that arrive before their session's
+ * first segment, e.g. over a multipath transport, so the new session's
+ * {@link InputPipe} can reorder them.  We hold at most the pipe's
+ * "reorderWindow" segments per session, for at most its "gapTimeout".
+ * <p>
+ * Supported options:<pre>
+ *   maxSessionsPerPeer  maximum concurrent sessions per peer, or zero for
+ *                       no limit.  Defaults to
+ *                       {@link #DEFAULT_MAX_SESSIONS_PER_PEER}.
+ *   idleTimeout         milliseconds without reads, writes, or grants
+ *                       before a session is reaped, or zero for no
+ *                       limit.  Defaults to {@link #DEFAULT_IDLE_TIMEOUT}.
+ *   sessionTimeout      absolute session deadline in milliseconds, or
+ *                       zero for no limit.  Defaults to
+ *                       {@link #DEFAULT_SESSION_TIMEOUT}.
+ * </pre>
+ */
+final class SessionTable {
+
+  static final int DEFAULT_MAX_SESSIONS_PER_PEER = 100;
+  static final long DEFAULT_IDLE_TIMEOUT = 300000;
+  static final long DEFAULT_SESSION_TIMEOUT = 3600000;
+
+  // upper bound on how often we check for expired sessions
+  private static final long MAX_REAP_INTERVAL = 5000;
+
+  // max number of unopened sessions with early segments
+  private static final int MAX_EARLY_SESSIONS = 256;
+
+  /** A session in our table */
+  static final class Entry {
+    final UID sessionId;
+    final MessageAddress target;
+    final InputPipe ip;
+    final long created = System.nanoTime();
+    OutputPipe op;
+
+    Entry(UID sessionId, MessageAddress target, InputPipe ip) {
+      this.sessionId = sessionId;
+      this.target = target;
+      this.ip = ip;
+    }
+
+    /** Abort the pipes, waking any blocked reader or writer */
+    void abort() {
+      ip.abort();
+      if (op != null) {
+        op.close();
+      }
+    }
+
+    public String toString() {
+      return "(session id="+sessionId+" target="+target+")";
+    }
+  }
+
+  /** Segments that arrived before their session's first segment */
+  private static final class Early {
+    // System.nanoTime when the first of these segments arrived
+    final long created;
+    // List of PipeMessages in arrival order
+    final List messages = new ArrayList();
+
+    Early(long created) {
+      this.created = created;
+    }
+  }
+
+  private final LoggingService log;
+  private final int maxPerPeer;
+  private final long idleTimeout;
+  private final long sessionTimeout;
+  private final long reapInterval;
+  private final int reorderWindow;
+  private final long gapTimeout;
+
+  private Schedulable reaper;
+
+  // map from session UID to Entry
+  private final Map sessions = new HashMap();
+
+  // map from target MessageAddress to the int[] number of sessions
+  private final Map counts = new HashMap();
+
+  // map from recently closed session UID to the Long System.nanoTime when
+  // it was closed, in closing order
+  private final Map closed = new LinkedHashMap();
+
+  // map from unopened session UID to the Early segments that arrived
+  // before its first segment, in arrival order
+  private final Map early = new LinkedHashMap();
+
+  SessionTable(LoggingService log, Map options) {
+    this.log = log;
+    this.maxPerPeer = 
+      Options.getInt(
+          options, "maxSessionsPerPeer", DEFAULT_MAX_SESSIONS_PER_PEER);
+    this.idleTimeout =
+      Options.getLong(options, "idleTimeout", DEFAULT_IDLE_TIMEOUT);
+    this.sessionTimeout =
+      Options.getLong(options, "sessionTimeout", DEFAULT_SESSION_TIMEOUT);
+    long min = 
+      (idleTimeout <= 0 ? sessionTimeout :
+       sessionTimeout <= 0 ? idleTimeout :
+       Math.min(idleTimeout, sessionTimeout));
+    this.reapInterval =
+      (min <= 0 ? 0 : Math.max(1, Math.min(MAX_REAP_INTERVAL, min / 2)));
+    this.reorderWindow =
+      Options.getInt(
+          options, "reorderWindow", InputPipe.DEFAULT_REORDER_WINDOW);
+    this.gapTimeout =
+      Options.getLong(options, "gapTimeout", InputPipe.DEFAULT_GAP_TIMEOUT);
+  }
+
+  /** Start our periodic reaper thread, if we have a timeout */
+  void start(ThreadService threadService, String threadName) {
+    if (reapInterval <= 0) return;
+    long interval = reapInterval;
+    Runnable r = new Runnable() {
+      public void run() {
+        reap();
+      }
+    };
+    reaper = threadService.getThread(
+        this, r, threadName, ThreadService.BEST_EFFORT_LANE);
+    reaper.schedule(interval, interval);
+  }
+
+  void stop() {
+    if (reaper != null) {
+      reaper.cancelTimer();
+      reaper = null;
+    }
+  }
+
+  private void reap() {
+    List l = expire();
+    if (l == null) return;
+    for (int i = 0; i < l.size(); i++) {
+      Entry e = (Entry) l.get(i);
+      if (log.isWarnEnabled()) {
+        log.warn("Reaping expired tunnel session "+e);
+      }
+      e.abort();
+    }
+  }
+
+  /** @return the maximum number of sessions per target */
+  int getMaxPerPeer() {
+    return maxPerPeer;
+  }
+
+  /**
+   * Add a new session.
+   *
+   * @return false if we already have the maximum number of sessions for
+   *   the target
+   */
+  synchronized boolean add(UID sessionId, MessageAddress target, InputPipe ip) {
+    int[] count = (int[]) counts.get(target);
+    if (count == null) {
+      count = new int[1];
+      counts.put(target, count);
+    } else if (maxPerPeer > 0 && count[0] >= maxPerPeer) {
+      return false;
+    }
+    count[0]++;
+    sessions.put(sessionId, new Entry(sessionId, target, ip));
+    return true;
+  }
+
+  synchronized void setOutputPipe(UID sessionId, OutputPipe op) {
+    Entry e = (Entry) sessions.get(sessionId);
+    if (e != null) {
+      e.op = op;
+    }
+  }
+
+  /** @return the input pipe, or null if the session is closed */
+  synchronized InputPipe getInputPipe(UID sessionId) {
+    Entry e = (Entry) sessions.get(sessionId);
+    return (e == null ? null : e.ip);
+  }
+
+  /** @return the output pipe, or null if the session is closed */
+  synchronized OutputPipe getOutputPipe(UID sessionId) {
+    Entry e = (Entry) sessions.get(sessionId);
+    return (e == null ? null : e.op);
+  }
+
+  /** Remove a closed session */
+  synchronized void remove(UID sessionId) {
+    Entry e = (Entry) sessions.remove(sessionId);
+    if (e != null) {
+      decrement(e.target);
+      markClosed(sessionId);
+    }
+  }
+
+  /**
+   * Remember a session that was closed or rejected, so a duplicate or
+   * late first message can be recognized by {@link #isRecentlyClosed}.
+   */
+  synchronized void markClosed(UID sessionId) {
+    long now = System.nanoTime();
+    prune(now);
+    closed.put(sessionId, new Long(now));
+    early.remove(sessionId);
+  }
+
+  /**
+   * Hold a segment that arrived before its session's first segment.
+   *
+   * @return false if the segment was dropped, because it's beyond the
+   *   reorder window or we're already holding too many segments
+   */
+  synchronized boolean holdEarly(UID sessionId, PipeMessage pm) {
+    long now = System.nanoTime();
+    pruneEarly(now);
+    if (pm.getCounter() > reorderWindow) {
+      return false;
+    }
+    Early e = (Early) early.get(sessionId);
+    if (e == null) {
+      if (early.size() >= MAX_EARLY_SESSIONS) {
+        return false;
+      }
+      e = new Early(now);
+      early.put(sessionId, e);
+    } else if (e.messages.size() >= reorderWindow) {
+      return false;
+    }
+    e.messages.add(pm);
+    return true;
+  }
+
+  /**
+   * Remove the segments that we held for a session that's now open.
+   *
+   * @return a List of PipeMessages in arrival order, or null if none
+   */
+  synchronized List takeEarly(UID sessionId) {
+    pruneEarly(System.nanoTime());
+    Early e = (Early) early.remove(sessionId);
+    return (e == null ? null : e.messages);
+  }
+
+  /** @return the number of held early segments */
+  synchronized int getEarlyCount() {
+    pruneEarly(System.nanoTime());
+    int n = 0;
+    for (Iterator iter = early.values().iterator(); iter.hasNext(); ) {
+      n += ((Early) iter.next()).messages.size();
+    }
+    return n;
+  }
+
+  /**
+   * @return true if the session was closed within the last reaper
+   *   interval
+   */
+  synchronized boolean isRecentlyClosed(UID sessionId) {
+    prune(System.nanoTime());
+    return closed.containsKey(sessionId);
+  }
+
+  /** @return the number of open sessions */
+  synchronized int size() {
+    return sessions.size();
+  }
+
+  /** @return the number of recently closed sessions that we remember */
+  synchronized int getRecentlyClosedCount() {
+    prune(System.nanoTime());
+    return closed.size();
+  }
+
+  /**
+   * Remove all the sessions that have been idle or open for too long.
+   * <p>
+   * The caller must {@link Entry#abort} the returned entries after it
+   * has released our lock.
+   *
+   * @return a List of removed Entries, or null if none expired
+   */
+  private synchronized List expire() {
+    List ret = null;
+    long now = System.nanoTime();
+    long idleNanos = idleTimeout * 1000000;
+    long sessionNanos = sessionTimeout * 1000000;
+    for (Iterator iter = sessions.values().iterator(); iter.hasNext(); ) {
+      Entry e = (Entry) iter.next();
+      boolean expired;
+      if (sessionTimeout > 0 && now - e.created > sessionNanos) {
+        expired = true;
+      } else if (idleTimeout > 0) {
+        long last = e.ip.getLastActivity();
+        if (e.op != null) {
+          last = Math.max(last, e.op.getLastActivity());
+        }
+        expired = (now - last > idleNanos);
+      } else {
+        expired = false;
+      }
+      if (!expired) continue;
+      iter.remove();
+      decrement(e.target);
+      markClosed(e.sessionId);
+      if (ret == null) {
+        ret = new ArrayList();
+      }
+      ret.add(e);
+    }
+    return ret;
+  }
+
+  // forget closed sessions that are older than our reaper interval, or
+  // the maximum interval if we don't have a reaper
+  private void prune(long now) {
+    long ttl = (reapInterval > 0 ? reapInterval : MAX_REAP_INTERVAL);
+    long ttlNanos = ttl * 1000000;
+    for (Iterator iter = closed.values().iterator(); iter.hasNext(); ) {
+      long t = ((Long) iter.next()).longValue();
+      if (now - t < ttlNanos) break;
+      iter.remove();
+    }
+  }
+
+  // drop early segments that have waited longer than the gap timeout
+  private void pruneEarly(long now) {
+    if (gapTimeout <= 0) return;
+    long gapNanos = gapTimeout * 1000000;
+    for (Iterator iter = early.values().iterator(); iter.hasNext(); ) {
+      Early e = (Early) iter.next();
+      if (now - e.created < gapNanos) break;
+      if (log.isWarnEnabled()) {
+        log.warn(
+            "Dropping "+e.messages.size()+" early segments, their session's"+
+            " first segment never arrived: "+e.messages.get(0));
+      }
+      iter.remove();
+    }
+  }
+
+  private void decrement(MessageAddress target) {
+    int[] count = (int[]) counts.get(target);
+    if (count != null && --count[0] <= 0) {
+      counts.remove(target);
+    }
+  }
+}
@@ -26,9 +26,6 @@
 
 package org.cougaar.lib.web.micro.mts;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.cougaar.core.service.LoggingService;
 import org.cougaar.core.service.ThreadService;
 import org.cougaar.core.thread.Schedulable;
@@ -36,17 +33,26 @@ import org.cougaar.core.thread.Schedulable;
 /**
  * A simple "todo" queue for processing work in a pooled thread.
  * <p>
+ * Producers add to a lock-free {@link MpscQueue}, and only start our
+ * thread when the queue transitions from empty, so producers never
+ * contend with each other or with our thread for a lock.  Our thread
+ * runs at most "batchSize" items before it reschedules itself, so a busy
+ * queue won't starve the other users of its ThreadService lane.
+ * <p>
  * Should repackage into <code>org.cougaar.core.util</code>.<br>
  * The blackboard equivalent should use a dummy subscription to hold
  * onto queued items and present a "getAddedList()" interface.
  */
 public abstract class TodoQueue {
 
+  /** Default maximum number of items per thread run */
+  public static final int DEFAULT_BATCH_SIZE = 64;
+
   private final LoggingService log;
   private final Schedulable thread;
+  private final int batchSize;
 
-  private final List todo = new ArrayList();
-  private final List tmp = new ArrayList();
+  private final MpscQueue todo = new MpscQueue();
 
   /**
    * @param lane ThreadService lane, e.g. WILL_BLOCK_LANE
@@ -54,7 +60,18 @@ public abstract class TodoQueue {
   public TodoQueue(
       LoggingService log, ThreadService threadService,
       String threadName, int lane) {
+    this(log, threadService, threadName, lane, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param lane ThreadService lane, e.g. WILL_BLOCK_LANE
+   * @param batchSize maximum number of items per thread run
+   */
+  public TodoQueue(
+      LoggingService log, ThreadService threadService,
+      String threadName, int lane, int batchSize) {
     this.log = log;
+    this.batchSize = Math.max(1, batchSize);
 
     Runnable r = new Runnable() {
       public void run() {
@@ -70,10 +87,14 @@ public abstract class TodoQueue {
    * @param o any object, such as a Runnable
    */
   public void add(Object o) {
-    synchronized (todo) {
-      todo.add(o);
+    if (todo.add(o)) {
+      thread.start();
     }
-    thread.start();
+  }
+
+  /** @return the approximate number of queued items */
+  public int size() {
+    return todo.size();
   }
 
   /**
@@ -84,13 +105,9 @@ public abstract class TodoQueue {
   protected abstract void doNow(Object o);
 
   private void doAllNow() {
-    synchronized (todo) {
-      if (todo.isEmpty()) return;
-      tmp.addAll(todo);
-      todo.clear();
-    }
-    for (int i = 0, n = tmp.size(); i < n; i++) {
-      Object oi = tmp.get(i);
+    for (int i = 0; i < batchSize; i++) {
+      Object oi = todo.poll();
+      if (oi == null) break;
       try {
         doNow(oi);
       } catch (Exception e) {
@@ -101,10 +118,14 @@ public abstract class TodoQueue {
           si = e2.toString();
         }
         if (log.isErrorEnabled()) {
-          log.error("doNow["+i+"/"+n+"] failed for "+si, e);
+          log.error("doNow["+i+"/"+batchSize+"] failed for "+si, e);
         }
       }
     }
-    tmp.clear();
+    if (todo.size() > 0) {
+      // more work, or a producer is still linking its item.  Requeue
+      // ourselves instead of looping, to give other lanes a turn.
+      thread.start();
+    }
   }
 }
@@ -0,0 +1,179 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.micro.mts;
+
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+
+/**
+ * A bounded pool of blocking worker threads with a bounded FIFO queue,
+ * used by the {@link MessagingServerFactory} to run servlets.
+ * <p>
+ * Each worker is a {@link ThreadService#WILL_BLOCK_LANE} Schedulable that
+ * runs its task and then any queued tasks, so we never have more than
+ * "maxServletThreads" servlets blocked at once.  If all the workers are
+ * busy and the queue is full then {@link #execute} returns false, so the
+ * caller can reject the work right away instead of piling up threads.
+ * <p>
+ * Supported options:<pre>
+ *   maxServletThreads  maximum concurrent workers, or zero for no limit.
+ *                      Defaults to {@link #DEFAULT_MAX_THREADS}.
+ *   maxQueuedServlets  maximum number of tasks waiting for a worker.
+ *                      Defaults to {@link #DEFAULT_MAX_QUEUE}.
+ * </pre>
+ */
+final class WorkerPool {
+
+  /** Default maximum number of concurrent workers */
+  static final int DEFAULT_MAX_THREADS = 64;
+
+  /** Default maximum number of queued tasks */
+  static final int DEFAULT_MAX_QUEUE = 256;
+
+  private final LoggingService log;
+  private final ThreadService threadService;
+  private final String threadName;
+  private final int maxThreads;
+  private final int maxQueue;
+
+  // queued Tasks, guarded by the queue lock
+  private final LinkedList queue = new LinkedList();
+  private int active;
+  private long rejected;
+
+  private final Histogram queueWaits = new Histogram("ms");
+
+  private static final class Task {
+    final Runnable r;
+    final long queued = System.nanoTime();
+    Task(Runnable r) {
+      this.r = r;
+    }
+  }
+
+  WorkerPool(
+      LoggingService log, ThreadService threadService,
+      String threadName, Map options) {
+    this.log = log;
+    this.threadService = threadService;
+    this.threadName = threadName;
+    this.maxThreads =
+      Options.getInt(options, "maxServletThreads", DEFAULT_MAX_THREADS);
+    this.maxQueue =
+      Math.max(0,
+          Options.getInt(options, "maxQueuedServlets", DEFAULT_MAX_QUEUE));
+  }
+
+  /**
+   * Run the task in a worker thread, or queue it if all our workers are
+   * busy.
+   *
+   * @return false if we're saturated, in which case the task won't be run
+   */
+  boolean execute(Runnable r) {
+    Task task = new Task(r);
+    synchronized (queue) {
+      if (maxThreads > 0 && active >= maxThreads) {
+        if (queue.size() >= maxQueue) {
+          rejected++;
+          return false;
+        }
+        queue.add(task);
+        return true;
+      }
+      active++;
+    }
+    Worker w = new Worker(task);
+    Schedulable thread =
+      threadService.getThread(
+          this, w, threadName, ThreadService.WILL_BLOCK_LANE);
+    thread.start();
+    return true;
+  }
+
+  /** @return the number of running workers */
+  int getActiveCount() {
+    synchronized (queue) {
+      return active;
+    }
+  }
+
+  /** @return the number of tasks waiting for a worker */
+  int getQueueSize() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  /** @return the number of tasks we've rejected */
+  long getRejectedCount() {
+    synchronized (queue) {
+      return rejected;
+    }
+  }
+
+  /**
+   * @return a histogram of the milliseconds that tasks waited for a
+   *   worker
+   */
+  Histogram getQueueWaitHistogram() {
+    return queueWaits;
+  }
+
+  private final class Worker implements Runnable {
+
+    private Task task;
+
+    Worker(Task task) {
+      this.task = task;
+    }
+
+    public void run() {
+      while (true) {
+        long wait = System.nanoTime() - task.queued;
+        queueWaits.add(wait / 1000000);
+        try {
+          task.r.run();
+        } catch (RuntimeException e) {
+          if (log.isErrorEnabled()) {
+            log.error("Worker task failed", e);
+          }
+        }
+        synchronized (queue) {
+          if (queue.isEmpty()) {
+            active--;
+            return;
+          }
+          task = (Task) queue.removeFirst();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+package org.cougaar.lib.web.arch.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the {@link CompressionServlet}'s encoding selection, and that it
+ * passes through responses that are already encoded.
+ */
+public class CompressionServletTest extends TestCase {
+
+  private static final byte[] BODY;
+  static {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < 200; i++) {
+      buf.append("line ").append(i).append(" of a compressible body\n");
+    }
+    BODY = buf.toString().getBytes();
+  }
+
+  public void testSelectEncoding() {
+    assertNull(CompressionServlet.selectEncoding(null));
+    assertNull(CompressionServlet.selectEncoding(""));
+    assertNull(CompressionServlet.selectEncoding("br, identity"));
+    assertEquals("gzip", CompressionServlet.selectEncoding("gzip"));
+    assertEquals("gzip", CompressionServlet.selectEncoding("x-gzip"));
+    assertEquals("deflate", CompressionServlet.selectEncoding("deflate"));
+    assertEquals(
+        "gzip", CompressionServlet.selectEncoding("deflate, GZIP;q=0.5"));
+    assertEquals(
+        "deflate", CompressionServlet.selectEncoding("gzip;q=0, deflate"));
+    assertNull(CompressionServlet.selectEncoding("gzip;q=0.0"));
+    assertNull(CompressionServlet.selectEncoding("gzip;q=x"));
+  }
+
+  public void testGzip() throws Exception {
+    CompressionServlet cs = new CompressionServlet(newServlet(null), 64, 6);
+    Response r = service(cs, "GET", "gzip, deflate");
+    assertEquals("gzip", r.headers.get("content-encoding"));
+    assertEquals("Accept-Encoding", r.headers.get("vary"));
+    assertTrue(r.body.size() < BODY.length);
+    assertEquals(
+        new String(BODY),
+        new String(read(new GZIPInputStream(r.getInputStream()))));
+  }
+
+  public void testDeflate() throws Exception {
+    CompressionServlet cs = new CompressionServlet(newServlet(null), 64, 6);
+    Response r = service(cs, "GET", "deflate");
+    assertEquals("deflate", r.headers.get("content-encoding"));
+    assertEquals(
+        new String(BODY),
+        new String(read(new InflaterInputStream(r.getInputStream()))));
+  }
+
+  public void testNotAccepted() throws Exception {
+    CompressionServlet cs = new CompressionServlet(newServlet(null), 64, 6);
+    Response r = service(cs, "GET", null);
+    assertNull(r.headers.get("content-encoding"));
+    assertEquals(new String(BODY), r.body.toString());
+    r = service(cs, "HEAD", "gzip");
+    assertNull(r.headers.get("content-encoding"));
+  }
+
+  public void testSkipsEncodedResponse() throws Exception {
+    // e.g. a tunnelled response that the remote engine compressed
+    CompressionServlet cs = new CompressionServlet(newServlet("br"), 64, 6);
+    Response r = service(cs, "GET", "gzip");
+    assertEquals("br", r.headers.get("content-encoding"));
+    assertNull(r.headers.get("vary"));
+    assertEquals(new String(BODY), r.body.toString());
+    assertEquals(
+        Integer.toString(BODY.length), r.headers.get("content-length"));
+  }
+
+  public void testPoolBound() throws Exception {
+    CompressionServlet cs = new CompressionServlet(newServlet(null), 64, 6, 1);
+    service(cs, "GET", "gzip");
+    service(cs, "GET", "gzip");
+    service(cs, "GET", "deflate");
+    assertEquals(2, cs.getPooledCount());
+    cs.destroy();
+    assertEquals(0, cs.getPooledCount());
+
+    cs = new CompressionServlet(newServlet(null), 64, 6, 0);
+    service(cs, "GET", "gzip");
+    assertEquals(0, cs.getPooledCount());
+  }
+
+  /** A servlet that writes our BODY, with an optional content-encoding */
+  private static Servlet newServlet(final String encoding) {
+    return new Servlet() {
+      public void init(ServletConfig config) {}
+      public ServletConfig getServletConfig() { return null; }
+      public String getServletInfo() { return null; }
+      public void destroy() {}
+      public void service(ServletRequest req, ServletResponse sres)
+          throws IOException {
+        HttpServletResponse res = (HttpServletResponse) sres;
+        if (encoding != null) {
+          res.setHeader("Content-Encoding", encoding);
+        }
+        res.setContentType("text/plain");
+        res.setContentLength(BODY.length);
+        ServletOutputStream out = res.getOutputStream();
+        out.write(BODY, 0, 100);
+        out.write(BODY, 100, BODY.length - 100);
+      }
+    };
+  }
+
+  private static Response service(
+      CompressionServlet cs,
+      final String method,
+      final String accept) throws Exception {
+    HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(
+        HttpServletRequest.class.getClassLoader(),
+        new Class[] {HttpServletRequest.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getMethod")) {
+              return method;
+            }
+            if (m.getName().equals("getHeader") &&
+                "Accept-Encoding".equalsIgnoreCase((String) args[0])) {
+              return accept;
+            }
+            return defaultValue(m);
+          }
+        });
+    Response r = new Response();
+    HttpServletResponse res = (HttpServletResponse) Proxy.newProxyInstance(
+        HttpServletResponse.class.getClassLoader(),
+        new Class[] {HttpServletResponse.class},
+        r);
+    cs.service(req, res);
+    return r;
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buf = new byte[1024];
+    while (true) {
+      int n = in.read(buf);
+      if (n < 0) {
+        break;
+      }
+      bos.write(buf, 0, n);
+    }
+    return bos.toByteArray();
+  }
+
+  private static Object defaultValue(Method m) {
+    Class cl = m.getReturnType();
+    if (cl == Boolean.TYPE) {
+      return Boolean.FALSE;
+    } else if (cl == Integer.TYPE) {
+      return new Integer(0);
+    } else if (cl == Long.TYPE) {
+      return new Long(0);
+    }
+    return null;
+  }
+
+  /** A response that captures the headers and body */
+  private static final class Response implements InvocationHandler {
+    // map from lower-case header name to the last value
+    final Map headers = new HashMap();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final ServletOutputStream out = new ServletOutputStream() {
+      public void write(int b) {
+        body.write(b);
+      }
+    };
+    InputStream getInputStream() {
+      return new ByteArrayInputStream(body.toByteArray());
+    }
+    public Object invoke(Object proxy, Method m, Object[] args) {
+      String name = m.getName();
+      if (name.equals("getOutputStream")) {
+        return out;
+      }
+      if (name.equals("getCharacterEncoding")) {
+        return "ISO-8859-1";
+      }
+      if (name.equals("setHeader") || name.equals("addHeader")) {
+        headers.put(((String) args[0]).toLowerCase(), args[1]);
+      } else if (name.equals("setContentLength")) {
+        headers.put("content-length", String.valueOf(args[0]));
+      }
+      return defaultValue(m);
+    }
+  }
+}
@@ -0,0 +1,593 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2000-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.arch.util;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A wrapper for the gateway servlet that compresses responses with
+ * "gzip" or "deflate" content-encoding, if the client accepts it.
+ * <p>
+ * Responses are not compressed if the servlet sets its own
+ * "Content-Encoding" (e.g. a tunnelled response that the remote engine
+ * already compressed), if the "Content-Length" or total body is less than
+ * the <code>minLength</code>, or if the "Content-Type" is an already
+ * compressed format, such as an image.
+ * <p>
+ * Only the first <code>minLength</code> bytes are buffered, to decide
+ * whether or not to compress.  After that the body is compressed as it is
+ * written, and a servlet "flush()" is passed through as a deflater
+ * sync-flush.
+ * <p>
+ * Idle deflaters are pooled, up to <code>maxPooled</code> of each type.
+ * A deflater that doesn't fit in the pool is ended, to free its native
+ * memory, as are the pooled deflaters when we're destroyed.
+ */
+public final class CompressionServlet implements Servlet {
+
+  // gzip header: magic, "deflate" method, no flags, no mtime, no xfl, unix
+  private static final byte[] GZIP_HEADER = {
+    (byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3
+  };
+
+  private static final String[] INCOMPRESSIBLE_TYPES = {
+    "image/", "audio/", "video/",
+    "application/zip", "application/gzip", "application/x-gzip",
+    "application/x-compress", "application/octet-stream",
+    "application/java-archive", "application/x-java-serialized-object",
+  };
+
+  public static final int DEFAULT_MAX_POOLED = 16;
+
+  private final Servlet s;
+  private final int minLength;
+  private final int level;
+  private final int maxPooled;
+
+  // idle deflaters, raw ("nowrap") for gzip and zlib for deflate
+  private final List gzipPool = new ArrayList();
+  private final List deflatePool = new ArrayList();
+
+  /**
+   * @param s the servlet to wrap
+   * @param minLength minimum body length to compress
+   * @param level deflater compression level, 1 (fast) to 9 (best)
+   */
+  public CompressionServlet(Servlet s, int minLength, int level) {
+    this(s, minLength, level, DEFAULT_MAX_POOLED);
+  }
+
+  /**
+   * @param s the servlet to wrap
+   * @param minLength minimum body length to compress
+   * @param level deflater compression level, 1 (fast) to 9 (best)
+   * @param maxPooled maximum number of idle deflaters of each type
+   */
+  public CompressionServlet(
+      Servlet s, int minLength, int level, int maxPooled) {
+    this.s = s;
+    this.minLength = Math.max(0, minLength);
+    this.level = level;
+    this.maxPooled = Math.max(0, maxPooled);
+    if (s == null) {
+      throw new IllegalArgumentException("null servlet");
+    }
+    if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid level: "+level);
+    }
+  }
+
+  public void service(
+      ServletRequest sreq,
+      ServletResponse sres) throws ServletException, IOException {
+    HttpServletRequest req = (HttpServletRequest) sreq;
+    HttpServletResponse res = (HttpServletResponse) sres;
+
+    String encoding = 
+      ("HEAD".equals(req.getMethod()) ? null :
+       selectEncoding(req.getHeader("Accept-Encoding")));
+    if (encoding == null) {
+      s.service(sreq, sres);
+      return;
+    }
+
+    CompressingResponse cres = new CompressingResponse(res, encoding);
+    try {
+      s.service(req, cres);
+      cres.finish();
+    } finally {
+      cres.release();
+    }
+  }
+
+  // forward the rest
+  public void init(ServletConfig config) throws ServletException {
+    s.init(config);
+  }
+  public ServletConfig getServletConfig() {
+    return s.getServletConfig();
+  }
+  public String getServletInfo() {
+    return s.getServletInfo();
+  }
+  public void destroy() {
+    s.destroy();
+    endAll(gzipPool);
+    endAll(deflatePool);
+  }
+  public String toString() {
+    return s.toString();
+  }
+
+  /**
+   * @return "gzip", "deflate", or null if the client doesn't accept either
+   */
+  static String selectEncoding(String accept) {
+    if (accept == null) {
+      return null;
+    }
+    boolean gzip = false;
+    boolean deflate = false;
+    String[] sa = accept.split(",");
+    for (int i = 0; i < sa.length; i++) {
+      String si = sa[i].trim();
+      int sep = si.indexOf(';');
+      String name = (sep < 0 ? si : si.substring(0, sep).trim());
+      if (sep >= 0) {
+        // reject "gzip;q=0"
+        String params = si.substring(sep+1).trim();
+        if (params.startsWith("q=")) {
+          try {
+            if (Double.parseDouble(params.substring(2).trim()) <= 0.0) {
+              continue;
+            }
+          } catch (NumberFormatException nfe) {
+            continue;
+          }
+        }
+      }
+      if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+        gzip = true;
+      } else if ("deflate".equalsIgnoreCase(name)) {
+        deflate = true;
+      }
+    }
+    return (gzip ? "gzip" : deflate ? "deflate" : null);
+  }
+
+  private static boolean isCompressible(String type) {
+    if (type == null) {
+      return true;
+    }
+    String t = type.trim().toLowerCase();
+    if (t.startsWith("image/svg")) {
+      return true;
+    }
+    for (int i = 0; i < INCOMPRESSIBLE_TYPES.length; i++) {
+      if (t.startsWith(INCOMPRESSIBLE_TYPES[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Deflater acquireDeflater(boolean nowrap) {
+    List pool = (nowrap ? gzipPool : deflatePool);
+    synchronized (pool) {
+      if (!pool.isEmpty()) {
+        return (Deflater) pool.remove(pool.size() - 1);
+      }
+    }
+    return new Deflater(level, nowrap);
+  }
+
+  private void releaseDeflater(Deflater d, boolean nowrap) {
+    d.reset();
+    List pool = (nowrap ? gzipPool : deflatePool);
+    synchronized (pool) {
+      if (pool.size() < maxPooled) {
+        pool.add(d);
+        return;
+      }
+    }
+    d.end();
+  }
+
+  private static void endAll(List pool) {
+    synchronized (pool) {
+      for (int i = 0; i < pool.size(); i++) {
+        ((Deflater) pool.get(i)).end();
+      }
+      pool.clear();
+    }
+  }
+
+  /** @return the number of idle deflaters, for testing */
+  int getPooledCount() {
+    synchronized (gzipPool) {
+      synchronized (deflatePool) {
+        return gzipPool.size() + deflatePool.size();
+      }
+    }
+  }
+
+  private final class CompressingResponse extends HttpServletResponseWrapper {
+
+    private final String encoding;
+
+    // the servlet's Content-Length, held until we decide whether or not to
+    // compress
+    private int contentLength = -1;
+    private String contentType;
+    private boolean skip;
+
+    private CompressingStream out;
+    private PrintWriter writer;
+
+    public CompressingResponse(HttpServletResponse res, String encoding) {
+      super(res);
+      this.encoding = encoding;
+    }
+
+    // intercept headers
+    public void setContentLength(int len) {
+      if (!hold("Content-Length", Integer.toString(len))) {
+        super.setContentLength(len);
+      }
+    }
+    public void setContentType(String type) {
+      contentType = type;
+      if (!isCompressible(type)) {
+        skip = true;
+      }
+      super.setContentType(type);
+    }
+    public void setHeader(String name, String value) {
+      if (!hold(name, value)) {
+        super.setHeader(name, value);
+      }
+    }
+    public void addHeader(String name, String value) {
+      if (!hold(name, value)) {
+        super.addHeader(name, value);
+      }
+    }
+    public void setIntHeader(String name, int value) {
+      setHeader(name, Integer.toString(value));
+    }
+    public void addIntHeader(String name, int value) {
+      addHeader(name, Integer.toString(value));
+    }
+    private boolean hold(String name, String value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        if (out != null && out.isDecided()) {
+          return out.isCompressing();
+        }
+        try {
+          contentLength = Integer.parseInt(value.trim());
+        } catch (Exception e) {
+          return false;
+        }
+        if (contentLength < minLength) {
+          skip = true;
+        }
+        return true;
+      }
+      if ("Content-Encoding".equalsIgnoreCase(name)) {
+        skip = true;
+      } else if ("Content-Type".equalsIgnoreCase(name)) {
+        contentType = value;
+        if (!isCompressible(value)) {
+          skip = true;
+        }
+      }
+      return false;
+    }
+
+    // errors and redirects have no body for us to compress
+    public void sendError(int sc) throws IOException {
+      skip = true;
+      super.sendError(sc);
+    }
+    public void sendError(int sc, String msg) throws IOException {
+      skip = true;
+      super.sendError(sc, msg);
+    }
+    public void sendRedirect(String location) throws IOException {
+      skip = true;
+      super.sendRedirect(location);
+    }
+
+    // streams
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (writer != null) {
+        throw new IllegalStateException("Already made writer");
+      }
+      if (out == null) {
+        out = new CompressingStream(this);
+      }
+      return out;
+    }
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        if (out != null) {
+          throw new IllegalStateException("Already made output stream");
+        }
+        out = new CompressingStream(this);
+        writer = new PrintWriter(
+            new OutputStreamWriter(out, getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    // buffer
+    public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      } else if (out != null) {
+        out.flush();
+      } else {
+        super.flushBuffer();
+      }
+    }
+    public void resetBuffer() {
+      if (out != null) {
+        out.resetBuffer();
+      }
+      super.resetBuffer();
+    }
+    public void reset() {
+      if (out != null) {
+        out.resetBuffer();
+      }
+      contentLength = -1;
+      contentType = null;
+      skip = false;
+      super.reset();
+    }
+
+    private void finish() throws IOException {
+      if (out != null) {
+        // push the encoded chars into our stream without a sync-flush
+        out.finishing = true;
+      }
+      if (writer != null) {
+        writer.flush();
+      }
+      if (out != null) {
+        out.finish();
+      } else if (contentLength >= 0) {
+        // no body was written, but pass along the declared length
+        super.setContentLength(contentLength);
+      }
+    }
+
+    private void release() {
+      if (out != null) {
+        out.release();
+      }
+    }
+
+    private HttpServletResponse getHttpResponse() {
+      return (HttpServletResponse) getResponse();
+    }
+  }
+
+  private final class CompressingStream extends ServletOutputStream {
+
+    private final CompressingResponse cres;
+    private final boolean gzip;
+
+    // buffered head of the body, until we decide whether to compress
+    private byte[] head;
+    private int count;
+
+    private boolean decided;
+    private boolean compress;
+    private boolean finishing;
+    private boolean finished;
+
+    private ServletOutputStream sout;
+    private Deflater deflater;
+    private CRC32 crc;
+    private byte[] dbuf;
+
+    private final byte[] tmp = new byte[1];
+
+    public CompressingStream(CompressingResponse cres) {
+      this.cres = cres;
+      this.gzip = "gzip".equals(cres.encoding);
+      this.head = new byte[Math.max(minLength, 1)];
+    }
+
+    public boolean isDecided() { return decided; }
+    public boolean isCompressing() { return compress; }
+
+    public void write(int b) throws IOException {
+      tmp[0] = (byte) b;
+      write(tmp, 0, 1);
+    }
+    public void write(byte[] b) throws IOException {
+      write(b, 0, b.length);
+    }
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (finished) {
+        throw new IOException("closed");
+      }
+      if (len == 0) {
+        return;
+      }
+      if (!decided) {
+        if (count + len < head.length) {
+          System.arraycopy(b, off, head, count, len);
+          count += len;
+          return;
+        }
+        decide(true);
+      }
+      if (compress) {
+        crc(b, off, len);
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+          deflate(Deflater.NO_FLUSH);
+        }
+      } else {
+        sout.write(b, off, len);
+      }
+    }
+
+    public void flush() throws IOException {
+      if (finished || finishing) {
+        return;
+      }
+      if (!decided) {
+        // we don't know the final length, so compress if allowed
+        decide(true);
+      }
+      if (compress) {
+        deflate(Deflater.SYNC_FLUSH);
+      }
+      sout.flush();
+    }
+
+    public void close() throws IOException {
+      finish();
+    }
+
+    private void resetBuffer() {
+      if (decided) {
+        throw new IllegalStateException("Already committed");
+      }
+      count = 0;
+    }
+
+    private void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      if (!decided) {
+        // the entire body fit in our buffer
+        decide(count >= minLength);
+      }
+      finished = true;
+      if (compress) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          deflate(Deflater.NO_FLUSH);
+        }
+        if (gzip) {
+          writeInt((int) crc.getValue());
+          writeInt((int) deflater.getBytesRead());
+        }
+      }
+      // let the engine flush, so it can set the Content-Length
+    }
+
+    private void decide(boolean allow) throws IOException {
+      decided = true;
+      compress = (allow && !cres.skip);
+      HttpServletResponse res = cres.getHttpResponse();
+      if (compress) {
+        res.setHeader("Content-Encoding", cres.encoding);
+        res.addHeader("Vary", "Accept-Encoding");
+        deflater = acquireDeflater(gzip);
+        dbuf = new byte[4096];
+        sout = res.getOutputStream();
+        if (gzip) {
+          crc = new CRC32();
+          sout.write(GZIP_HEADER);
+        }
+        if (count > 0) {
+          crc(head, 0, count);
+          deflater.setInput(head, 0, count);
+          while (!deflater.needsInput()) {
+            deflate(Deflater.NO_FLUSH);
+          }
+        }
+      } else {
+        if (cres.contentLength >= 0) {
+          res.setContentLength(cres.contentLength);
+        }
+        sout = res.getOutputStream();
+        if (count > 0) {
+          sout.write(head, 0, count);
+        }
+      }
+      head = null;
+      count = 0;
+    }
+
+    private void deflate(int flush) throws IOException {
+      while (true) {
+        int n = deflater.deflate(dbuf, 0, dbuf.length, flush);
+        if (n > 0) {
+          sout.write(dbuf, 0, n);
+        }
+        if (n < dbuf.length) {
+          break;
+        }
+      }
+    }
+
+    private void crc(byte[] b, int off, int len) {
+      if (crc != null) {
+        crc.update(b, off, len);
+      }
+    }
+
+    private void writeInt(int i) throws IOException {
+      // gzip trailer is little-endian
+      sout.write(i & 0xff);
+      sout.write((i >> 8) & 0xff);
+      sout.write((i >> 16) & 0xff);
+      sout.write((i >> 24) & 0xff);
+    }
+
+    private void release() {
+      if (deflater != null) {
+        releaseDeflater(deflater, gzip);
+        deflater = null;
+      }
+    }
+  }
+}
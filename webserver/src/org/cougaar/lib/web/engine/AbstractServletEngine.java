@@ -89,6 +89,54 @@ import org.cougaar.util.Parameters;
  * @property org.cougaar.lib.web.http.acceptCount
  *   HTTP ServerSocket backlog.  Defaults to a server default.
  *
+ * @property org.cougaar.lib.web.http.acceptors
+ *   Number of HTTP accept threads.  Defaults to 1.  Engines that
+ *   support it will bind one socket per acceptor with SO_REUSEPORT,
+ *   so the kernel balances connection bursts across them.
+ *
+ * @property org.cougaar.lib.web.http.reusePort
+ *   Use SO_REUSEPORT if there are multiple acceptors, otherwise the
+ *   acceptors share a single socket.  Defaults to true.
+ *
+ * @property org.cougaar.lib.web.http.workers
+ *   Number of worker threads per HTTP acceptor.  If set, each acceptor
+ *   and its workers form a shard with its own queue of accepted
+ *   connections.  Defaults to 0, which runs each connection in its
+ *   own pooled thread.
+ *
+ * @property org.cougaar.lib.web.http.workerQueue
+ *   Accepted connections that may wait for a shard's workers before
+ *   its acceptor stops accepting.  Defaults to 4 * http.workers.
+ *
+ * @property org.cougaar.lib.web.http.tcpNoDelay
+ *   Set TCP_NODELAY on accepted HTTP sockets.  Defaults to false.
+ *
+ * @property org.cougaar.lib.web.http.receiveBufferSize
+ *   HTTP socket receive buffer size.  Defaults to a system default.
+ *
+ * @property org.cougaar.lib.web.http.sendBufferSize
+ *   HTTP socket send buffer size.  Defaults to a system default.
+ *
+ * @property org.cougaar.lib.web.http.readTimeout
+ *   Milliseconds that a read from an HTTP client may block, e.g.
+ *   while reading a request body, before the request is dropped.
+ *   Defaults to 30000.  Zero disables the timeout.
+ *
+ * @property org.cougaar.lib.web.http.headTimeout
+ *   Milliseconds allowed to read an HTTP request line and headers
+ *   before the request is rejected with a 408.  Defaults to 30000.
+ *
+ * @property org.cougaar.lib.web.http.maxLineLength
+ *   Maximum HTTP request line or header line length.  Longer lines
+ *   are rejected with a 414 or 431.  Defaults to 8192.
+ *
+ * @property org.cougaar.lib.web.http.maxHeaders
+ *   Maximum number of HTTP request headers.  Defaults to 100.
+ *
+ * @property org.cougaar.lib.web.http.maxHeadSize
+ *   Maximum HTTP request line plus headers size in bytes.  Defaults
+ *   to 65536.
+ *
  * @property org.cougaar.lib.web.https.port
  *   The base integer port for the HTTPS server, which defaults to
  *   -1.  The most common value is 8400.  If a negative number is 
@@ -113,6 +161,13 @@ import org.cougaar.util.Parameters;
  * @property org.cougaar.lib.web.https.keypass
  *   Optional HTTPS keystore.  Prefer "cougaar.rc" entry
  *   for "org.cougaar.web.keypass=PASSWORD".
+ *
+ * @property org.cougaar.lib.web.ipOnly
+ *   Use IP addresses instead of host names, to avoid reverse-DNS
+ *   lookups.  If true then our naming entries advertise our IP
+ *   address, and engines that support it will report the client's
+ *   IP address as the servlet request's "getRemoteHost()".
+ *   Defaults to false.
  * </pre>
  */
 public abstract class AbstractServletEngine
@@ -129,6 +184,8 @@ implements Component
 
   private boolean running;
 
+  private boolean ipOnly;
+
   private Map namingEntries;
 
   private ServletEngineService ses;
@@ -208,6 +265,8 @@ implements Component
     m.put("https.keyname", "tomcat");
     m.put("http.port", "8800");
     m.put("https.port", "-1");
+    // "ipOnly" defaults to false, but we only pass it if it's configured,
+    // so engines can share their default host name cache
 
     // override with init parameters
     for (int i = 0; i < args.size(); i++) {
@@ -293,6 +352,7 @@ implements Component
     if (config == null) {
       config = Collections.EMPTY_MAP;
     }
+    ipOnly = "true".equals(config.get("ipOnly"));
 
     // configure and start the server
     final UsedPorts usedPorts;
@@ -504,7 +564,8 @@ implements Component
     sb.releaseService(this, NodeIdentificationService.class, nis);
     String localhost;
     if (localaddr != null) {
-      localhost = localaddr.getHostName();
+      localhost = 
+        (ipOnly ? localaddr.getHostAddress() : localaddr.getHostName());
     } else {
       throw new RuntimeException("Unable to get localhost address");
     }
@@ -0,0 +1,380 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 2000-2007 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.redirect;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A per-peer circuit breaker for servlet tunnels.
+ * <p>
+ * A peer is keyed by any Object, e.g. a remote "host:port" String or a
+ * node's MessageAddress.  After too many consecutive failures or slow
+ * responses the peer's circuit "opens", and we fail requests fast
+ * instead of paying a full timeout per request.  After the open timeout
+ * the circuit is "half-open", and we allow a single trial request at a
+ * time.  If the trial succeeds the circuit closes, otherwise it reopens.
+ * <p>
+ * Typical usage is:<pre>
+ *   if (!breaker.allow(key)) {
+ *     // fail fast, e.g. with a 503
+ *   }
+ *   long t = System.currentTimeMillis();
+ *   boolean success = false;
+ *   try {
+ *     success = tunnel(..);
+ *   } finally {
+ *     breaker.record(key, success, System.currentTimeMillis() - t);
+ *   }
+ * </pre>
+ * <p>
+ * Only outcomes that reflect the peer's health should be recorded, e.g.
+ * a failed connect or a missing response head.  Errors on our side, such
+ * as our client closing its connection, should be passed to
+ * {@link #cancel} instead.
+ * <p>
+ * Peers that have been idle for a while are forgotten, unless their
+ * circuit is still open.
+ * <p>
+ * State changes are counted by transition, see {@link #getStats}, and
+ * reported to an optional {@link Listener}, e.g. to log them or update
+ * metrics.
+ */
+public class CircuitBreaker {
+
+  public static final int CLOSED = 0;
+  public static final int OPEN = 1;
+  public static final int HALF_OPEN = 2;
+
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final long DEFAULT_SLOW_CALL_MILLIS = 30000;
+  public static final long DEFAULT_OPEN_MILLIS = 10000;
+  public static final long DEFAULT_IDLE_MILLIS = 300000;
+
+  /** A callback for circuit state changes */
+  public interface Listener {
+    void stateChanged(Object key, int oldState, int newState);
+  }
+
+  private final int failureThreshold;
+  private final long slowCallMillis;
+  private final long openMillis;
+  private final long idleMillis;
+  private final Listener listener;
+
+  // map from key to Peer, only for peers with recent failures
+  private final Map peers = new HashMap();
+  private long nextEviction;
+
+  private long trips;
+  private long rejected;
+  private long successes;
+  private long failures;
+  private long evictions;
+  // counts indexed by [oldState][newState]
+  private final long[][] transitions = new long[3][3];
+
+  public CircuitBreaker(Listener listener) {
+    this(
+        DEFAULT_FAILURE_THRESHOLD,
+        DEFAULT_SLOW_CALL_MILLIS,
+        DEFAULT_OPEN_MILLIS,
+        listener);
+  }
+
+  public CircuitBreaker(
+      int failureThreshold,
+      long slowCallMillis,
+      long openMillis,
+      Listener listener) {
+    this(
+        failureThreshold, slowCallMillis, openMillis,
+        DEFAULT_IDLE_MILLIS, listener);
+  }
+
+  /**
+   * @param failureThreshold number of consecutive failures that opens the
+   *   circuit, or zero to disable the breaker
+   * @param slowCallMillis a successful call that takes longer than this
+   *   many milliseconds counts as a failure, or zero for no latency limit
+   * @param openMillis milliseconds that an open circuit fails fast before
+   *   we allow a trial request
+   * @param idleMillis milliseconds after which we forget a peer that
+   *   hasn't been used, unless its circuit is open
+   * @param listener optional state change listener
+   */
+  public CircuitBreaker(
+      int failureThreshold,
+      long slowCallMillis,
+      long openMillis,
+      long idleMillis,
+      Listener listener) {
+    this.failureThreshold = failureThreshold;
+    this.slowCallMillis = slowCallMillis;
+    this.openMillis = Math.max(0, openMillis);
+    this.idleMillis = Math.max(1, idleMillis);
+    this.listener = listener;
+  }
+
+  /**
+   * @return true if a request to the peer should be attempted, in which
+   *   case the caller must later call {@link #record} or {@link #cancel}
+   */
+  public boolean allow(Object key) {
+    if (failureThreshold <= 0) {
+      return true;
+    }
+    int oldState;
+    synchronized (peers) {
+      long now = System.currentTimeMillis();
+      evictIdle(now);
+      Peer p = (Peer) peers.get(key);
+      if (p == null) {
+        return true;
+      }
+      p.lastUsed = now;
+      if (p.state == CLOSED) {
+        return true;
+      }
+      if (p.state == OPEN && now - p.openedAt >= openMillis) {
+        // allow a trial request
+        oldState = p.state;
+        p.state = HALF_OPEN;
+        p.probing = true;
+        transitions[oldState][HALF_OPEN]++;
+      } else if (p.state == HALF_OPEN && !p.probing) {
+        p.probing = true;
+        return true;
+      } else {
+        rejected++;
+        return false;
+      }
+    }
+    fireStateChanged(key, oldState, HALF_OPEN);
+    return true;
+  }
+
+  /**
+   * Record the outcome of an allowed request.
+   *
+   * @param success true if the peer responded
+   * @param millis the time the peer took to respond, which is checked
+   *   against our slow call limit
+   */
+  public void record(Object key, boolean success, long millis) {
+    if (failureThreshold <= 0) {
+      return;
+    }
+    if (success && slowCallMillis > 0 && millis > slowCallMillis) {
+      success = false;
+    }
+    int oldState;
+    int newState;
+    synchronized (peers) {
+      long now = System.currentTimeMillis();
+      Peer p = (Peer) peers.get(key);
+      if (success) {
+        successes++;
+        if (p == null) {
+          return;
+        }
+        // forget the peer, it's healthy
+        peers.remove(key);
+        oldState = p.state;
+        newState = CLOSED;
+      } else {
+        failures++;
+        if (p == null) {
+          p = new Peer();
+          peers.put(key, p);
+        }
+        p.lastUsed = now;
+        oldState = p.state;
+        p.probing = false;
+        if (p.state == HALF_OPEN ||
+            (p.state == CLOSED && ++p.failures >= failureThreshold)) {
+          p.state = OPEN;
+          p.openedAt = now;
+          trips++;
+        }
+        newState = p.state;
+      }
+      if (oldState != newState) {
+        transitions[oldState][newState]++;
+      }
+    }
+    if (oldState != newState) {
+      fireStateChanged(key, oldState, newState);
+    }
+  }
+
+  /**
+   * Release an allowed request that wasn't attempted, e.g. due to a local
+   * resource limit, so another request can be the half-open trial.
+   */
+  public void cancel(Object key) {
+    synchronized (peers) {
+      Peer p = (Peer) peers.get(key);
+      if (p != null) {
+        p.probing = false;
+      }
+    }
+  }
+
+  // forget peers that haven't been used for a while, unless they're open
+  // or have a trial request in progress.  Called with the lock held.
+  private void evictIdle(long now) {
+    if (now < nextEviction) {
+      return;
+    }
+    nextEviction = now + Math.min(idleMillis, 60000);
+    for (Iterator iter = peers.values().iterator(); iter.hasNext(); ) {
+      Peer p = (Peer) iter.next();
+      if (p.state != OPEN && !p.probing && now - p.lastUsed >= idleMillis) {
+        iter.remove();
+        evictions++;
+      }
+    }
+  }
+
+  /** @return milliseconds that an open circuit fails fast */
+  public long getOpenMillis() {
+    return openMillis;
+  }
+
+  /** @return the peer's state, e.g. {@link #CLOSED} */
+  public int getState(Object key) {
+    synchronized (peers) {
+      Peer p = (Peer) peers.get(key);
+      return (p == null ? CLOSED : p.state);
+    }
+  }
+
+  /**
+   * @return a map from key to state name, for peers that have recently
+   *   failed
+   */
+  public Map getStates() {
+    Map ret = new HashMap();
+    synchronized (peers) {
+      for (Iterator iter = peers.entrySet().iterator(); iter.hasNext(); ) {
+        Map.Entry me = (Map.Entry) iter.next();
+        ret.put(me.getKey(), toString(((Peer) me.getValue()).state));
+      }
+    }
+    return ret;
+  }
+
+  /** @return the number of times a circuit has opened */
+  public long getTripCount() {
+    synchronized (peers) {
+      return trips;
+    }
+  }
+
+  /** @return the number of requests that failed fast */
+  public long getRejectedCount() {
+    synchronized (peers) {
+      return rejected;
+    }
+  }
+
+  /**
+   * @return the number of times that a circuit changed between the given
+   *   states, e.g. from {@link #OPEN} to {@link #HALF_OPEN}
+   */
+  public long getTransitionCount(int oldState, int newState) {
+    synchronized (peers) {
+      return transitions[oldState][newState];
+    }
+  }
+
+  /**
+   * @return a snapshot of our counters, e.g.:<pre>
+   *   peers=3 open=1 half-open=0 successes=120 failures=9 trips=2
+   *   rejected=31 evictions=4 closed-&gt;open=2 open-&gt;half-open=1
+   *   half-open-&gt;closed=1
+   * </pre>
+   * on one line, where only the non-zero transitions are listed
+   */
+  public String getStats() {
+    StringBuffer buf = new StringBuffer();
+    synchronized (peers) {
+      int[] counts = new int[3];
+      for (Iterator iter = peers.values().iterator(); iter.hasNext(); ) {
+        counts[((Peer) iter.next()).state]++;
+      }
+      buf.append("peers=").append(peers.size());
+      buf.append(" open=").append(counts[OPEN]);
+      buf.append(" half-open=").append(counts[HALF_OPEN]);
+      buf.append(" successes=").append(successes);
+      buf.append(" failures=").append(failures);
+      buf.append(" trips=").append(trips);
+      buf.append(" rejected=").append(rejected);
+      buf.append(" evictions=").append(evictions);
+      for (int i = 0; i < 3; i++) {
+        for (int j = 0; j < 3; j++) {
+          if (transitions[i][j] > 0) {
+            buf.append(" ").append(toString(i)).append("->");
+            buf.append(toString(j)).append("=").append(transitions[i][j]);
+          }
+        }
+      }
+    }
+    return buf.toString();
+  }
+
+  public String toString() {
+    return "(circuit-breaker "+getStats()+")";
+  }
+
+  /** @return the state name, e.g. "open" */
+  public static String toString(int state) {
+    switch (state) {
+      case CLOSED: return "closed";
+      case OPEN: return "open";
+      case HALF_OPEN: return "half-open";
+      default: return "unknown";
+    }
+  }
+
+  private void fireStateChanged(Object key, int oldState, int newState) {
+    if (listener != null) {
+      listener.stateChanged(key, oldState, newState);
+    }
+  }
+
+  private static final class Peer {
+    int state = CLOSED;
+    int failures;
+    long openedAt;
+    long lastUsed;
+    // true if a half-open trial request is in progress
+    boolean probing;
+  }
+}
@@ -67,6 +67,9 @@ implements Component
   protected Arguments args = Arguments.EMPTY_INSTANCE;
   protected long naming_timeout;
 
+  // optional per-host circuit breaker, see createCircuitBreaker
+  protected CircuitBreaker breaker;
+
   public void setServiceBroker(ServiceBroker sb) {
     this.sb = sb;
   }
@@ -88,6 +91,8 @@ implements Component
     // get services
     log = (LoggingService) sb.getService(this, LoggingService.class, null);
 
+    breaker = createCircuitBreaker();
+
     // create and advertise our service
     srs = new ServletRedirectorService() {
       public int redirect(
@@ -210,6 +215,22 @@ implements Component
       return ServletRedirector.DETECTED_LOOP;
     }
 
+    // fail fast if the remote host has been failing
+    if (breaker != null && !breaker.allow(host+":"+port)) {
+      if (log.isDebugEnabled()) {
+        log.debug(
+            "Circuit open for "+host+":"+port+", rejecting request for "+
+            encName);
+      }
+      res.setHeader(
+          "Retry-After",
+          Long.toString(Math.max(1, breaker.getOpenMillis() / 1000)));
+      res.sendError(
+          HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "Remote host "+host+":"+port+" is unavailable");
+      return ServletRedirector.REDIRECTED;
+    }
+
     // create path with correct contextPath.
     // e.g. from local "/foo/$bar" to remote "/qux/$bar"
     String path = req.getRequestURI();
@@ -238,6 +259,37 @@ implements Component
     return ServletRedirector.REDIRECTED;
   }
 
+  /**
+   * Create our optional circuit breaker, keyed by remote "host:port".
+   * <p>
+   * A client-side redirect can't detect remote failures, so we return
+   * null.  A tunneling subclass can return a breaker, in which case its
+   * {@link #doRedirect} must record the outcome of every allowed request.
+   */
+  protected CircuitBreaker createCircuitBreaker() {
+    return null;
+  }
+
+  /**
+   * @return a circuit breaker listener that logs state changes
+   */
+  protected CircuitBreaker.Listener createCircuitLogger() {
+    return new CircuitBreaker.Listener() {
+      public void stateChanged(Object key, int oldState, int newState) {
+        if (newState == CircuitBreaker.OPEN) {
+          if (log.isWarnEnabled()) {
+            log.warn("Circuit opened for "+key+", "+breaker);
+          }
+        } else if (log.isInfoEnabled()) {
+          log.info(
+              "Circuit for "+key+" changed from "+
+              CircuitBreaker.toString(oldState)+" to "+
+              CircuitBreaker.toString(newState));
+        }
+      }
+    };
+  }
+
   /**
    * Do the redirect.
    * <p>
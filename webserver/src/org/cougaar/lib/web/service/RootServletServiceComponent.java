@@ -40,6 +40,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.cougaar.bootstrap.SystemProperties;
 import org.cougaar.core.component.Component;
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.component.ServiceProvider;
@@ -53,6 +54,7 @@ import org.cougaar.lib.web.arch.root.GlobalRegistry;
 import org.cougaar.lib.web.arch.root.Redirector;
 import org.cougaar.lib.web.arch.root.RootServlet;
 import org.cougaar.lib.web.arch.root.RootServletRegistry;
+import org.cougaar.lib.web.arch.util.CompressionServlet;
 import org.cougaar.lib.web.engine.ServletEngineService;
 import org.cougaar.lib.web.redirect.NamingSupport;
 import org.cougaar.lib.web.redirect.RedirectorWrapper;
@@ -75,6 +77,20 @@ import org.cougaar.util.GenericStateModelAdapter;
  *   Timeout in millseconds for "/$" remote redirect lookups, where
  *   0 indicates no timeout.  Defaults to 0.
  *
+ * @property org.cougaar.lib.web.compress=false
+ *   Compress responses with "gzip" or "deflate" if the client
+ *   accepts it.  See {@link CompressionServlet}.
+ *
+ * @property org.cougaar.lib.web.compress.minLength=1024
+ *   Minimum response body length in bytes to compress.
+ *
+ * @property org.cougaar.lib.web.compress.level=6
+ *   Compression level, 1 (fastest) to 9 (smallest).
+ *
+ * @property org.cougaar.lib.web.compress.maxPooled=16
+ *   Maximum number of idle deflaters of each type that we keep for
+ *   reuse.
+ *
  * @see RootServletService we provide this service
  * @see ServletEngineService required engine service
  * @see ServletRedirectService optional redirector service
@@ -174,6 +190,19 @@ implements Component
       throw new RuntimeException("Unable to create root servlet", e);
     }
 
+    // optionally compress responses, for all engines
+    String prefix = "org.cougaar.lib.web.compress";
+    if (SystemProperties.getBoolean(prefix, false)) {
+      rootServlet =
+        new CompressionServlet(
+            rootServlet,
+            SystemProperties.getInt(prefix+".minLength", 1024),
+            SystemProperties.getInt(prefix+".level", 6),
+            SystemProperties.getInt(
+              prefix+".maxPooled",
+              CompressionServlet.DEFAULT_MAX_POOLED));
+    }
+
     // set our gateway
     try {
       engine.setGateway(rootServlet);